@@ -0,0 +1,451 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import persistence.PersistenceService;
+import persistence.SalesLedger;
+import persistence.TransactionLog;
+import vendingmachines.OperationStatus;
+import vendingmachines.VendingMachine;
+import Templates.VendingMachineFactory;
+import fleet.FleetRegistry;
+import interfaces.Displayable.InventoryFilter;
+import metrics.MachineMetrics;
+import metrics.MetricsRegistry;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+
+/**
+ * Runs a script of console commands without prompts. Each line holds one command; blank
+ * lines and lines starting with {@code #} are skipped. Machines are addressed by their fleet id,
+ * and {@code create} assigns the next free id, starting at 1:
+ *
+ * <pre>
+ * create coffee|sandwich|snack [standard|concurrent|indexed|persistent]
+ * add &lt;machine&gt; &lt;price&gt; &lt;quantity&gt; &lt;product name&gt;
+ * buy &lt;machine&gt; &lt;product name&gt;
+ * brew &lt;machine&gt; [count]
+ * make &lt;machine&gt; [count]
+ * refill &lt;machine&gt; &lt;amount&gt; &lt;amount&gt; &lt;amount&gt;   (water, beans, sugar or ham, cheese, bread)
+ * show [machine] [all|in-stock|low-stock]
+ * save &lt;machine&gt; [file]
+ * load &lt;file&gt;
+ * save-fleet &lt;file&gt;
+ * load-fleet &lt;file&gt;
+ * metrics
+ * sales
+ * </pre>
+ *
+ * <p>Commands run one after another without printing anything, except for {@code show},
+ * {@code metrics} and {@code sales}. The {@code sales} command needs a sales ledger, set up
+ * with the system property {@code vending.ledger.dir}. Failures are counted and the first few
+ * are listed in a summary at the end. Saves are written in the background while the script
+ * goes on; loads wait for earlier saves of the same file and finish before the next command,
+ * so later commands can use the machine. {@code save-fleet} writes every machine to one
+ * {@link persistence.FleetSnapshotFile} under its id, and {@code load-fleet} registers the
+ * machines of such a file under their saved ids, which must be free.
+ */
+public class BatchScript implements LoadTask.VendingMachineLoaderCallback {
+    private static final int MAX_LISTED_FAILURES = 20;
+    private static final int MAX_LISTED_MACHINES = 10;
+
+    private final VendingMachineConsole console;
+    private final FleetRegistry fleet;
+    private final MetricsRegistry metrics;
+    private final PersistenceService persistence;
+    private final Writer out;
+    private final long[] succeeded = new long[Command.values().length];
+    private final long[] failed = new long[Command.values().length];
+    private final List<String> failures = new ArrayList<>();
+    private final List<PendingSave> saves = new ArrayList<>();
+    private long failureCount;
+    private long skipped;
+    private int lineNumber;
+    private String line;
+
+    /**
+     * Constructs a new BatchScript.
+     *
+     * @param console the console whose transaction logs the script keeps up to date
+     * @param fleet the machines the script works on
+     * @param metrics the metrics the script's operations are recorded in
+     * @param persistence the service that saves and loads machines
+     * @param out where the output and the summary are written
+     */
+    public BatchScript(VendingMachineConsole console, FleetRegistry fleet, MetricsRegistry metrics,
+                       PersistenceService persistence, Writer out) {
+        this.console = console;
+        this.fleet = fleet;
+        this.metrics = metrics;
+        this.persistence = persistence;
+        this.out = out;
+    }
+
+    /**
+     * Runs every command of a script, waits for the saves it started and writes the summary.
+     *
+     * @param script the script to run
+     * @throws IOException if the script cannot be read or the output cannot be written
+     */
+    public void run(BufferedReader script) throws IOException {
+        long start = System.nanoTime();
+        String text;
+        while ((text = script.readLine()) != null) {
+            lineNumber++;
+            line = text.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            String[] words = split(line, 2, 1);
+            Command command = Command.of(words[0]);
+            if (command == null) {
+                skipped++;
+                fail(lineNumber, line, "unknown command");
+                continue;
+            }
+            String failure;
+            try {
+                failure = execute(command, words.length > 1 ? words[1] : "");
+            } catch (NumberFormatException e) {
+                failure = "invalid number: " + e.getMessage();
+            } catch (IOException | RuntimeException e) {
+                failure = reason(e);
+            }
+            if (failure == null) {
+                succeeded[command.ordinal()]++;
+            } else {
+                failed[command.ordinal()]++;
+                fail(lineNumber, line, failure);
+            }
+        }
+        for (PendingSave save : saves) {
+            try {
+                save.future.join();
+            } catch (CompletionException e) {
+                succeeded[Command.SAVE.ordinal()]--;
+                failed[Command.SAVE.ordinal()]++;
+                fail(save.lineNumber, save.line, reason(e.getCause()));
+            }
+        }
+        writeSummary(lineNumber, System.nanoTime() - start);
+    }
+
+    @Override
+    public void onLoadComplete(VendingMachine machine) {
+        onLoadComplete(machine, null);
+    }
+
+    @Override
+    public void onLoadComplete(VendingMachine machine, TransactionLog log) {
+        VendingMachineConsole.adopt(machine, log);
+    }
+
+    @Override
+    public TransactionLog openTransactionLog(Path logPath) throws IOException {
+        return VendingMachineConsole.transactionLogFor(logPath);
+    }
+
+    /**
+     * Executes one command.
+     *
+     * @return null on success, otherwise the reason the command failed
+     */
+    private String execute(Command command, String arguments) throws IOException {
+        String[] args;
+        switch (command) {
+            case CREATE: {
+                args = split(arguments, 2, 1);
+                VendingMachine machine = args.length > 1
+                        ? VendingMachineFactory.createVendingMachine(args[0], VendingMachine.InventoryMode.valueOf(args[1].toUpperCase()))
+                        : VendingMachineFactory.createVendingMachine(args[0]);
+                VendingMachineConsole.adopt(machine, null);
+                return null;
+            }
+            case ADD: {
+                args = split(arguments, 4, 4);
+                VendingMachine machine = fleet.get(Integer.parseInt(args[0]));
+                if (machine == null) {
+                    return "no machine " + args[0];
+                }
+                recorder(machine).addProduct(machine, args[3], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                return null;
+            }
+            case BUY: {
+                args = split(arguments, 2, 2);
+                VendingMachine machine = fleet.get(Integer.parseInt(args[0]));
+                if (machine == null) {
+                    return "no machine " + args[0];
+                }
+                OperationStatus status = recorder(machine).tryBuy(machine, args[1]);
+                return status.isOk() ? null : status.name();
+            }
+            case BREW: {
+                args = split(arguments, 2, 1);
+                CoffeeMachine machine = fleet.get(Integer.parseInt(args[0]), CoffeeMachine.class);
+                if (machine == null) {
+                    return "no coffee machine " + args[0];
+                }
+                int count = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+                int brewed = recorder(machine).brewCoffee(machine, count);
+                return brewed == count ? null : "brewed " + brewed + " of " + count;
+            }
+            case MAKE: {
+                args = split(arguments, 2, 1);
+                SandwichMachine machine = fleet.get(Integer.parseInt(args[0]), SandwichMachine.class);
+                if (machine == null) {
+                    return "no sandwich machine " + args[0];
+                }
+                int count = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+                int made = recorder(machine).makeSandwich(machine, count);
+                return made == count ? null : "made " + made + " of " + count;
+            }
+            case REFILL: {
+                args = split(arguments, 4, 4);
+                VendingMachine machine = fleet.get(Integer.parseInt(args[0]));
+                int first = Integer.parseInt(args[1]);
+                int second = Integer.parseInt(args[2]);
+                int third = Integer.parseInt(args[3]);
+                if (machine instanceof CoffeeMachine) {
+                    recorder(machine).refill((CoffeeMachine) machine, first, second, third);
+                } else if (machine instanceof SandwichMachine) {
+                    recorder(machine).refill((SandwichMachine) machine, first, second, third);
+                } else {
+                    return "no coffee or sandwich machine " + args[0];
+                }
+                return null;
+            }
+            case SHOW:
+                return show(split(arguments, 2, 0));
+            case SAVE: {
+                args = split(arguments, 2, 1);
+                VendingMachine machine = fleet.get(Integer.parseInt(args[0]));
+                if (machine == null) {
+                    return "no machine " + args[0];
+                }
+                String filePath = args.length > 1 ? args[1] : VendingMachineConsole.generateDefaultFileName(machine);
+                console.checkpointTransactionLog(machine, filePath);
+                saves.add(new PendingSave(VendingMachineConsole.save(persistence, machine, Paths.get(filePath)), lineNumber, line));
+                return null;
+            }
+            case LOAD: {
+                if (arguments.isEmpty()) {
+                    return "expected a file";
+                }
+                try {
+                    persistence.submitAfterSave(Paths.get(arguments), new LoadTask(arguments, this)).get();
+                } catch (ExecutionException e) {
+                    return reason(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return "interrupted";
+                }
+                return null;
+            }
+            case SAVE_FLEET:
+                if (arguments.isEmpty()) {
+                    return "expected a file";
+                }
+                VendingMachineConsole.saveFleet(Paths.get(arguments));
+                return null;
+            case LOAD_FLEET:
+                if (arguments.isEmpty()) {
+                    return "expected a file";
+                }
+                VendingMachineConsole.loadFleet(Paths.get(arguments));
+                return null;
+            case SALES: {
+                SalesLedger ledger = VendingMachineConsole.getSalesLedger();
+                if (ledger == null) {
+                    return "no sales ledger; set vending.ledger.dir";
+                }
+                out.write(ledger.toText());
+                return null;
+            }
+            default:
+                out.write(metrics.snapshot().toText());
+                if (fleet.getAggregates() != null) {
+                    out.write(fleet.getAggregates().toText());
+                }
+                if (fleet.getRefillIndex() != null) {
+                    out.write(fleet.getRefillIndex().toText(MAX_LISTED_MACHINES));
+                }
+                return null;
+        }
+    }
+
+    /**
+     * Describes why a command failed. An exception without a message is described by its
+     * class, so the command still counts as failed.
+     */
+    private static String reason(Throwable e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private String show(String[] args) throws IOException {
+        int machineId = 0;
+        InventoryFilter filter = InventoryFilter.ALL;
+        for (String arg : args) {
+            if (!arg.isEmpty() && Character.isDigit(arg.charAt(0))) {
+                machineId = Integer.parseInt(arg);
+            } else {
+                filter = InventoryFilter.valueOf(arg.toUpperCase().replace('-', '_'));
+            }
+        }
+        if (machineId != 0) {
+            VendingMachine machine = fleet.get(machineId);
+            if (machine == null) {
+                return "no machine " + machineId;
+            }
+            showMachine(machineId, machine, filter);
+        } else {
+            for (var entry : fleet.machines().entrySet()) {
+                showMachine(entry.getKey(), entry.getValue(), filter);
+            }
+        }
+        return null;
+    }
+
+    private void showMachine(int id, VendingMachine machine, InventoryFilter filter) throws IOException {
+        out.write(id + ". ");
+        machine.renderInventory(out, filter, 0, Integer.MAX_VALUE);
+        out.write(System.lineSeparator());
+    }
+
+    private MachineMetrics recorder(VendingMachine machine) {
+        return metrics.forMachine(fleet.idOf(machine));
+    }
+
+    private void fail(int lineNumber, String line, String reason) {
+        failureCount++;
+        if (failures.size() < MAX_LISTED_FAILURES) {
+            failures.add("  line " + lineNumber + ": " + line + ": " + reason);
+        }
+    }
+
+    private void writeSummary(int lines, long elapsedNanos) throws IOException {
+        long total = skipped;
+        for (Command command : Command.values()) {
+            total += succeeded[command.ordinal()] + failed[command.ordinal()];
+        }
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Ran %d commands from %d lines in %.2f s (%.0f commands/s): %d ok, %d failed%n",
+                total, lines, seconds, total / Math.max(seconds, 1e-9), total - failureCount, failureCount));
+        for (Command command : Command.values()) {
+            long ok = succeeded[command.ordinal()];
+            long bad = failed[command.ordinal()];
+            if (ok + bad > 0) {
+                summary.append(String.format("  %-10s %d ok, %d failed%n", command.keyword, ok, bad));
+            }
+        }
+        if (skipped > 0) {
+            summary.append(String.format("  %-10s %d%n", "unknown", skipped));
+        }
+        if (!failures.isEmpty()) {
+            summary.append("Failures:").append(System.lineSeparator());
+            for (String failure : failures) {
+                summary.append(failure).append(System.lineSeparator());
+            }
+            if (failureCount > failures.size()) {
+                summary.append("  ... and ").append(failureCount - failures.size()).append(" more").append(System.lineSeparator());
+            }
+        }
+        summary.append("Fleet: ").append(fleet.size()).append(" machines").append(System.lineSeparator());
+        out.write(summary.toString());
+        out.flush();
+    }
+
+    /**
+     * Splits the arguments of a command into words. The last word takes the rest of the line,
+     * so product names may contain spaces.
+     *
+     * @param arguments the arguments after the command
+     * @param limit the largest number of words
+     * @param required the smallest number of words
+     * @return the words
+     * @throws IllegalArgumentException if there are fewer words than required
+     */
+    private static String[] split(String arguments, int limit, int required) {
+        String[] words = new String[limit];
+        int count = 0;
+        int length = arguments.length();
+        int start = 0;
+        while (count < limit) {
+            while (start < length && Character.isWhitespace(arguments.charAt(start))) {
+                start++;
+            }
+            if (start == length) {
+                break;
+            }
+            int end = length;
+            if (count < limit - 1) {
+                end = start;
+                while (end < length && !Character.isWhitespace(arguments.charAt(end))) {
+                    end++;
+                }
+            }
+            words[count++] = arguments.substring(start, end);
+            start = end;
+        }
+        if (count < required) {
+            throw new IllegalArgumentException("expected " + required + " arguments");
+        }
+        return count == limit ? words : Arrays.copyOf(words, count);
+    }
+
+    /**
+     * A save the script started, and the line that started it.
+     */
+    private static final class PendingSave {
+        private final CompletableFuture<Path> future;
+        private final int lineNumber;
+        private final String line;
+
+        PendingSave(CompletableFuture<Path> future, int lineNumber, String line) {
+            this.future = future;
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The commands of the script language.
+     */
+    private enum Command {
+        CREATE("create"),
+        ADD("add"),
+        BUY("buy"),
+        BREW("brew"),
+        MAKE("make"),
+        REFILL("refill"),
+        SHOW("show"),
+        SAVE("save"),
+        LOAD("load"),
+        SAVE_FLEET("save-fleet"),
+        LOAD_FLEET("load-fleet"),
+        METRICS("metrics"),
+        SALES("sales");
+
+        private final String keyword;
+
+        Command(String keyword) {
+            this.keyword = keyword;
+        }
+
+        static Command of(String keyword) {
+            for (Command command : values()) {
+                if (command.keyword.equals(keyword)) {
+                    return command;
+                }
+            }
+            return null;
+        }
+    }
+}
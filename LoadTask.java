@@ -1,12 +1,23 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import persistence.PersistenceService;
+import persistence.TransactionLog;
 import vendingmachines.VendingMachine;
 
 /**
- * A task that loads the state of a vending machine from a file.
+ * A task that loads the state of a vending machine from a file. If a transaction log
+ * exists next to the file, its tail is replayed on top of the snapshot and the log is
+ * reopened so that further operations on the machine keep being logged. The callback
+ * opens the log, so a caller that already has it open can hand out the same instance. Run
+ * it as a {@link Callable} to get failures reported to the caller, or as a {@link Runnable}
+ * to have them printed.
  */
-public class LoadTask implements Runnable {
+public class LoadTask implements Runnable, Callable<VendingMachine> {
     private String filePath;
     private VendingMachineLoaderCallback callback;
 
@@ -24,17 +35,46 @@ public class LoadTask implements Runnable {
     @Override
     public void run() {
         try {
-            VendingMachine machine;
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filePath))) {
-                machine = (VendingMachine) ois.readObject();
-            }
+            VendingMachine machine = call();
             System.out.println("State loaded successfully from " + filePath + ": " + machine.displayInventory());
-            callback.onLoadComplete(machine);
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             System.err.println("Error loading state from " + filePath + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Loads the machine, replays its transaction log and invokes the callback.
+     *
+     * @return the loaded vending machine
+     * @throws IOException if the state file or the transaction log cannot be read
+     */
+    @Override
+    public VendingMachine call() throws IOException {
+        VendingMachine machine = PersistenceService.read(Paths.get(filePath));
+        TransactionLog log = null;
+        Path logPath = logPathFor(filePath);
+        if (Files.exists(logPath)) {
+            log = callback.openTransactionLog(logPath);
+            Map<Integer, VendingMachine> machines = new HashMap<>();
+            machines.put(0, machine);
+            log.replayOnto(machines);
+            machine = machines.get(0);
+            log.attach(0, machine);
+        }
+        callback.onLoadComplete(machine, log);
+        return machine;
+    }
+
+    /**
+     * Gets the path of the transaction log that belongs to a state file.
+     *
+     * @param filePath the path of the state file
+     * @return the path of the transaction log
+     */
+    public static Path logPathFor(String filePath) {
+        return Paths.get(filePath + ".wal");
+    }
+
     /**
      * Callback interface for load completion.
      */
@@ -45,5 +85,27 @@ public class LoadTask implements Runnable {
          * @param machine the loaded vending machine
          */
         void onLoadComplete(VendingMachine machine);
+
+        /**
+         * Called when the load is complete and the machine's transaction log has been reopened.
+         *
+         * @param machine the loaded vending machine
+         * @param log the transaction log attached to the machine, or null if there is none
+         */
+        default void onLoadComplete(VendingMachine machine, TransactionLog log) {
+            onLoadComplete(machine);
+        }
+
+        /**
+         * Opens the transaction log of the file being loaded. The loaded machine is attached
+         * to it under id 0, replacing any machine attached before.
+         *
+         * @param logPath the path of the transaction log
+         * @return the open log
+         * @throws IOException if the log cannot be opened
+         */
+        default TransactionLog openTransactionLog(Path logPath) throws IOException {
+            return TransactionLog.open(logPath, false);
+        }
     }
 }
@@ -1,14 +1,19 @@
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.FileOutputStream;
+import java.nio.file.Paths;
+import persistence.IncrementalSnapshot;
+import persistence.MachineCodec;
 import vendingmachines.VendingMachine;
 
 /**
- * A task that saves the state of a vending machine to a file.
+ * A task that saves the state of a vending machine to a file. The file is replaced
+ * atomically, so a crash during the save leaves the previous state intact. In delta mode
+ * only the changes since the previous save are appended to the file's delta chain, with a
+ * full base every so often; a full save removes the delta chain.
  */
 public class SaveTask implements Runnable {
     private String filePath;
     private VendingMachine machine;
+    private IncrementalSnapshot snapshot;
 
     /**
      * Constructs a new SaveTask.
@@ -21,14 +26,28 @@ public class SaveTask implements Runnable {
         this.machine = machine;
     }
 
+    /**
+     * Constructs a new SaveTask in delta mode. Reuse the same snapshot for every save of the
+     * machine, as it keeps track of the delta chain.
+     *
+     * @param snapshot the incremental snapshot of the file to save the state to
+     * @param machine the vending machine to save
+     */
+    public SaveTask(IncrementalSnapshot snapshot, VendingMachine machine) {
+        this(snapshot.getBasePath().toString(), machine);
+        this.snapshot = snapshot;
+    }
+
     @Override
     public void run() {
         try {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filePath))) {
-                oos.writeObject(machine);
+            if (snapshot != null) {
+                snapshot.save(machine);
+            } else {
+                IncrementalSnapshot.writeFull(MachineCodec.encode(machine), Paths.get(filePath));
             }
             System.out.println("State saved successfully to " + filePath);
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             System.err.println("Error saving state to " + filePath + ": " + e.getMessage());
         }
     }
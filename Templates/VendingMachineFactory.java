@@ -1,13 +1,44 @@
 package Templates;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 import vendingmachines.VendingMachine;
 import specializedmachines.CoffeeMachine;
 import specializedmachines.SandwichMachine;
 
 /**
  * Factory class for creating vending machines.
+ *
+ * <p>Besides the built-in types, the factory keeps a registry of prototypes: pre-configured
+ * machines that new machines are copied from. Copies are made with {@link VendingMachine#clone()},
+ * which takes constant time for prototypes in {@link VendingMachine.InventoryMode#PERSISTENT}
+ * mode, so {@link #createFleet} can stamp out large fleets quickly. The built-in prototypes
+ * are {@value #SNACK_PROTOTYPE}, {@value #COFFEE_PROTOTYPE} and {@value #SANDWICH_PROTOTYPE}.
  */
 public abstract class VendingMachineFactory {
+    /** A snack machine with the standard 40-product planogram, 10 units of each. */
+    public static final String SNACK_PROTOTYPE = "snack-40";
+    /** A coffee machine stocked for 100 coffees. */
+    public static final String COFFEE_PROTOTYPE = "coffee-stocked";
+    /** A sandwich machine stocked for 50 sandwiches. */
+    public static final String SANDWICH_PROTOTYPE = "sandwich-stocked";
+
+    private static final Map<String, VendingMachine> PROTOTYPES = new ConcurrentHashMap<>();
+
+    static {
+        VendingMachine snack = new VendingMachine("Snack Variety", 100, VendingMachine.InventoryMode.PERSISTENT);
+        for (char row = 'A'; row <= 'E'; row++) {
+            for (int column = 1; column <= 8; column++) {
+                snack.addProduct("Snack " + row + column, 100 + 25 * (row - 'A') + 5 * column, 10);
+            }
+        }
+        PROTOTYPES.put(SNACK_PROTOTYPE, snack);
+        PROTOTYPES.put(COFFEE_PROTOTYPE, new CoffeeMachine("Basic Coffee", 150, 1000, 500, 200, VendingMachine.InventoryMode.PERSISTENT));
+        PROTOTYPES.put(SANDWICH_PROTOTYPE, new SandwichMachine("Basic Sandwich", 200, 50, 50, 100, VendingMachine.InventoryMode.PERSISTENT));
+    }
 
     /**
      * Creates a vending machine of the specified type.
@@ -17,15 +48,110 @@ public abstract class VendingMachineFactory {
      * @throws IllegalArgumentException if the type is unknown
      */
     public static VendingMachine createVendingMachine(String type) throws IllegalArgumentException {
+        return createVendingMachine(type, VendingMachine.InventoryMode.STANDARD);
+    }
+
+    /**
+     * Creates a vending machine of the specified type with the specified inventory mode. A
+     * type that is not built in is looked up in the prototypes; copies of a prototype keep
+     * its inventory mode.
+     *
+     * @param type the type of vending machine, or the name of a prototype
+     * @param mode the inventory mode of the machine
+     * @return the created vending machine
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    public static VendingMachine createVendingMachine(String type, VendingMachine.InventoryMode mode) throws IllegalArgumentException {
         switch (type) {
             case "coffee":
-                return new CoffeeMachine("Basic Coffee", 150, 0, 0, 0);
+                return new CoffeeMachine("Basic Coffee", 150, 0, 0, 0, mode);
             case "sandwich":
-                return new SandwichMachine("Basic Sandwich", 200, 0, 0, 0);
+                return new SandwichMachine("Basic Sandwich", 200, 0, 0, 0, mode);
             case "snack":
-                return new VendingMachine("Snack Variety", 100);
+                return new VendingMachine("Snack Variety", 100, mode);
             default:
-                throw new IllegalArgumentException("Unknown vending machine type");
+                return createFromPrototype(type);
+        }
+    }
+
+    /**
+     * Registers a prototype, replacing any prototype with the same name. The factory keeps a
+     * copy, so later changes to the given machine do not affect the machines created from it.
+     *
+     * @param name the name of the prototype
+     * @param prototype the pre-configured machine
+     */
+    public static void registerPrototype(String name, VendingMachine prototype) {
+        PROTOTYPES.put(name, prototype.clone());
+    }
+
+    /**
+     * Removes a prototype.
+     *
+     * @param name the name of the prototype
+     * @return true if the prototype was registered
+     */
+    public static boolean removePrototype(String name) {
+        return PROTOTYPES.remove(name) != null;
+    }
+
+    /**
+     * Gets the names of the registered prototypes.
+     *
+     * @return the names, as a read-only view
+     */
+    public static Set<String> getPrototypeNames() {
+        return Collections.unmodifiableSet(PROTOTYPES.keySet());
+    }
+
+    /**
+     * Creates a vending machine by copying a prototype.
+     *
+     * @param name the name of the prototype
+     * @return the new machine
+     * @throws IllegalArgumentException if there is no prototype with the name
+     */
+    public static VendingMachine createFromPrototype(String name) throws IllegalArgumentException {
+        return prototype(name).clone();
+    }
+
+    /**
+     * Creates many vending machines by copying a prototype.
+     *
+     * @param name the name of the prototype
+     * @param count the number of machines
+     * @return the new machines
+     * @throws IllegalArgumentException if there is no prototype with the name
+     */
+    public static VendingMachine[] createFleet(String name, int count) throws IllegalArgumentException {
+        return createFleet(name, count, false);
+    }
+
+    /**
+     * Creates many vending machines by copying a prototype, optionally on all cores.
+     *
+     * @param name the name of the prototype
+     * @param count the number of machines
+     * @param parallel true to make the copies in parallel on the common fork/join pool
+     * @return the new machines
+     * @throws IllegalArgumentException if there is no prototype with the name or count is negative
+     */
+    public static VendingMachine[] createFleet(String name, int count, boolean parallel) throws IllegalArgumentException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative fleet size: " + count);
+        }
+        VendingMachine prototype = prototype(name);
+        VendingMachine[] fleet = new VendingMachine[count];
+        IntStream indexes = IntStream.range(0, count);
+        (parallel ? indexes.parallel() : indexes).forEach(i -> fleet[i] = prototype.clone());
+        return fleet;
+    }
+
+    private static VendingMachine prototype(String name) {
+        VendingMachine prototype = PROTOTYPES.get(name);
+        if (prototype == null) {
+            throw new IllegalArgumentException("Unknown vending machine type");
         }
+        return prototype;
     }
 }
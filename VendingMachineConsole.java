@@ -1,23 +1,81 @@
-import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.InputMismatchException;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import persistence.FleetSnapshotFile;
+import persistence.PersistenceService;
+import persistence.SalesLedger;
+import persistence.TransactionLog;
 import vendingmachines.VendingMachine;
 import Templates.VendingMachineFactory;
-import exceptions.InsufficientResourcesException;
+import fleet.FleetAggregates;
+import fleet.FleetRegistry;
+import fleet.MachineType;
+import fleet.RefillIndex;
+import interfaces.Displayable.InventoryFilter;
+import metrics.MetricsRegistry;
 import exceptions.VendingMachineException;
 import specializedmachines.CoffeeMachine;
 import specializedmachines.SandwichMachine;
 
 /**
- * Console application for managing vending machines.
+ * Console application for managing vending machines. Run it with {@code --batch [file]} to
+ * run a script of commands from a file, or from standard input if no file or {@code -} is
+ * given, instead of the interactive menu; see {@link BatchScript} for the commands. Setting
+ * the system property {@code vending.metrics.file} dumps the operation metrics to that file
+ * periodically, as JSON if the file name ends with {@code .json} and as text otherwise. The
+ * period in milliseconds is set with {@code vending.metrics.period} and defaults to one
+ * minute. Setting {@code vending.ledger.dir} records every sale of every machine in a
+ * {@link SalesLedger} in that directory. Everything is closed on exit, including when the
+ * process is killed, so no recorded sale is lost. Setting {@code vending.save.deltas} to a
+ * positive number saves machines incrementally, writing that many deltas between full base
+ * snapshots; see {@link persistence.IncrementalSnapshot}.
  */
 public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallback {
-    private static List<VendingMachine> vendingMachines = new ArrayList<>();
+    private static final int MAX_LISTED_MACHINES = 10;
+    private static final int PAGE_SIZE = 20;
+    private static final int DELTAS_PER_BASE = Integer.getInteger("vending.save.deltas", 0);
+    private static final int FLEET_FILE_CAPACITY = 1024;
+    private static FleetRegistry fleet = new FleetRegistry(new FleetAggregates(), new RefillIndex());
+    private static Map<Path, TransactionLog> transactionLogs = Collections.synchronizedMap(new HashMap<>());
+    private static MetricsRegistry metrics = new MetricsRegistry();
+    private static PersistenceService persistence = new PersistenceService(2, 64);
+    private static SalesLedger ledger;
+    private static final AtomicBoolean closed = new AtomicBoolean();
 
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
         VendingMachineConsole console = new VendingMachineConsole();
+        String metricsFile = System.getProperty("vending.metrics.file");
+        if (metricsFile != null) {
+            metrics.startDump(Paths.get(metricsFile), Long.getLong("vending.metrics.period", 60_000), metricsFile.endsWith(".json"));
+        }
+        String ledgerDir = System.getProperty("vending.ledger.dir");
+        if (ledgerDir != null) {
+            try {
+                ledger = SalesLedger.open(Paths.get(ledgerDir));
+            } catch (IOException e) {
+                System.err.println("Error opening sales ledger " + ledgerDir + ": " + e.getMessage());
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(console::shutdown, "console-shutdown"));
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(console, args.length > 1 ? args[1] : "-");
+            return;
+        }
 
         while (true) {
             try {
@@ -33,7 +91,8 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                 System.out.println("10. Refill Coffee Machine");
                 System.out.println("11. Save State");
                 System.out.println("12. Load State");
-                System.out.println("13. Exit");
+                System.out.println("13. Show Metrics");
+                System.out.println("14. Exit");
                 System.out.print("\nChoose an option: ");
                 int option = scanner.nextInt();
                 scanner.nextLine();
@@ -49,7 +108,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                         console.createMachine("snack");
                         break;
                     case 4:
-                        console.displayInventory();
+                        console.displayInventory(scanner);
                         break;
                     case 5:
                         console.addProduct(scanner);
@@ -76,7 +135,16 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                         console.loadState(scanner);
                         break;
                     case 13:
+                        System.out.print(metrics.snapshot().toText());
+                        System.out.print(fleet.getAggregates().toText());
+                        System.out.print(fleet.getRefillIndex().toText(MAX_LISTED_MACHINES));
+                        if (ledger != null) {
+                            System.out.print(ledger.toText());
+                        }
+                        break;
+                    case 14:
                         System.out.println("Exiting...");
+                        console.shutdown();
                         scanner.close();
                         return;
                     default:
@@ -91,6 +159,46 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
         }
     }
 
+    /**
+     * Runs a script of commands and prints its output and summary.
+     *
+     * @param console the console
+     * @param file the path of the script, or {@code -} for standard input
+     */
+    private static void runBatch(VendingMachineConsole console, String file) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try (BufferedReader script = file.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in), 1 << 16)
+                : Files.newBufferedReader(Paths.get(file))) {
+            new BatchScript(console, fleet, metrics, persistence, out).run(script);
+        } catch (IOException e) {
+            System.err.println("Error running script " + file + ": " + e.getMessage());
+        } finally {
+            console.shutdown();
+        }
+    }
+
+    /**
+     * Waits for pending saves and loads, then closes the transaction logs, the sales ledger
+     * and the metrics. Only the first call has any effect, so the shutdown hook does nothing
+     * after a normal exit.
+     */
+    private void shutdown() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        persistence.close();
+        closeTransactionLogs();
+        if (ledger != null) {
+            try {
+                ledger.close();
+            } catch (IOException e) {
+                System.err.println("Error closing sales ledger: " + e.getMessage());
+            }
+        }
+        metrics.close();
+    }
+
     /**
      * Creates a vending machine of the specified type.
      *
@@ -99,8 +207,8 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
     private void createMachine(String type) {
         try {
             VendingMachine machine = VendingMachineFactory.createVendingMachine(type);
-            vendingMachines.add(machine);
-            System.out.println("Successfully created a " + type + " machine.");
+            int id = adopt(machine, null);
+            System.out.println("Successfully created a " + type + " machine with id " + id + ".");
         } catch (IllegalArgumentException e) {
             System.err.println("Error creating machine: " + e.getMessage());
         }
@@ -115,7 +223,13 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
         try {
             System.out.print("Enter file path to load state: ");
             String filePath = scanner.nextLine();
-            new Thread(new LoadTask(filePath, this)).start();
+            persistence.submitAfterSave(Paths.get(filePath), new LoadTask(filePath, this)).whenComplete((machine, error) -> {
+                if (error != null) {
+                    System.err.println("Error loading state from " + filePath + ": " + error.getMessage());
+                } else {
+                    System.out.println("State loaded successfully from " + filePath + ": " + machine.displayInventory());
+                }
+            });
         } catch (Exception e) {
             System.err.println("Error loading state: " + e.getMessage());
         }
@@ -127,11 +241,11 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param scanner the scanner to read user input
      */
     private void saveState(Scanner scanner) {
-        if (vendingMachines.isEmpty()) {
+        if (fleet.isEmpty()) {
             System.out.println("No machines created to save.");
             return;
         }
-        VendingMachine machine = selectMachine(scanner, VendingMachine.class, "all");
+        VendingMachine machine = selectMachine(scanner, VendingMachine.class, null);
         if (machine != null) {
             try {
                 System.out.print("Enter file path to save state (leave blank to use default name): ");
@@ -139,24 +253,118 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                 if (filePath.isEmpty()) {
                     filePath = generateDefaultFileName(machine);
                 }
-                new Thread(new SaveTask(filePath, machine)).start();
+                checkpointTransactionLog(machine, filePath);
+                String savedPath = filePath;
+                save(persistence, machine, Paths.get(filePath)).whenComplete((path, error) -> {
+                    if (error != null) {
+                        System.err.println("Error saving state to " + savedPath + ": " + error.getMessage());
+                    } else {
+                        System.out.println("State saved successfully to " + savedPath);
+                    }
+                });
             } catch (Exception e) {
                 System.err.println("Error saving state: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Compacts the transaction log that records the operations of a machine saved to a file,
+     * opening it first if needed. A machine saved to a different file than before stops being
+     * logged in the old file. If another machine was saved to or loaded from the same file,
+     * the log is handed over: the file now holds this machine, so the other machine is no
+     * longer logged. The log is compacted on the console thread, which is the only thread that
+     * mutates machines, so the checkpoint is consistent with the operations logged after it.
+     *
+     * @param machine the vending machine
+     * @param filePath the path of the file the machine is saved to
+     * @throws IOException if the log cannot be opened or compacted
+     */
+    void checkpointTransactionLog(VendingMachine machine, String filePath) throws IOException {
+        Path logPath = normalize(LoadTask.logPathFor(filePath));
+        TransactionLog log;
+        synchronized (transactionLogs) {
+            Iterator<TransactionLog> logs = transactionLogs.values().iterator();
+            while (logs.hasNext()) {
+                TransactionLog other = logs.next();
+                if (other.getMachine(0) == machine && !other.getPath().equals(logPath)) {
+                    logs.remove();
+                    other.close();
+                }
+            }
+            log = transactionLogFor(logPath);
+            log.attach(0, machine);
+        }
+        log.compact();
+    }
+
+    /**
+     * Saves a machine to a file, as a delta if {@code vending.save.deltas} is set and as a
+     * full snapshot otherwise.
+     *
+     * @param persistence the persistence service that writes the file
+     * @param machine the vending machine to save
+     * @param path the file to save to
+     * @return a future that completes with the path once the state is on disk
+     */
+    static CompletableFuture<Path> save(PersistenceService persistence, VendingMachine machine, Path path) {
+        if (DELTAS_PER_BASE > 0) {
+            return persistence.saveIncremental(machine, path, DELTAS_PER_BASE);
+        }
+        return persistence.save(machine, path);
+    }
+
+    /**
+     * Gets the open transaction log of a file, opening it if needed. Logs are kept by path, so
+     * a file is never appended to by two logs, which would overwrite each other's records.
+     *
+     * @param logPath the path of the transaction log
+     * @return the open log
+     * @throws IOException if the log cannot be opened
+     */
+    static TransactionLog transactionLogFor(Path logPath) throws IOException {
+        Path key = normalize(logPath);
+        synchronized (transactionLogs) {
+            TransactionLog log = transactionLogs.get(key);
+            if (log == null) {
+                log = TransactionLog.open(key, false);
+                transactionLogs.put(key, log);
+            }
+            return log;
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Flushes and closes the transaction logs of all machines.
+     */
+    private void closeTransactionLogs() {
+        synchronized (transactionLogs) {
+            for (TransactionLog log : transactionLogs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing transaction log " + log.getPath() + ": " + e.getMessage());
+                }
+            }
+            transactionLogs.clear();
+        }
+    }
+
     /**
      * Adds a product to a snack vending machine.
      *
      * @param scanner the scanner to read user input
      */
     private void addProduct(Scanner scanner) {
-        if (vendingMachines.isEmpty()) {
+        if (fleet.isEmpty()) {
             System.out.println("No machines created to add product.");
             return;
         }
-        VendingMachine machine = selectMachine(scanner, VendingMachine.class, "snack");
+        VendingMachine machine = selectMachine(scanner, VendingMachine.class, MachineType.SNACK);
         if (machine != null) {
             try {
                 System.out.print("Enter product name: ");
@@ -166,7 +374,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                 System.out.print("Enter product quantity: ");
                 int quantity = scanner.nextInt();
                 scanner.nextLine();
-                machine.addProduct(name, price, quantity);
+                metrics.forMachine(fleet.idOf(machine)).addProduct(machine, name, price, quantity);
                 System.out.println("Product added successfully.");
             } catch (InputMismatchException e) {
                 System.out.println("Invalid input. Please enter valid numbers for price and quantity.");
@@ -178,36 +386,81 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
     }
 
     /**
-     * Displays the inventory of all vending machines.
+     * Displays one page of the inventory of all vending machines.
+     *
+     * @param scanner the scanner to read user input
      */
-    private void displayInventory() {
-        if (vendingMachines.isEmpty()) {
+    private void displayInventory(Scanner scanner) {
+        if (fleet.isEmpty()) {
             System.out.println("No machines created to display inventory.");
             return;
         }
-        System.out.println("\nAvailable machines and their inventories:");
-        for (int i = 0; i < vendingMachines.size(); i++) {
-            System.out.println((i + 1) + ". " + vendingMachines.get(i).displayInventory());
+        System.out.print("Show which products (all, in-stock, low-stock) [all]: ");
+        String filterName = scanner.nextLine().trim();
+        InventoryFilter filter;
+        try {
+            filter = filterName.isEmpty() ? InventoryFilter.ALL : InventoryFilter.valueOf(filterName.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid filter. Please enter all, in-stock or low-stock.");
+            return;
+        }
+        System.out.print("Page [1]: ");
+        String pageText = scanner.nextLine().trim();
+        int page;
+        try {
+            page = pageText.isEmpty() ? 1 : Integer.parseInt(pageText);
+        } catch (NumberFormatException e) {
+            page = 0;
+        }
+        if (page < 1) {
+            System.out.println("Invalid page. Please enter a positive number.");
+            return;
         }
+        System.out.println("\nAvailable machines and their inventories:");
+        printInventories(fleet.machines(), filter, (page - 1) * PAGE_SIZE);
         System.out.println("\n");
     }
 
+    /**
+     * Streams one page of the inventory of each machine to standard output.
+     *
+     * @param machines the machines keyed by id
+     * @param filter which products to show
+     * @param offset the number of matching products to skip in each machine
+     */
+    private static void printInventories(Map<Integer, VendingMachine> machines, InventoryFilter filter, int offset) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            for (Map.Entry<Integer, VendingMachine> entry : machines.entrySet()) {
+                out.write(entry.getKey() + ". ");
+                int matching = entry.getValue().renderInventory(out, filter, offset, PAGE_SIZE);
+                if (matching > offset + PAGE_SIZE) {
+                    out.write("\n... " + (matching - offset - PAGE_SIZE) + " more products");
+                }
+                out.write(System.lineSeparator());
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error displaying inventory: " + e.getMessage());
+        }
+    }
+
     /**
      * Buys a product from a snack vending machine.
      *
      * @param scanner the scanner to read user input
      */
     private void buyProduct(Scanner scanner) {
-        if (vendingMachines.isEmpty()) {
+        if (fleet.isEmpty()) {
             System.out.println("No machines created to buy product.");
             return;
         }
-        VendingMachine machine = selectMachine(scanner, VendingMachine.class, "snack");
+        VendingMachine machine = selectMachine(scanner, VendingMachine.class, MachineType.SNACK);
         if (machine != null) {
             try {
                 System.out.print("Enter product name to buy: ");
                 String name = scanner.nextLine();
-                machine.buyProduct(name);
+                metrics.forMachine(fleet.idOf(machine)).buyProduct(machine, name);
                 System.out.println("Bought " + name + " successfully.");
             } catch (VendingMachineException e) {
                 System.err.println("Error buying product: " + e.getMessage());
@@ -223,13 +476,21 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param scanner the scanner to read user input
      */
     private void makeSandwich(Scanner scanner) {
-        SandwichMachine machine = selectMachine(scanner, SandwichMachine.class, "sandwich");
+        SandwichMachine machine = selectMachine(scanner, SandwichMachine.class, MachineType.SANDWICH);
         if (machine != null) {
             try {
-                machine.makeSandwich();
-                System.out.println("Sandwich made successfully.");
-            } catch (InsufficientResourcesException e) {
-                System.err.println("Error making sandwich: " + e.getMessage());
+                System.out.print("Number of sandwiches [1]: ");
+                String countText = scanner.nextLine().trim();
+                int count = countText.isEmpty() ? 1 : Integer.parseInt(countText);
+                int made = metrics.forMachine(fleet.idOf(machine)).makeSandwich(machine, count);
+                if (made == count) {
+                    System.out.println(count == 1 ? "Sandwich made successfully." : count + " sandwiches made successfully.");
+                } else {
+                    System.err.println("Error making sandwiches: not enough ingredients, made " + made + " of " + count + ".");
+                }
+                System.out.println(machine.getRemainingSandwiches() + " more sandwiches can be made.");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid number of sandwiches.");
             } catch (Exception e) {
                 System.err.println("Error: " + e.getMessage());
             }
@@ -242,13 +503,21 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param scanner the scanner to read user input
      */
     private void makeCoffee(Scanner scanner) {
-        CoffeeMachine machine = selectMachine(scanner, CoffeeMachine.class, "coffee");
+        CoffeeMachine machine = selectMachine(scanner, CoffeeMachine.class, MachineType.COFFEE);
         if (machine != null) {
             try {
-                machine.brewCoffee();
-                System.out.println("Coffee made successfully.");
-            } catch (InsufficientResourcesException e) {
-                System.err.println("Error making coffee: " + e.getMessage());
+                System.out.print("Number of coffees [1]: ");
+                String countText = scanner.nextLine().trim();
+                int count = countText.isEmpty() ? 1 : Integer.parseInt(countText);
+                int brewed = metrics.forMachine(fleet.idOf(machine)).brewCoffee(machine, count);
+                if (brewed == count) {
+                    System.out.println(count == 1 ? "Coffee made successfully." : count + " coffees made successfully.");
+                } else {
+                    System.err.println("Error making coffee: not enough ingredients, made " + brewed + " of " + count + ".");
+                }
+                System.out.println(machine.getRemainingCoffees() + " more coffees can be made.");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid number of coffees.");
             } catch (Exception e) {
                 System.err.println("Error: " + e.getMessage());
             }
@@ -261,7 +530,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param scanner the scanner to read user input
      */
     private void refillSandwichMachine(Scanner scanner) {
-        SandwichMachine machine = selectMachine(scanner, SandwichMachine.class, "sandwich");
+        SandwichMachine machine = selectMachine(scanner, SandwichMachine.class, MachineType.SANDWICH);
         if (machine != null) {
             try {
                 System.out.print("Enter ham amount to refill: ");
@@ -273,9 +542,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                 System.out.print("Enter bread amount to refill: ");
                 int bread = scanner.nextInt();
                 scanner.nextLine();
-                machine.refillHam(ham);
-                machine.refillCheese(cheese);
-                machine.refillBread(bread);
+                metrics.forMachine(fleet.idOf(machine)).refill(machine, ham, cheese, bread);
                 System.out.println("Sandwich machine refilled successfully.");
             } catch (InputMismatchException e) {
                 System.out.println("Invalid input. Please enter valid numbers for quantities.");
@@ -292,7 +559,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param scanner the scanner to read user input
      */
     private void refillCoffeeMachine(Scanner scanner) {
-        CoffeeMachine machine = selectMachine(scanner, CoffeeMachine.class, "coffee");
+        CoffeeMachine machine = selectMachine(scanner, CoffeeMachine.class, MachineType.COFFEE);
         if (machine != null) {
             try {
                 System.out.print("Enter water amount to refill: ");
@@ -304,9 +571,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
                 System.out.print("Enter sugar amount to refill: ");
                 int sugar = scanner.nextInt();
                 scanner.nextLine();
-                machine.refillWater(water);
-                machine.refillBeans(beans);
-                machine.refillSugar(sugar);
+                metrics.forMachine(fleet.idOf(machine)).refill(machine, water, beans, sugar);
                 System.out.println("Coffee machine refilled successfully.");
             } catch (InputMismatchException e) {
                 System.out.println("Invalid input. Please enter valid numbers for quantities.");
@@ -318,49 +583,40 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
     }
 
     /**
-     * Selects a vending machine from the list of available machines.
+     * Selects a vending machine by id. The candidates are only listed with their inventories
+     * when there are few of them, so selecting from a large fleet stays cheap.
      *
      * @param scanner the scanner to read user input
      * @param type the type of vending machine
-     * @param machineType the specific type of vending machine (e.g., "snack", "coffee", "sandwich", "all")
+     * @param machineType the specific type of vending machine, or null for all machines
      * @return the selected vending machine, or null if none selected
      */
-    private <T extends VendingMachine> T selectMachine(Scanner scanner, Class<T> type, String machineType) {
-        List<T> filteredMachines = new ArrayList<>();
-        for (VendingMachine machine : vendingMachines) {
-            if (type.isInstance(machine)) {
-                if (machineType.equals("snack") && !(machine instanceof CoffeeMachine) && !(machine instanceof SandwichMachine)) {
-                    filteredMachines.add(type.cast(machine));
-                } else if (machineType.equals("coffee") && machine instanceof CoffeeMachine) {
-                    filteredMachines.add(type.cast(machine));
-                } else if (machineType.equals("sandwich") && machine instanceof SandwichMachine) {
-                    filteredMachines.add(type.cast(machine));
-                } else if (machineType.equals("all")) {
-                    filteredMachines.add(type.cast(machine));
-                }
-            }
-        }
-
-        if (filteredMachines.isEmpty()) {
+    private <T extends VendingMachine> T selectMachine(Scanner scanner, Class<T> type, MachineType machineType) {
+        Map<Integer, VendingMachine> candidates = machineType != null ? fleet.machines(machineType) : fleet.machines();
+        int count = machineType != null ? fleet.size(machineType) : fleet.size();
+        if (count == 0) {
             System.out.println("No machines of the specified type available.");
             return null;
         }
 
         try {
-            System.out.println("Select a machine:");
-            for (int i = 0; i < filteredMachines.size(); i++) {
-                System.out.println((i + 1) + ". " + filteredMachines.get(i).displayInventory());
+            if (count <= MAX_LISTED_MACHINES) {
+                System.out.println("Select a machine:");
+                printInventories(candidates, InventoryFilter.ALL, 0);
+            } else {
+                System.out.println(count + " machines of the specified type available.");
             }
-            System.out.print("Choose machine number: ");
-            int machineNumber = scanner.nextInt();
+            System.out.print("Choose machine id: ");
+            int machineId = scanner.nextInt();
             scanner.nextLine();
-            if (machineNumber < 1 || machineNumber > filteredMachines.size()) {
-                System.out.println("Invalid machine number.");
+            VendingMachine machine = machineType != null ? fleet.get(machineId, machineType) : fleet.get(machineId);
+            if (!type.isInstance(machine)) {
+                System.out.println("Invalid machine id.");
                 return null;
             }
-            return filteredMachines.get(machineNumber - 1);
+            return type.cast(machine);
         } catch (InputMismatchException e) {
-            System.out.println("Invalid input. Please enter a valid machine number.");
+            System.out.println("Invalid input. Please enter a valid machine id.");
             scanner.nextLine();
             return null;
         } catch (Exception e) {
@@ -375,7 +631,7 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
      * @param machine the vending machine
      * @return the default file name
      */
-    private static String generateDefaultFileName(VendingMachine machine) {
+    static String generateDefaultFileName(VendingMachine machine) {
         if (machine instanceof CoffeeMachine) {
             return "coffee_machine.dat";
         } else if (machine instanceof SandwichMachine) {
@@ -387,6 +643,79 @@ public class VendingMachineConsole implements LoadTask.VendingMachineLoaderCallb
 
     @Override
     public void onLoadComplete(VendingMachine machine) {
-        vendingMachines.add(machine);
+        onLoadComplete(machine, null);
+    }
+
+    @Override
+    public void onLoadComplete(VendingMachine machine, TransactionLog log) {
+        System.out.println("Loaded machine registered with id " + adopt(machine, log) + ".");
+    }
+
+    @Override
+    public TransactionLog openTransactionLog(Path logPath) throws IOException {
+        return transactionLogFor(logPath);
+    }
+
+    /**
+     * Registers a new or loaded machine in the fleet and keeps its transaction log, so that
+     * later saves checkpoint it and exiting closes it. The machine's sales are recorded in the
+     * sales ledger, if there is one, under its serial rather than its fleet id.
+     *
+     * @param machine the new or loaded vending machine
+     * @param log the transaction log attached to the machine, or null if there is none
+     * @return the id of the machine
+     */
+    static int adopt(VendingMachine machine, TransactionLog log) {
+        if (log != null) {
+            transactionLogs.putIfAbsent(normalize(log.getPath()), log);
+        }
+        int id = fleet.register(machine);
+        if (ledger != null) {
+            ledger.attach(machine);
+        }
+        return id;
+    }
+
+    /**
+     * Saves the whole fleet to a fleet snapshot file, creating the file if it does not exist.
+     * A new file has room for twice the current fleet, and at least
+     * {@value #FLEET_FILE_CAPACITY} machines.
+     *
+     * @param file the fleet snapshot file
+     * @throws IOException if the file cannot be written or has no room for the fleet
+     */
+    static void saveFleet(Path file) throws IOException {
+        try (FleetSnapshotFile snapshot = Files.exists(file)
+                ? FleetSnapshotFile.open(file)
+                : FleetSnapshotFile.create(file, Math.max(FLEET_FILE_CAPACITY, fleet.size() * 2))) {
+            fleet.saveTo(snapshot);
+        }
+    }
+
+    /**
+     * Loads every machine of a fleet snapshot file into the fleet under its saved id.
+     *
+     * @param file the fleet snapshot file
+     * @return the number of machines loaded
+     * @throws IOException if the file cannot be read or is corrupt
+     * @throws IllegalArgumentException if one of the saved ids is already in use
+     */
+    static int loadFleet(Path file) throws IOException {
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            Map<Integer, VendingMachine> loaded = fleet.loadFrom(snapshot);
+            if (ledger != null) {
+                loaded.values().forEach(ledger::attach);
+            }
+            return loaded.size();
+        }
+    }
+
+    /**
+     * Gets the sales ledger set with {@code vending.ledger.dir}.
+     *
+     * @return the sales ledger, or null if sales are not recorded
+     */
+    static SalesLedger getSalesLedger() {
+        return ledger;
     }
 }
@@ -0,0 +1,252 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A small throughput benchmark harness in the spirit of JMH. Each benchmark runs a number of
+ * timed warmup and measurement iterations on one or more threads, and the results are
+ * reported as CSV on standard output and, optionally, as a JSON file that follows the
+ * layout of JMH's JSON result format so existing tooling can track it over time.
+ *
+ * <p>Where the JVM supports it, the bytes allocated by the benchmark threads are measured too
+ * and reported per invocation, like JMH's {@code gc.alloc.rate.norm}.
+ */
+public class BenchmarkRunner {
+    private static volatile long blackhole;
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * Constructs a new BenchmarkRunner.
+     *
+     * @param warmupIterations the number of untimed warmup iterations
+     * @param measurementIterations the number of measured iterations
+     * @param iterationMillis the duration of each iteration in milliseconds
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * A benchmarked operation. Implementations return a value derived from their work so the
+     * JIT cannot eliminate it.
+     */
+    public interface Operation {
+        /**
+         * Performs one invocation of the benchmarked operation.
+         *
+         * @param thread the index of the calling thread
+         * @param invocation the number of invocations this thread has made so far
+         * @return a value derived from the work
+         * @throws Exception if the operation fails
+         */
+        long invoke(int thread, long invocation) throws Exception;
+    }
+
+    /**
+     * Runs a benchmark and records its result.
+     *
+     * @param name the name of the benchmark
+     * @param params the parameters the benchmark was set up with
+     * @param threads the number of threads invoking the operation concurrently
+     * @param operation the operation to measure
+     * @throws Exception if the operation fails
+     */
+    public void run(String name, Map<String, String> params, int threads, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(threads, operation, new long[2]);
+        }
+        double[] scores = new double[measurementIterations];
+        long invocations = 0;
+        long allocated = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] totals = new long[2];
+            scores[i] = iteration(threads, operation, totals);
+            invocations += totals[0];
+            allocated += totals[1];
+        }
+        double bytesPerOp = THREADS == null || invocations == 0 ? Double.NaN : (double) allocated / invocations;
+        Result result = new Result(name, new LinkedHashMap<>(params), threads, scores, bytesPerOp);
+        results.add(result);
+        System.out.printf("%s,%s,%d,%.1f,%.1f,%.1f%n", name, params.toString().replace(',', ';'),
+                threads, result.mean(), result.error(), bytesPerOp);
+    }
+
+    /**
+     * Prints the CSV header that matches the lines printed by {@link #run}.
+     */
+    public static void printHeader() {
+        System.out.println("benchmark,params,threads,ops_per_s,error,bytes_per_op");
+    }
+
+    /**
+     * Writes all recorded results as a JSON array.
+     *
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.write("  {\"benchmark\": \"" + result.name + "\", \"mode\": \"thrpt\", \"threads\": " + result.threads
+                        + ", \"warmupIterations\": " + warmupIterations + ", \"measurementIterations\": " + measurementIterations
+                        + ", \"measurementTime\": \"" + iterationMillis + " ms\", \"params\": {");
+                int p = 0;
+                for (Map.Entry<String, String> param : result.params.entrySet()) {
+                    out.write((p++ > 0 ? ", " : "") + "\"" + param.getKey() + "\": \"" + param.getValue() + "\"");
+                }
+                out.write("}, \"primaryMetric\": {\"score\": " + result.mean() + ", \"scoreError\": " + result.error()
+                        + ", \"scoreUnit\": \"ops/s\", \"rawData\": [[");
+                for (int i = 0; i < result.scores.length; i++) {
+                    out.write((i > 0 ? ", " : "") + result.scores[i]);
+                }
+                out.write("]]}");
+                if (!Double.isNaN(result.bytesPerOp)) {
+                    out.write(", \"secondaryMetrics\": {\"gc.alloc.rate.norm\": {\"score\": " + result.bytesPerOp
+                            + ", \"scoreUnit\": \"B/op\"}}");
+                }
+                out.write("}" + (r < results.size() - 1 ? "," : "") + "\n");
+            }
+            out.write("]\n");
+        }
+    }
+
+    /**
+     * Runs one timed iteration.
+     *
+     * @param totals receives the number of invocations and the bytes allocated by the threads
+     * @return the throughput in invocations per second
+     */
+    private double iteration(int threads, Operation operation, long[] totals) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        long[] counts = new long[threads];
+        long[] allocations = new long[threads];
+        Exception[] failures = new Exception[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                long sink = 0;
+                long allocated = 0;
+                try {
+                    start.await();
+                    allocated = allocatedBytes();
+                    while (running.get()) {
+                        sink += operation.invoke(thread, count);
+                        count++;
+                    }
+                    allocated = allocatedBytes() - allocated;
+                } catch (Exception e) {
+                    failures[thread] = e;
+                }
+                counts[thread] = count;
+                allocations[thread] = allocated;
+                blackhole += sink;
+            }, "benchmark-" + t);
+            workers[t].start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        Thread.sleep(iterationMillis);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            if (failures[t] != null) {
+                throw failures[t];
+            }
+            total += counts[t];
+            totals[1] += allocations[t];
+        }
+        totals[0] = total;
+        return total * 1_000_000_000.0 / elapsed;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            // Allocation is then reported as NaN.
+        }
+        return null;
+    }
+
+    /**
+     * Gets the bytes allocated by the calling thread so far, or 0 if this cannot be measured.
+     */
+    private static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * The scores of one benchmark run.
+     */
+    private static final class Result {
+        private final String name;
+        private final Map<String, String> params;
+        private final int threads;
+        private final double[] scores;
+        private final double bytesPerOp;
+
+        Result(String name, Map<String, String> params, int threads, double[] scores, double bytesPerOp) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+            this.scores = scores;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * Gets the half-width of the 99.9% confidence interval of the mean, or 0 if there are
+         * too few iterations to estimate it.
+         */
+        double error() {
+            if (scores.length < 2) {
+                return 0;
+            }
+            double mean = mean();
+            double squares = 0;
+            for (double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            return 3.29 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+}
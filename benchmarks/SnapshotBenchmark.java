@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import persistence.MachineCodec;
+import specializedmachines.CoffeeMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * Compares the binary snapshot format against Java serialization for file size and
+ * save/load time.
+ *
+ * <p>Usage: {@code java benchmarks.SnapshotBenchmark [products] [iterations]}
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int products = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        VendingMachine snack = new VendingMachine("Snack Variety", 100);
+        for (int i = 0; i < products; i++) {
+            snack.addProduct("Product " + i, 50 + i % 200, 1 + i % 20);
+        }
+        VendingMachine coffee = new CoffeeMachine("Basic Coffee", 150, 1000, 500, 200);
+
+        Path dir = Files.createTempDirectory("snapshot-benchmark");
+        try {
+            System.out.println("format,machine,bytes,save_us,load_us");
+            run("java", "snack", snack, dir.resolve("snack.ser"), iterations, false);
+            run("binary", "snack", snack, dir.resolve("snack.vms"), iterations, true);
+            run("java", "coffee", coffee, dir.resolve("coffee.ser"), iterations, false);
+            run("binary", "coffee", coffee, dir.resolve("coffee.vms"), iterations, true);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void run(String format, String label, VendingMachine machine, Path file,
+                            int iterations, boolean binary) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            save(machine, file, binary);
+            load(file, binary);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            save(machine, file, binary);
+        }
+        long saveNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            load(file, binary);
+        }
+        long loadNanos = System.nanoTime() - start;
+        System.out.printf("%s,%s,%d,%.1f,%.1f%n", format, label, Files.size(file),
+                saveNanos / 1000.0 / iterations, loadNanos / 1000.0 / iterations);
+    }
+
+    private static void save(VendingMachine machine, Path file, boolean binary) throws IOException {
+        if (binary) {
+            MachineCodec.write(machine, file);
+        } else {
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                oos.writeObject(machine);
+            }
+        }
+    }
+
+    private static VendingMachine load(Path file, boolean binary) throws IOException, ClassNotFoundException {
+        if (binary) {
+            return MachineCodec.read(file);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return (VendingMachine) ois.readObject();
+        }
+    }
+}
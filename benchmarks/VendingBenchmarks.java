@@ -0,0 +1,322 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import exceptions.InsufficientResourcesException;
+import exceptions.VendingMachineException;
+import Templates.VendingMachineFactory;
+import persistence.MachineCodec;
+import persistence.SalesLedger;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.RecipeMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * Throughput benchmarks for the hot paths of the vending machines: purchases (hit, miss and
+ * out of stock, throwing and non-throwing), price lookups and bulk quotes, adding products, brewing coffee, making sandwiches, cloning,
+ * taking inventory snapshots and snapshot file round trips. Every benchmark runs for each catalog size and thread count;
+ * brewing and making sandwiches are lock-free, so they run multi-threaded too. Provisioning a
+ * fleet from a prototype runs once, with and without parallel construction, and so do the
+ * revenue scans of a sales ledger written to disk.
+ * Multi-threaded runs use the thread-safe inventory modes, and operations that are not safe
+ * for concurrent use only run single-threaded.
+ *
+ * <p>Usage: {@code java benchmarks.VendingBenchmarks [--catalog 100,10000] [--threads 1,4]
+ * [--warmup 3] [--iterations 5] [--time 500] [--filter name] [--json results.json]}
+ */
+public class VendingBenchmarks {
+    private static final int STOCK = 1 << 30;
+    private static final int BATCH = 50;
+    private static final int QUOTE = 100;
+    private static final int FLEET = 100_000;
+    private static final int LEDGER_ROWS = 1 << 22;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] catalogSizes = parseInts(options.getOrDefault("catalog", "100,10000"));
+        int[] threadCounts = parseInts(options.getOrDefault("threads", "1," + Runtime.getRuntime().availableProcessors()));
+        String filter = options.getOrDefault("filter", "");
+        BenchmarkRunner runner = new BenchmarkRunner(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                Integer.parseInt(options.getOrDefault("iterations", "5")), Long.parseLong(options.getOrDefault("time", "500")));
+
+        BenchmarkRunner.printHeader();
+        Path dir = Files.createTempDirectory("vending-benchmarks");
+        try {
+            for (int threads : threadCounts) {
+                for (VendingMachine.InventoryMode mode : VendingMachine.InventoryMode.values()) {
+                    if (threads > 1 && !mode.isThreadSafe()) {
+                        continue;
+                    }
+                    for (int catalogSize : catalogSizes) {
+                        runInventoryBenchmarks(runner, filter, threads, mode, catalogSize, dir);
+                    }
+                }
+                runIngredientBenchmarks(runner, filter, threads);
+            }
+            runFactoryBenchmarks(runner, filter);
+            runLedgerBenchmarks(runner, filter, dir);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+
+        if (options.containsKey("json")) {
+            runner.writeJson(Paths.get(options.get("json")));
+        }
+    }
+
+    private static void runInventoryBenchmarks(BenchmarkRunner runner, String filter, int threads,
+                                               VendingMachine.InventoryMode mode, int catalogSize, Path dir) throws Exception {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("mode", mode.name());
+        params.put("catalogSize", Integer.toString(catalogSize));
+        String[] names = new String[catalogSize];
+        String[] missing = new String[catalogSize];
+        for (int i = 0; i < catalogSize; i++) {
+            names[i] = "Product " + i;
+            missing[i] = "Missing " + i;
+        }
+        VendingMachine machine = stockedMachine(mode, names);
+        machine.addProduct("Sold Out", 100, 0);
+
+        if (selected("buyProduct.hit", filter)) {
+            runner.run("buyProduct.hit", params, threads, (thread, i) -> {
+                machine.buyProduct(names[(int) ((i * 7 + thread) % catalogSize)]);
+                return 1;
+            });
+        }
+        if (selected("buyProduct.hot", filter)) {
+            runner.run("buyProduct.hot", params, threads, (thread, i) -> {
+                machine.buyProduct(names[0]);
+                return 1;
+            });
+        }
+        if (selected("buyProduct.miss", filter)) {
+            runner.run("buyProduct.miss", params, threads, (thread, i) -> {
+                try {
+                    machine.buyProduct(missing[(int) (i % catalogSize)]);
+                    return 1;
+                } catch (VendingMachineException e) {
+                    return 0;
+                }
+            });
+        }
+        if (selected("buyProduct.outOfStock", filter)) {
+            runner.run("buyProduct.outOfStock", params, threads, (thread, i) -> {
+                try {
+                    machine.buyProduct("Sold Out");
+                    return 1;
+                } catch (VendingMachineException e) {
+                    return 0;
+                }
+            });
+        }
+        if (selected("tryBuy.miss", filter)) {
+            runner.run("tryBuy.miss", params, threads, (thread, i) -> machine.tryBuy(missing[(int) (i % catalogSize)]).ordinal());
+        }
+        if (selected("tryBuy.outOfStock", filter)) {
+            runner.run("tryBuy.outOfStock", params, threads, (thread, i) -> machine.tryBuy("Sold Out").ordinal());
+        }
+        if (selected("fetchPrice", filter)) {
+            runner.run("fetchPrice", params, threads, (thread, i) -> machine.fetchPrice(names[(int) ((i * 7 + thread) % catalogSize)]));
+        }
+        if (selected("priceOf.hit", filter)) {
+            runner.run("priceOf.hit", params, threads, (thread, i) -> machine.priceOf(names[(int) ((i * 7 + thread) % catalogSize)]));
+        }
+        if (selected("priceOf.miss", filter)) {
+            runner.run("priceOf.miss", params, threads, (thread, i) -> machine.priceOf(missing[(int) (i % catalogSize)]));
+        }
+        if (selected("quote", filter)) {
+            String[] menu = new String[QUOTE];
+            int[] menuIds = new int[QUOTE];
+            for (int i = 0; i < QUOTE; i++) {
+                menu[i] = names[(int) ((i * 7L) % catalogSize)];
+                menuIds[i] = machine.productId(menu[i]);
+            }
+            int[][] prices = new int[threads][QUOTE];
+            params.put("items", Integer.toString(QUOTE));
+            runner.run("quote.names", params, threads, (thread, i) -> machine.quote(menu, prices[thread]));
+            runner.run("quote.ids", params, threads, (thread, i) -> machine.quote(menuIds, prices[thread]));
+            params.remove("items");
+        }
+        if (selected("addProduct.restock", filter)) {
+            runner.run("addProduct.restock", params, threads, (thread, i) -> {
+                machine.addProduct(names[(int) ((i * 7 + thread) % catalogSize)], 100, 1);
+                return 1;
+            });
+        }
+        if (selected("addProduct.fillCatalog", filter)) {
+            runner.run("addProduct.fillCatalog", params, threads, (thread, i) -> stockedMachine(mode, names).getProductCount());
+        }
+        if (selected("clone", filter)) {
+            runner.run("clone", params, threads, (thread, i) -> machine.clone().getProductCount());
+        }
+        if (selected("snapshot.take", filter)) {
+            runner.run("snapshot.take", params, threads, (thread, i) -> machine.snapshot().getProductCount());
+        }
+        if (selected("snapshot.roundTrip", filter)) {
+            Path[] files = new Path[threads];
+            for (int t = 0; t < threads; t++) {
+                files[t] = dir.resolve("machine-" + t + ".vms");
+            }
+            runner.run("snapshot.roundTrip", params, threads, (thread, i) -> {
+                MachineCodec.write(machine, files[thread]);
+                return MachineCodec.read(files[thread]).getProductCount();
+            });
+        }
+    }
+
+    private static void runIngredientBenchmarks(BenchmarkRunner runner, String filter, int threads) throws Exception {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (selected("brewCoffee", filter)) {
+            int capacity = CoffeeMachine.RECIPES.getCapacity();
+            CoffeeMachine coffee = new CoffeeMachine("Basic Coffee", 150, capacity, capacity, capacity);
+            runner.run("brewCoffee", params, threads, (thread, i) -> {
+                try {
+                    coffee.brewCoffee();
+                    return 1;
+                } catch (InsufficientResourcesException e) {
+                    refill(coffee);
+                    return 0;
+                }
+            });
+        }
+        if (selected("brewCoffee.batch", filter)) {
+            int capacity = CoffeeMachine.RECIPES.getCapacity();
+            CoffeeMachine coffee = new CoffeeMachine("Basic Coffee", 150, capacity, capacity, capacity);
+            params.put("count", Integer.toString(BATCH));
+            runner.run("brewCoffee.batch", params, threads, (thread, i) -> {
+                int brewed = coffee.brewCoffee(BATCH);
+                if (brewed < BATCH) {
+                    refill(coffee);
+                }
+                return brewed;
+            });
+            params.remove("count");
+        }
+        if (selected("tryBrew.insufficient", filter)) {
+            CoffeeMachine empty = new CoffeeMachine("Basic Coffee", 150, 0, 0, 0);
+            runner.run("tryBrew.insufficient", params, threads, (thread, i) -> empty.tryBrew().ordinal());
+        }
+        if (selected("makeSandwich", filter)) {
+            int capacity = SandwichMachine.RECIPES.getCapacity();
+            SandwichMachine sandwich = new SandwichMachine("Basic Sandwich", 200, capacity, capacity, capacity);
+            runner.run("makeSandwich", params, threads, (thread, i) -> {
+                try {
+                    sandwich.makeSandwich();
+                    return 1;
+                } catch (InsufficientResourcesException e) {
+                    refill(sandwich);
+                    return 0;
+                }
+            });
+        }
+    }
+
+    private static void runFactoryBenchmarks(BenchmarkRunner runner, String filter) throws Exception {
+        if (!selected("createFleet", filter)) {
+            return;
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("count", Integer.toString(FLEET));
+        for (String prototype : new String[] {VendingMachineFactory.SNACK_PROTOTYPE, VendingMachineFactory.COFFEE_PROTOTYPE}) {
+            params.put("prototype", prototype);
+            for (boolean parallel : new boolean[] {false, true}) {
+                params.put("parallel", Boolean.toString(parallel));
+                runner.run("createFleet", params, 1, (thread, i) -> VendingMachineFactory.createFleet(prototype, FLEET, parallel).length);
+            }
+        }
+    }
+
+    private static void runLedgerBenchmarks(BenchmarkRunner runner, String filter, Path dir) throws Exception {
+        if (!selected("ledger", filter)) {
+            return;
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        try (SalesLedger ledger = SalesLedger.open(dir)) {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 64; i++) {
+                ledger.productCode("Product " + i);
+            }
+            for (int i = 0; i < LEDGER_ROWS; i++) {
+                ledger.record(i % 1000, i % 64, 50 + i % 200, 1 + i % 3, start + i);
+            }
+            ledger.flush();
+            // A month of sales at one per second per machine is a few billion rows; these
+            // scans show the cost per row read from the segment files.
+            long end = start + LEDGER_ROWS;
+            params.put("rows", Integer.toString(LEDGER_ROWS));
+            if (selected("ledger.revenue", filter)) {
+                runner.run("ledger.revenue", params, 1, (thread, i) -> ledger.revenue(start, end));
+                runner.run("ledger.revenue.range", params, 1, (thread, i) -> ledger.revenue(start + 1, end - 1));
+            }
+            if (selected("ledger.revenueByProduct", filter)) {
+                runner.run("ledger.revenueByProduct", params, 1, (thread, i) -> ledger.revenueByProduct(start, end).length);
+            }
+            if (selected("ledger.revenueByMachine", filter)) {
+                runner.run("ledger.revenueByMachine", params, 1, (thread, i) -> ledger.revenueByMachine(start, end).length);
+            }
+            if (selected("ledger.revenueByBucket", filter)) {
+                runner.run("ledger.revenueByBucket", params, 1, (thread, i) -> ledger.revenueByBucket(start, end, 1000).length);
+            }
+        }
+    }
+
+    /**
+     * Fills every ingredient of a machine up to its capacity. Servings only lower the levels, so
+     * one refill at a time cannot overflow them.
+     */
+    private static void refill(RecipeMachine machine) {
+        synchronized (machine) {
+            int capacity = machine.getRecipeBook().getCapacity();
+            for (int ingredient = 0; ingredient < machine.getRecipeBook().getIngredientCount(); ingredient++) {
+                machine.refill(ingredient, capacity - machine.getLevel(ingredient));
+            }
+        }
+    }
+
+    private static VendingMachine stockedMachine(VendingMachine.InventoryMode mode, String[] names) {
+        VendingMachine machine = new VendingMachine("Snack Variety", 100, mode);
+        for (int i = 0; i < names.length; i++) {
+            machine.addProduct(names[i], 50 + i % 200, STOCK);
+        }
+        return machine;
+    }
+
+    private static boolean selected(String benchmark, String filter) {
+        return benchmark.contains(filter);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static int[] parseInts(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Integer.parseInt(value.trim()));
+        }
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+package checks;
+
+import fleet.FleetRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import persistence.FleetSnapshotFile;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * Checks {@link FleetSnapshotFile}: machines read back as they were written, also after the
+ * file is reopened and after records outgrow their slots; a record written to the inactive
+ * slot is not seen until it is made active; files with a corrupt header or index entry are
+ * rejected with an {@code IOException} when they are opened; and a {@link FleetRegistry}
+ * saved to a file loads back under the same ids. It prints each failure and exits with
+ * status 1 if there is any.
+ *
+ * <p>Usage: {@code java checks.FleetSnapshotCheck}
+ */
+public class FleetSnapshotCheck {
+    // The on-disk layout documented in FleetSnapshotFile.
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 40;
+    private static final int COPY_SIZE = 16;
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        FleetSnapshotCheck check = new FleetSnapshotCheck();
+        Path dir = Files.createTempDirectory("fleet-snapshot-check");
+        try {
+            Path file = dir.resolve("fleet.dat");
+            check.checkRoundTrip(file);
+            check.checkReopen(file);
+            check.checkInactiveSlot(file);
+            check.checkCorruptIndex(dir, file);
+            check.checkRegistry(dir.resolve("registry.dat"));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        if (!check.failures.isEmpty()) {
+            for (String failure : check.failures) {
+                System.err.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("Fleet snapshot files round-trip and reject corrupt indexes.");
+    }
+
+    private void checkRoundTrip(Path file) throws IOException {
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.create(file, 4)) {
+            snapshot.put(1, new CoffeeMachine("Coffee", 150, 100, 50, 20));
+            snapshot.put(2, new SandwichMachine("Sandwich", 300, 40, 30, 60));
+            snapshot.put(3, snack(3));
+            expect("size", 3, snapshot.size());
+            expectMachines("round trip", snapshot, 3);
+
+            // Each rewrite goes to the other slot and the larger ones move to the end of the file.
+            for (int products = 10; products <= 200; products *= 2) {
+                snapshot.put(3, snack(products));
+                expect("snack with " + products + " products", products, snapshot.get(3).getProductCount());
+            }
+            snapshot.put(3, snack(3));
+            expectMachines("after rewrites", snapshot, 3);
+
+            snapshot.put(4, snack(1));
+            try {
+                snapshot.put(5, snack(1));
+                failures.add("put into a full index: expected an IOException");
+            } catch (IOException e) {
+                // Expected.
+            }
+            expect("size after a rejected put", 4, snapshot.size());
+        }
+    }
+
+    private void checkReopen(Path file) throws Exception {
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            expect("size after reopening", 4, snapshot.size());
+            expectMachines("after reopening", snapshot, 3);
+            expect("getAll after reopening", 4, snapshot.getAll().size());
+            CoffeeMachine coffee = (CoffeeMachine) snapshot.get(1);
+            coffee.brewCoffee();
+            snapshot.put(1, coffee);
+        }
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            expect("coffee water after a rewrite and reopening", 90, ((CoffeeMachine) snapshot.get(1)).getWaterLevel());
+        }
+    }
+
+    private void checkInactiveSlot(Path file) throws IOException {
+        // A crash before the switch leaves garbage in the inactive slot; the active one still loads.
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        int entry = HEADER_SIZE;
+        int inactive = entry + 8 + (1 - bytes.getInt(entry + 4)) * COPY_SIZE;
+        int offset = (int) bytes.getLong(inactive);
+        for (int i = 0; i < bytes.getInt(inactive + 8); i++) {
+            bytes.put(offset + i, (byte) 0x5A);
+        }
+        Files.write(file, bytes.array());
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            expect("coffee water with a torn inactive slot", 90, ((CoffeeMachine) snapshot.get(1)).getWaterLevel());
+        }
+    }
+
+    private void checkCorruptIndex(Path dir, Path file) throws IOException {
+        byte[] valid = Files.readAllBytes(file);
+        int second = HEADER_SIZE + ENTRY_SIZE;
+        expectRejected(dir, "entry count above the capacity", valid, bytes -> bytes.putInt(12, 5));
+        expectRejected(dir, "index capacity of zero", valid, bytes -> bytes.putInt(8, 0));
+        expectRejected(dir, "data end past the file", valid, bytes -> bytes.putLong(16, valid.length + 1L));
+        expectRejected(dir, "active copy out of range", valid, bytes -> bytes.putInt(second + 4, 7));
+        expectRejected(dir, "duplicate machine id", valid, bytes -> bytes.putInt(second, bytes.getInt(HEADER_SIZE)));
+        expectRejected(dir, "offset past the data end", valid,
+                bytes -> bytes.putLong(activeCopy(bytes, second), valid.length));
+        expectRejected(dir, "offset inside the index", valid, bytes -> bytes.putLong(activeCopy(bytes, second), 0));
+        expectRejected(dir, "length above the capacity", valid,
+                bytes -> bytes.putInt(activeCopy(bytes, second) + 12, bytes.getInt(activeCopy(bytes, second) + 8) + 1));
+        expectRejected(dir, "negative length", valid, bytes -> bytes.putInt(activeCopy(bytes, second) + 12, -1));
+        expectRejected(dir, "empty active copy", valid, bytes -> bytes.putInt(activeCopy(bytes, second) + 12, 0));
+    }
+
+    private void checkRegistry(Path file) throws IOException {
+        FleetRegistry fleet = new FleetRegistry();
+        fleet.register(new CoffeeMachine("Coffee", 150, 100, 50, 20));
+        fleet.register(7, snack(3));
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.create(file, 8)) {
+            fleet.saveTo(snapshot);
+        }
+        FleetRegistry loaded = new FleetRegistry();
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            loaded.loadFrom(snapshot);
+        }
+        expect("registry size", 2, loaded.size());
+        expect("registry coffee id", true, loaded.get(1, CoffeeMachine.class) != null);
+        expect("registry snack id", 3, loaded.get(7).getProductCount());
+        expect("registry next id", 8, loaded.register(snack(1)));
+
+        FleetRegistry taken = new FleetRegistry();
+        taken.register(7, snack(1));
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(file)) {
+            taken.loadFrom(snapshot);
+            failures.add("loading into a taken id: expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            expect("registry size after a rejected load", 1, taken.size());
+        }
+    }
+
+    private void expectRejected(Path dir, String what, byte[] valid, Consumer<ByteBuffer> corruption) throws IOException {
+        Path corrupt = dir.resolve("corrupt.dat");
+        ByteBuffer bytes = ByteBuffer.wrap(valid.clone());
+        corruption.accept(bytes);
+        Files.write(corrupt, bytes.array());
+        try (FleetSnapshotFile snapshot = FleetSnapshotFile.open(corrupt)) {
+            failures.add(what + ": expected an IOException, opened " + snapshot.size() + " machines");
+        } catch (IOException e) {
+            // Expected.
+        } catch (RuntimeException e) {
+            failures.add(what + ": expected an IOException, got " + e);
+        }
+    }
+
+    private static int activeCopy(ByteBuffer bytes, int entry) {
+        return entry + 8 + bytes.getInt(entry + 4) * COPY_SIZE;
+    }
+
+    private void expectMachines(String what, FleetSnapshotFile snapshot, int snackProducts) throws IOException {
+        CoffeeMachine coffee = (CoffeeMachine) snapshot.get(1);
+        expect(what + ": coffee water", true, coffee.getWaterLevel() == 100 || coffee.getWaterLevel() == 90);
+        expect(what + ": sandwich ham", 40, ((SandwichMachine) snapshot.get(2)).getHamQuantity());
+        VendingMachine snack = snapshot.get(3);
+        expect(what + ": snack mode", VendingMachine.InventoryMode.INDEXED, snack.getInventoryMode());
+        expect(what + ": snack products", snackProducts, snack.getProductCount());
+        expect(what + ": snack stock", 2, snack.productQuantity(snack.productId("Product 1")));
+        expect(what + ": missing machine", null, snapshot.get(99));
+    }
+
+    private static VendingMachine snack(int products) {
+        VendingMachine machine = new VendingMachine("Snack", 100, VendingMachine.InventoryMode.INDEXED);
+        for (int i = 0; i < products; i++) {
+            machine.addProduct("Product " + i, 100 + i, i + 1);
+        }
+        return machine;
+    }
+
+    private void expect(String what, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package checks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import persistence.PersistenceService;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * Checks that files saved with Java serialization by the first version of the project still
+ * load. The files are embedded below: an empty snack machine, a coffee machine after one
+ * coffee and a sandwich machine, as the original {@code SaveTask} wrote them. Products were
+ * not serializable then, so no saved machine holds any. The check also round-trips machines
+ * of every inventory mode through the current serialized form. It prints each failure and
+ * exits with status 1 if there is any.
+ *
+ * <p>Usage: {@code java checks.LegacyFormatCheck}
+ */
+public class LegacyFormatCheck {
+    private static final String SNACK = ""
+            + "rO0ABXNyAB52ZW5kaW5nbWFjaGluZXMuVmVuZGluZ01hY2hpbmUAAAAAAAAAAQIAAkkADXByb2R1Y3RBbW91bnRMAAhwcm9k"
+            + "dWN0c3QAD0xqYXZhL3V0aWwvTWFwO3hwAAAAAHNyABFqYXZhLnV0aWwuSGFzaE1hcAUH2sHDFmDRAwACRgAKbG9hZEZhY3Rv"
+            + "ckkACXRocmVzaG9sZHhwP0AAAAAAAAB3CAAAABAAAAAAeA==";
+    private static final String COFFEE = ""
+            + "rO0ABXNyACFzcGVjaWFsaXplZG1hY2hpbmVzLkNvZmZlZU1hY2hpbmUAAAAAAAAAAQIAA0kACWJlYW5MZXZlbEkACnN1Z2Fy"
+            + "TGV2ZWxJAAp3YXRlckxldmVseHIAHnZlbmRpbmdtYWNoaW5lcy5WZW5kaW5nTWFjaGluZQAAAAAAAAABAgACSQANcHJvZHVj"
+            + "dEFtb3VudEwACHByb2R1Y3RzdAAPTGphdmEvdXRpbC9NYXA7eHAAAAAAc3IAEWphdmEudXRpbC5IYXNoTWFwBQfawcMWYNED"
+            + "AAJGAApsb2FkRmFjdG9ySQAJdGhyZXNob2xkeHA/QAAAAAAAAHcIAAAAEAAAAAB4AAAA9QAAAGIAAAHq";
+    private static final String SANDWICH = ""
+            + "rO0ABXNyACNzcGVjaWFsaXplZG1hY2hpbmVzLlNhbmR3aWNoTWFjaGluZQAAAAAAAAABAgADSQANYnJlYWRRdWFudGl0eUkA"
+            + "DmNoZWVzZVF1YW50aXR5SQALaGFtUXVhbnRpdHl4cgAedmVuZGluZ21hY2hpbmVzLlZlbmRpbmdNYWNoaW5lAAAAAAAAAAEC"
+            + "AAJJAA1wcm9kdWN0QW1vdW50TAAIcHJvZHVjdHN0AA9MamF2YS91dGlsL01hcDt4cAAAAABzcgARamF2YS51dGlsLkhhc2hN"
+            + "YXAFB9rBwxZg0QMAAkYACmxvYWRGYWN0b3JJAAl0aHJlc2hvbGR4cD9AAAAAAAAAdwgAAAAQAAAAAHgAAAA8AAAAHgAAACg=";
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LegacyFormatCheck check = new LegacyFormatCheck();
+        Path dir = Files.createTempDirectory("legacy-format-check");
+        try {
+            check.checkLegacy(dir);
+            check.checkRoundTrip();
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        if (!check.failures.isEmpty()) {
+            for (String failure : check.failures) {
+                System.err.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("Legacy files and serialized round trips load correctly.");
+    }
+
+    private void checkLegacy(Path dir) throws Exception {
+        VendingMachine snack = load(dir, "snack.ser", SNACK);
+        expect("snack class", VendingMachine.class, snack.getClass());
+        expect("snack mode", VendingMachine.InventoryMode.STANDARD, snack.getInventoryMode());
+        expect("snack products", 0, snack.getProductCount());
+        expect("snack empty", true, snack.isEmpty());
+        snack.addProduct("Chips", 150, 2);
+        snack.buyProduct("Chips");
+        expect("snack stock after a sale", 1, snack.productQuantity(0));
+        expect("snack empty after restocking", false, snack.isEmpty());
+
+        CoffeeMachine coffee = (CoffeeMachine) load(dir, "coffee.ser", COFFEE);
+        expect("coffee water", 490, coffee.getWaterLevel());
+        expect("coffee beans", 245, coffee.getBeanLevel());
+        expect("coffee sugar", 98, coffee.getSugarLevel());
+        coffee.brewCoffee();
+        expect("coffee water after brewing", 480, coffee.getWaterLevel());
+
+        SandwichMachine sandwich = (SandwichMachine) load(dir, "sandwich.ser", SANDWICH);
+        expect("sandwich ham", 40, sandwich.getHamQuantity());
+        expect("sandwich cheese", 30, sandwich.getCheeseQuantity());
+        expect("sandwich bread", 60, sandwich.getBreadQuantity());
+        sandwich.makeSandwich();
+        expect("sandwich bread after making one", true, sandwich.getBreadQuantity() < 60);
+    }
+
+    private void checkRoundTrip() throws Exception {
+        for (VendingMachine.InventoryMode mode : VendingMachine.InventoryMode.values()) {
+            VendingMachine machine = new VendingMachine("Snack", 100, mode);
+            machine.addProduct("Chips", 150, 3);
+            machine.addProduct("Soda", 120, 1);
+            machine.buyProduct("Soda");
+            VendingMachine copy = roundTrip(machine);
+            expect(mode + " mode", mode, copy.getInventoryMode());
+            expect(mode + " products", 2, copy.getProductCount());
+            expect(mode + " chips", 3, copy.productQuantity(copy.productId("Chips")));
+            copy.buyProduct("Chips");
+            copy.buyProduct("Chips");
+            copy.buyProduct("Chips");
+            // Both products are sold out only if the in-stock counter was rebuilt correctly.
+            expect(mode + " empty after selling out", true, copy.isEmpty());
+        }
+        CoffeeMachine coffee = (CoffeeMachine) roundTrip(new CoffeeMachine("Coffee", 150, 100, 50, 20));
+        expect("coffee round trip", 100, coffee.getWaterLevel());
+    }
+
+    private static VendingMachine load(Path dir, String name, String base64) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, Base64.getDecoder().decode(base64));
+        return PersistenceService.read(file);
+    }
+
+    private static VendingMachine roundTrip(VendingMachine machine) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(machine);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (VendingMachine) in.readObject();
+        }
+    }
+
+    private void expect(String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
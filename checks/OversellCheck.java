@@ -0,0 +1,186 @@
+package checks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import vendingmachines.OperationStatus;
+import vendingmachines.VendingMachine;
+
+/**
+ * Checks that the thread-safe inventory modes never oversell. Many threads buy the same few
+ * products while some of them restock, so products keep selling out and coming back. A
+ * watcher thread fails the check if it ever sees a negative quantity.
+ *
+ * <p>At the end, every product must hold its initial stock plus the restocks minus the units
+ * sold. The machine's count of products in stock must also match: the check sells the
+ * remaining stock one product at a time and compares {@code needsRefill()} and
+ * {@code isEmpty()} with the true count after each one. The check prints each failure and
+ * exits with status 1 if there is any.
+ *
+ * <p>Usage: {@code java checks.OversellCheck [--threads 16] [--products 8] [--stock 1000]
+ * [--operations 200000]}
+ */
+public class OversellCheck {
+    private static final int RESTOCK = 50;
+    private static final int RESTOCK_EVERY = 1000;
+
+    private final int threads;
+    private final int products;
+    private final int stock;
+    private final int operations;
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * Constructs a new OversellCheck.
+     *
+     * @param threads the number of threads buying at the same time
+     * @param products the number of products in the machine
+     * @param stock the initial stock of each product
+     * @param operations the number of purchases each thread attempts
+     */
+    public OversellCheck(int threads, int products, int stock, int operations) {
+        this.threads = threads;
+        this.products = products;
+        this.stock = stock;
+        this.operations = operations;
+    }
+
+    /**
+     * Runs the check on a machine of one inventory mode.
+     *
+     * @param mode a thread-safe inventory mode
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    void run(VendingMachine.InventoryMode mode) throws InterruptedException {
+        VendingMachine machine = new VendingMachine("Snack", 100, mode);
+        String[] names = new String[products];
+        for (int p = 0; p < products; p++) {
+            names[p] = "Product " + p;
+            machine.addProduct(names[p], 100 + p, stock);
+        }
+        long[][] sold = new long[threads][products];
+        long[][] added = new long[threads][products];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] buyers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            buyers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                awaitQuietly(start);
+                for (int i = 1; i <= operations; i++) {
+                    int product = random.nextInt(products);
+                    if (machine.tryBuy(names[product]) == OperationStatus.OK) {
+                        sold[thread][product]++;
+                    }
+                    if (thread % 4 == 0 && i % RESTOCK_EVERY == 0) {
+                        machine.addProduct(names[product], 100 + product, RESTOCK);
+                        added[thread][product] += RESTOCK;
+                    }
+                }
+            }, "oversell-buyer-" + t);
+            buyers[t].start();
+        }
+        int[] lowest = {Integer.MAX_VALUE};
+        Thread watcher = new Thread(() -> {
+            awaitQuietly(start);
+            while (!Thread.currentThread().isInterrupted()) {
+                for (int p = 0; p < products; p++) {
+                    lowest[0] = Math.min(lowest[0], machine.productQuantity(p));
+                }
+            }
+        }, "oversell-watcher");
+        watcher.start();
+        start.countDown();
+        for (Thread buyer : buyers) {
+            buyer.join();
+        }
+        watcher.interrupt();
+        watcher.join();
+
+        if (lowest[0] < 0) {
+            failures.add(mode + ": a quantity went down to " + lowest[0]);
+        }
+        long totalSold = 0;
+        for (int p = 0; p < products; p++) {
+            long expected = stock;
+            for (int t = 0; t < threads; t++) {
+                expected += added[t][p] - sold[t][p];
+                totalSold += sold[t][p];
+            }
+            int quantity = machine.productQuantity(p);
+            if (quantity < 0 || quantity != expected) {
+                failures.add(mode + ": " + names[p] + " holds " + quantity + ", expected " + expected);
+            }
+        }
+        checkInStockCount(mode, machine, names);
+        System.out.printf("%s: %d threads sold %d units of %d products%n", mode, threads, totalSold, products);
+    }
+
+    /**
+     * Sells the remaining stock one product at a time and checks after each product that the
+     * machine's count of products in stock agrees with the quantities.
+     */
+    private void checkInStockCount(VendingMachine.InventoryMode mode, VendingMachine machine, String[] names) {
+        int inStock = 0;
+        for (int p = 0; p < products; p++) {
+            if (machine.productQuantity(p) > 0) {
+                inStock++;
+            }
+        }
+        checkCount(mode, machine, inStock);
+        for (int p = 0; p < products; p++) {
+            if (machine.productQuantity(p) == 0) {
+                continue;
+            }
+            while (machine.tryBuy(names[p]) == OperationStatus.OK) {
+                // Sell out the product.
+            }
+            inStock--;
+            checkCount(mode, machine, inStock);
+        }
+    }
+
+    private void checkCount(VendingMachine.InventoryMode mode, VendingMachine machine, int inStock) {
+        if (machine.isEmpty() != (inStock == 0) || machine.needsRefill() != (inStock < 5)) {
+            failures.add(mode + ": with " + inStock + " products in stock, isEmpty() is " + machine.isEmpty()
+                    + " and needsRefill() is " + machine.needsRefill());
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        OversellCheck check = new OversellCheck(Integer.parseInt(options.getOrDefault("threads", "16")),
+                Integer.parseInt(options.getOrDefault("products", "8")),
+                Integer.parseInt(options.getOrDefault("stock", "1000")),
+                Integer.parseInt(options.getOrDefault("operations", "200000")));
+        for (VendingMachine.InventoryMode mode : VendingMachine.InventoryMode.values()) {
+            if (mode.isThreadSafe()) {
+                check.run(mode);
+            }
+        }
+        if (!check.failures.isEmpty()) {
+            for (String failure : check.failures) {
+                System.err.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("No product was oversold and the in-stock counts match.");
+    }
+}
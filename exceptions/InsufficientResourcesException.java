@@ -1,9 +1,13 @@
 package exceptions;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * This exception is thrown when there are insufficient resources to complete an operation.
  */
 public class InsufficientResourcesException extends VendingMachineException {
+    private static final Map<String, InsufficientResourcesException> CACHED = new ConcurrentHashMap<>();
     private String operation;
 
     /**
@@ -17,6 +21,31 @@ public class InsufficientResourcesException extends VendingMachineException {
         this.operation = operation;
     }
 
+    /**
+     * Constructs a new exception with the specified detail message and operation, optionally
+     * without a stack trace.
+     *
+     * @param message the detail message
+     * @param operation the operation that caused the exception
+     * @param stackTrace false to skip filling in the stack trace
+     */
+    public InsufficientResourcesException(String message, String operation, boolean stackTrace) {
+        super(message, stackTrace);
+        this.operation = operation;
+    }
+
+    /**
+     * Gets a shared stackless exception for an operation. The instance is created on first use
+     * and reused afterwards, so throwing it does not allocate.
+     *
+     * @param operation the operation that lacks resources
+     * @return the shared exception
+     */
+    public static InsufficientResourcesException cached(String operation) {
+        return CACHED.computeIfAbsent(operation,
+                key -> new InsufficientResourcesException("Not enough ingredients to perform " + key + ".", key, false));
+    }
+
     /**
      * Gets the operation that caused the exception.
      *
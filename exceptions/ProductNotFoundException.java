@@ -4,6 +4,7 @@ package exceptions;
  * This exception is thrown when a product is not found in the vending machine.
  */
 public class ProductNotFoundException extends VendingMachineException {
+    private static final ProductNotFoundException NOT_FOUND = new ProductNotFoundException("Product not found", false);
 
     /**
      * Constructs a new exception with the specified detail message.
@@ -13,4 +14,24 @@ public class ProductNotFoundException extends VendingMachineException {
     public ProductNotFoundException(String message) {
         super(message);
     }
+
+    /**
+     * Constructs a new exception with the specified detail message, optionally without a stack trace.
+     *
+     * @param message the detail message
+     * @param stackTrace false to skip filling in the stack trace
+     */
+    public ProductNotFoundException(String message, boolean stackTrace) {
+        super(message, stackTrace);
+    }
+
+    /**
+     * Gets a shared stackless exception for a product not being found. Throwing it does not
+     * allocate, but its message does not name the product.
+     *
+     * @return the shared exception
+     */
+    public static ProductNotFoundException cached() {
+        return NOT_FOUND;
+    }
 }
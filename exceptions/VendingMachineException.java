@@ -4,6 +4,7 @@ package exceptions;
  * Base class for exceptions thrown by the vending machine.
  */
 public class VendingMachineException extends Exception {
+    private static final VendingMachineException OUT_OF_STOCK = new VendingMachineException("Product out of stock", false);
 
     /**
      * Constructs a new exception with the specified detail message.
@@ -13,4 +14,27 @@ public class VendingMachineException extends Exception {
     public VendingMachineException(String message) {
         super(message);
     }
+
+    /**
+     * Constructs a new exception with the specified detail message, optionally without a stack
+     * trace. Filling in the stack trace is most of the cost of creating an exception, and it
+     * carries no information for expected failures such as a stock-out.
+     *
+     * @param message the detail message
+     * @param stackTrace false to skip filling in the stack trace
+     */
+    public VendingMachineException(String message, boolean stackTrace) {
+        super(message, null, stackTrace, stackTrace);
+    }
+
+    /**
+     * Gets a shared stackless exception for a product being out of stock, which is what
+     * purchases throw this class for. Throwing it does not allocate, but its message does not
+     * name the product. Subclasses offer their own {@code cached} instances.
+     *
+     * @return the shared exception
+     */
+    public static VendingMachineException cached() {
+        return OUT_OF_STOCK;
+    }
 }
@@ -0,0 +1,252 @@
+package fleet;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import interfaces.MachineListener;
+import vendingmachines.Recipe;
+import vendingmachines.RecipeBook;
+import vendingmachines.RecipeMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * Fleet-wide totals that are kept up to date on every mutation, so dashboards read them in
+ * constant time instead of visiting every product of every machine.
+ *
+ * <p>Tracked machines report their mutations to the aggregates, which add the change to
+ * striped {@link LongAdder} counters: many threads can sell from different machines without
+ * contending on one counter. The totals are the number of machines of each type, the units in
+ * stock, the units sold and the revenue, and the level of every ingredient summed over the
+ * recipe machines.
+ *
+ * <p>A machine's current stock and ingredient levels are counted when it is tracked and
+ * subtracted when it is untracked; its sales stay in the totals. Machines should be tracked
+ * before other threads use them, as changes made while tracking starts may be counted
+ * twice or missed. Replacing all products with {@link VendingMachine#setProducts} is not
+ * reported to listeners, so a machine should be untracked and tracked again around it.
+ */
+public class FleetAggregates {
+    private final Map<MachineType, LongAdder> machines = new EnumMap<>(MachineType.class);
+    private final LongAdder unitsInStock = new LongAdder();
+    private final LongAdder unitsSold = new LongAdder();
+    private final LongAdder revenue = new LongAdder();
+    private final Map<String, LongAdder> ingredients = new ConcurrentHashMap<>();
+    private final Map<Integer, Tracker> trackers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new FleetAggregates with no machines.
+     */
+    public FleetAggregates() {
+        for (MachineType type : MachineType.values()) {
+            machines.put(type, new LongAdder());
+        }
+    }
+
+    /**
+     * Starts tracking a machine and adds its current stock to the totals. Tracking a new
+     * machine under an id that is already tracked replaces the old machine.
+     *
+     * @param machineId the id of the machine
+     * @param machine the vending machine
+     */
+    public void track(int machineId, VendingMachine machine) {
+        Tracker tracker = new Tracker(machine);
+        Tracker previous = trackers.put(machineId, tracker);
+        if (previous != null) {
+            previous.stop();
+        }
+        machine.addListener(tracker);
+        tracker.start();
+    }
+
+    /**
+     * Stops tracking a machine and subtracts its current stock from the totals.
+     *
+     * @param machineId the id of the machine
+     */
+    public void untrack(int machineId) {
+        Tracker tracker = trackers.remove(machineId);
+        if (tracker != null) {
+            tracker.stop();
+        }
+    }
+
+    /**
+     * Gets the number of tracked machines.
+     *
+     * @return the number of machines
+     */
+    public long getMachineCount() {
+        long total = 0;
+        for (LongAdder count : machines.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of tracked machines of a type.
+     *
+     * @param type the machine type
+     * @return the number of machines
+     */
+    public long getMachineCount(MachineType type) {
+        return machines.get(type).sum();
+    }
+
+    /**
+     * Gets the units of all products in stock across the tracked machines.
+     *
+     * @return the number of units
+     */
+    public long getUnitsInStock() {
+        return unitsInStock.sum();
+    }
+
+    /**
+     * Gets the units sold by the tracked machines since they were tracked.
+     *
+     * @return the number of units
+     */
+    public long getUnitsSold() {
+        return unitsSold.sum();
+    }
+
+    /**
+     * Gets the revenue of the units sold by the tracked machines since they were tracked.
+     *
+     * @return the revenue
+     */
+    public long getRevenue() {
+        return revenue.sum();
+    }
+
+    /**
+     * Gets the level of an ingredient summed over the tracked recipe machines.
+     *
+     * @param ingredient the name of the ingredient, such as "water" or "bread"
+     * @return the total level, or 0 if no tracked machine uses the ingredient
+     */
+    public long getIngredientLevel(String ingredient) {
+        LongAdder level = ingredients.get(ingredient);
+        return level != null ? level.sum() : 0;
+    }
+
+    /**
+     * Gets the levels of all ingredients summed over the tracked recipe machines.
+     *
+     * @return the total level of each ingredient, sorted by name
+     */
+    public Map<String, Long> getIngredientLevels() {
+        Map<String, Long> levels = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : ingredients.entrySet()) {
+            levels.put(entry.getKey(), entry.getValue().sum());
+        }
+        return levels;
+    }
+
+    /**
+     * Formats the totals as text.
+     *
+     * @return the totals, one per line
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder("Machines:");
+        for (MachineType type : MachineType.values()) {
+            text.append(' ').append(type.name().toLowerCase()).append('=').append(getMachineCount(type));
+        }
+        text.append("\nUnits in stock: ").append(getUnitsInStock())
+                .append("\nUnits sold: ").append(getUnitsSold())
+                .append("\nRevenue: ").append(getRevenue()).append('\n');
+        Map<String, Long> levels = getIngredientLevels();
+        if (!levels.isEmpty()) {
+            text.append("Ingredients:");
+            for (Map.Entry<String, Long> level : levels.entrySet()) {
+                text.append(' ').append(level.getKey()).append('=').append(level.getValue());
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Listener that adds the changes of one machine to the totals. Recipe machines resolve
+     * their ingredient counters once, so a serving only touches the adders.
+     */
+    private class Tracker implements MachineListener {
+        private final VendingMachine machine;
+        private final RecipeBook book;
+        private final LongAdder[] levels;
+
+        Tracker(VendingMachine machine) {
+            this.machine = machine;
+            if (machine instanceof RecipeMachine) {
+                book = ((RecipeMachine) machine).getRecipeBook();
+                levels = new LongAdder[book.getIngredientCount()];
+                for (int i = 0; i < levels.length; i++) {
+                    levels[i] = ingredients.computeIfAbsent(book.getIngredient(i), name -> new LongAdder());
+                }
+            } else {
+                book = null;
+                levels = new LongAdder[0];
+            }
+        }
+
+        @Override
+        public void productAdded(VendingMachine machine, int productId, String name, int price, int quantity) {
+            unitsInStock.add(quantity);
+        }
+
+        @Override
+        public void productBought(VendingMachine machine, int productId, int price, int quantity) {
+            unitsInStock.add(-quantity);
+            unitsSold.add(quantity);
+            revenue.add((long) price * quantity);
+        }
+
+        @Override
+        public void operationPerformed(VendingMachine machine, String operation, int amount) {
+            if (book == null) {
+                return;
+            }
+            int recipe = book.indexOfRecipe(operation);
+            if (recipe >= 0) {
+                Recipe served = book.getRecipes().get(recipe);
+                for (int i = 0; i < levels.length; i++) {
+                    levels[i].add(-(long) served.getAmount(i) * amount);
+                }
+                return;
+            }
+            for (int i = 0; i < levels.length; i++) {
+                if (book.getRefillOperation(i).equals(operation)) {
+                    levels[i].add(amount);
+                    return;
+                }
+            }
+        }
+
+        void start() {
+            add(1);
+        }
+
+        void stop() {
+            machine.removeListener(this);
+            add(-1);
+        }
+
+        /**
+         * Adds or subtracts the machine and its current stock.
+         */
+        private void add(int sign) {
+            machines.get(MachineType.of(machine)).add(sign);
+            long[] units = new long[1];
+            machine.forEachProduct((id, name, price, quantity) -> units[0] += quantity);
+            unitsInStock.add(sign * units[0]);
+            for (int i = 0; i < levels.length; i++) {
+                levels[i].add(sign * (long) ((RecipeMachine) machine).getLevel(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package fleet;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import vendingmachines.VendingMachine;
+
+/**
+ * Runs the operations of a fleet on a fixed set of single-threaded event loops, one per
+ * core by default. The fleet is partitioned by machine id: every machine belongs to exactly
+ * one loop, and all operations on it are submitted to that loop as messages. A machine is
+ * therefore only ever touched by one thread, so machines in the unsynchronized
+ * {@link VendingMachine.InventoryMode#STANDARD} and {@link VendingMachine.InventoryMode#INDEXED}
+ * modes can be shared by any number of callers, as long as every caller goes through the
+ * executor.
+ *
+ * <p>A loop drains its queue in batches: it applies up to {@link #MAX_BATCH} operations
+ * back to back and only then completes their futures, so callbacks attached to the futures
+ * do not interleave with the work on the machines. A loop with nothing to do parks, and
+ * callers only wake it when it is parked.
+ */
+public class FleetExecutor implements Closeable {
+    /** The most operations a loop applies before completing their futures. */
+    public static final int MAX_BATCH = 256;
+
+    private final FleetRegistry fleet;
+    private final Shard[] shards;
+    private volatile boolean closed;
+
+    /**
+     * An operation on one machine.
+     *
+     * @param <T> the type of the result
+     */
+    public interface MachineTask<T> {
+        /**
+         * Applies the operation. Called on the loop that owns the machine.
+         *
+         * @param machine the vending machine
+         * @return the result of the operation
+         * @throws Exception if the operation fails; the future completes with the exception
+         */
+        T apply(VendingMachine machine) throws Exception;
+    }
+
+    /**
+     * Constructs a new FleetExecutor with one loop per available processor.
+     *
+     * @param fleet the machines to run operations on
+     */
+    public FleetExecutor(FleetRegistry fleet) {
+        this(fleet, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new FleetExecutor and starts its loops.
+     *
+     * @param fleet the machines to run operations on
+     * @param shardCount the number of event loops
+     */
+    public FleetExecutor(FleetRegistry fleet, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.fleet = fleet;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Gets the number of event loops.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the loop that owns a machine.
+     *
+     * @param machineId the id of the machine
+     * @return the index of the shard, between 0 and the shard count - 1
+     */
+    public int shardOf(int machineId) {
+        return Math.floorMod(machineId, shards.length);
+    }
+
+    /**
+     * Gets the number of operations the loops have completed.
+     *
+     * @return the number of operations
+     */
+    public long getCompletedCount() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.completed;
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of batches the loops have drained. Together with
+     * {@link #getCompletedCount()} this gives the average batch size.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.batches;
+        }
+        return total;
+    }
+
+    /**
+     * Submits an operation to the loop that owns a machine. Operations on the same machine
+     * run in the order they were submitted by each caller.
+     *
+     * @param machineId the id of the machine
+     * @param task the operation
+     * @param <T> the type of the result
+     * @return a future completed with the result on the owning loop. It fails with an
+     *         {@link IllegalArgumentException} if there is no machine with the id, and with a
+     *         {@link RejectedExecutionException} if the executor is closed
+     */
+    public <T> CompletableFuture<T> submit(int machineId, MachineTask<T> task) {
+        Message<T> message = new Message<>(machineId, task);
+        if (closed) {
+            message.future.completeExceptionally(new RejectedExecutionException("Fleet executor is closed"));
+            return message.future;
+        }
+        Shard shard = shards[shardOf(machineId)];
+        shard.queue.add(message);
+        if (closed && shard.queue.remove(message)) {
+            // The loop may have stopped before seeing the message. Earlier messages are left
+            // to the loop and to close().
+            message.future.completeExceptionally(new RejectedExecutionException("Fleet executor is closed"));
+        } else if (shard.parked) {
+            LockSupport.unpark(shard.thread);
+        }
+        return message.future;
+    }
+
+    /**
+     * Stops the loops after they have run every operation submitted so far. Operations
+     * submitted afterwards are rejected.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            shard.rejectPending();
+        }
+    }
+
+    /**
+     * An operation waiting in the queue of a loop.
+     */
+    private static final class Message<T> {
+        private final int machineId;
+        private final MachineTask<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+        private Throwable failure;
+
+        Message(int machineId, MachineTask<T> task) {
+            this.machineId = machineId;
+            this.task = task;
+        }
+
+        void run(VendingMachine machine) {
+            if (machine == null) {
+                failure = new IllegalArgumentException("No machine with id " + machineId);
+                return;
+            }
+            try {
+                result = task.apply(machine);
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+
+    /**
+     * One event loop. Only the loop thread writes its counters.
+     */
+    private final class Shard implements Runnable {
+        private final Queue<Message<?>> queue = new ConcurrentLinkedQueue<>();
+        private final Message<?>[] batch = new Message<?>[MAX_BATCH];
+        private final Thread thread;
+        private volatile boolean parked;
+        private volatile long completed;
+        private volatile long batches;
+
+        Shard(int index) {
+            thread = new Thread(this, "fleet-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int size = drain();
+                if (size > 0) {
+                    continue;
+                }
+                if (closed) {
+                    // Anything queued from now on is rejected by close() or by the late submit.
+                    return;
+                }
+                parked = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        /**
+         * Applies up to {@link #MAX_BATCH} queued operations, then completes their futures.
+         *
+         * @return the number of operations applied
+         */
+        private int drain() {
+            int size = 0;
+            Message<?> message;
+            while (size < MAX_BATCH && (message = queue.poll()) != null) {
+                message.run(fleet.get(message.machineId));
+                batch[size++] = message;
+            }
+            if (size == 0) {
+                return 0;
+            }
+            completed = completed + size;
+            batches = batches + 1;
+            for (int i = 0; i < size; i++) {
+                batch[i].complete();
+                batch[i] = null;
+            }
+            return size;
+        }
+
+        void rejectPending() {
+            Message<?> message;
+            while ((message = queue.poll()) != null) {
+                message.future.completeExceptionally(new RejectedExecutionException("Fleet executor is closed"));
+            }
+        }
+    }
+}
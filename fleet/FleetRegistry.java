@@ -0,0 +1,315 @@
+package fleet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import persistence.FleetSnapshotFile;
+import vendingmachines.VendingMachine;
+
+/**
+ * A registry of all vending machines in a fleet. Each machine gets a stable id when it is
+ * registered. Machines can be looked up by id in constant time and listed per type through
+ * secondary indexes. All operations are safe to call from any thread.
+ *
+ * <p>A registry constructed with {@link FleetAggregates} or a {@link RefillIndex} tracks every
+ * registered machine in them, so the fleet-wide totals and the machines needing service follow
+ * registrations and removals.
+ */
+public class FleetRegistry {
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final NavigableMap<Integer, VendingMachine> machines = new ConcurrentSkipListMap<>();
+    private final Map<Integer, VendingMachine> byId = new ConcurrentHashMap<>();
+    private final Map<VendingMachine, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<MachineType, NavigableMap<Integer, VendingMachine>> byType = new EnumMap<>(MachineType.class);
+    private final Map<MachineType, AtomicInteger> typeCounts = new EnumMap<>(MachineType.class);
+    private final FleetAggregates aggregates;
+    private final RefillIndex refills;
+
+    /**
+     * Constructs a new, empty FleetRegistry.
+     */
+    public FleetRegistry() {
+        this(null, null);
+    }
+
+    /**
+     * Constructs a new, empty FleetRegistry that keeps fleet-wide totals.
+     *
+     * @param aggregates the totals to track registered machines in, or null for none
+     */
+    public FleetRegistry(FleetAggregates aggregates) {
+        this(aggregates, null);
+    }
+
+    /**
+     * Constructs a new, empty FleetRegistry that keeps an index of the machines needing service.
+     *
+     * @param refills the index to track registered machines in, or null for none
+     */
+    public FleetRegistry(RefillIndex refills) {
+        this(null, refills);
+    }
+
+    /**
+     * Constructs a new, empty FleetRegistry that keeps fleet-wide totals and an index of the
+     * machines needing service.
+     *
+     * @param aggregates the totals to track registered machines in, or null for none
+     * @param refills the index to track registered machines in, or null for none
+     */
+    public FleetRegistry(FleetAggregates aggregates, RefillIndex refills) {
+        this.aggregates = aggregates;
+        this.refills = refills;
+        for (MachineType type : MachineType.values()) {
+            byType.put(type, new ConcurrentSkipListMap<>());
+            typeCounts.put(type, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Registers a machine and assigns it the next free id. Registering a machine that is
+     * already in the fleet returns its existing id.
+     *
+     * @param machine the vending machine to register
+     * @return the id of the machine
+     */
+    public int register(VendingMachine machine) {
+        Integer existing = ids.get(machine);
+        if (existing != null) {
+            return existing;
+        }
+        while (true) {
+            int id = nextId.getAndIncrement();
+            if (byId.putIfAbsent(id, machine) != null) {
+                // Taken by a concurrent registration under an explicit id.
+                continue;
+            }
+            Integer previous = ids.putIfAbsent(machine, id);
+            if (previous != null) {
+                byId.remove(id, machine);
+                return previous;
+            }
+            index(id, machine);
+            return id;
+        }
+    }
+
+    /**
+     * Registers a machine under a given id, for example when restoring a fleet snapshot.
+     *
+     * @param id the id of the machine
+     * @param machine the vending machine to register
+     * @throws IllegalArgumentException if the id or the machine is already registered
+     */
+    public void register(int id, VendingMachine machine) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Machine ids must be positive: " + id);
+        }
+        if (byId.putIfAbsent(id, machine) != null) {
+            throw new IllegalArgumentException("Machine id already registered: " + id);
+        }
+        if (ids.putIfAbsent(machine, id) != null) {
+            byId.remove(id);
+            throw new IllegalArgumentException("Machine already registered");
+        }
+        index(id, machine);
+        nextId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    /**
+     * Removes a machine from the fleet.
+     *
+     * @param id the id of the machine
+     * @return the removed machine, or null if there was none with that id
+     */
+    public VendingMachine remove(int id) {
+        VendingMachine machine = byId.remove(id);
+        if (machine != null) {
+            MachineType type = MachineType.of(machine);
+            machines.remove(id);
+            byType.get(type).remove(id);
+            typeCounts.get(type).decrementAndGet();
+            ids.remove(machine);
+            if (aggregates != null) {
+                aggregates.untrack(id);
+            }
+            if (refills != null) {
+                refills.untrack(id);
+            }
+        }
+        return machine;
+    }
+
+    /**
+     * Gets the fleet-wide totals of the registered machines.
+     *
+     * @return the aggregates, or null if the registry keeps none
+     */
+    public FleetAggregates getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * Gets the index of the registered machines that need service.
+     *
+     * @return the refill index, or null if the registry keeps none
+     */
+    public RefillIndex getRefillIndex() {
+        return refills;
+    }
+
+    /**
+     * Gets a machine by id.
+     *
+     * @param id the id of the machine
+     * @return the machine, or null if there is none with that id
+     */
+    public VendingMachine get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Gets a machine by id if it is of the given class.
+     *
+     * @param id the id of the machine
+     * @param type the expected class of the machine
+     * @return the machine, or null if there is none with that id and class
+     */
+    public <T extends VendingMachine> T get(int id, Class<T> type) {
+        VendingMachine machine = byId.get(id);
+        return type.isInstance(machine) ? type.cast(machine) : null;
+    }
+
+    /**
+     * Gets a machine by id if it is of the given type.
+     *
+     * @param id the id of the machine
+     * @param type the expected machine type
+     * @return the machine, or null if there is none with that id and type
+     */
+    public VendingMachine get(int id, MachineType type) {
+        return byType.get(type).get(id);
+    }
+
+    /**
+     * Gets the id of a registered machine.
+     *
+     * @param machine the vending machine
+     * @return the id of the machine, or -1 if it is not registered
+     */
+    public int idOf(VendingMachine machine) {
+        Integer id = ids.get(machine);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Gets all machines ordered by id.
+     *
+     * @return an unmodifiable live view of the machines keyed by id
+     */
+    public Map<Integer, VendingMachine> machines() {
+        return Collections.unmodifiableMap(machines);
+    }
+
+    /**
+     * Gets the machines of one type ordered by id.
+     *
+     * @param type the machine type
+     * @return an unmodifiable live view of the machines keyed by id
+     */
+    public Map<Integer, VendingMachine> machines(MachineType type) {
+        return Collections.unmodifiableMap(byType.get(type));
+    }
+
+    /**
+     * Gets the machines of one type.
+     *
+     * @param type the machine type
+     * @return an unmodifiable live view of the machines, ordered by id
+     */
+    public Collection<VendingMachine> values(MachineType type) {
+        return Collections.unmodifiableCollection(byType.get(type).values());
+    }
+
+    /**
+     * Gets the number of machines in the fleet.
+     *
+     * @return the number of machines
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Gets the number of machines of one type.
+     *
+     * @param type the machine type
+     * @return the number of machines of that type
+     */
+    public int size(MachineType type) {
+        return typeCounts.get(type).get();
+    }
+
+    /**
+     * Checks if the fleet has no machines.
+     *
+     * @return true if no machine is registered
+     */
+    public boolean isEmpty() {
+        return byId.isEmpty();
+    }
+
+    /**
+     * Saves every machine of the fleet to a fleet snapshot file under its id and forces the
+     * file to disk. Machines already in the file are rewritten; machines of the file that are
+     * no longer in the fleet are left as they are.
+     *
+     * @param file the fleet snapshot file to save to
+     * @throws IOException if the file is full or cannot be written
+     */
+    public void saveTo(FleetSnapshotFile file) throws IOException {
+        file.putAll(machines);
+        file.force();
+    }
+
+    /**
+     * Registers every machine of a fleet snapshot file under its saved id. Nothing is
+     * registered if the file cannot be read or one of its ids is already in use.
+     *
+     * @param file the fleet snapshot file to load from
+     * @return the loaded machines keyed by id
+     * @throws IOException if a record of the file is corrupt
+     * @throws IllegalArgumentException if one of the saved ids is already registered
+     */
+    public Map<Integer, VendingMachine> loadFrom(FleetSnapshotFile file) throws IOException {
+        Map<Integer, VendingMachine> loaded = file.getAll();
+        for (int id : loaded.keySet()) {
+            if (byId.containsKey(id)) {
+                throw new IllegalArgumentException("Machine id already registered: " + id);
+            }
+        }
+        for (Map.Entry<Integer, VendingMachine> machine : loaded.entrySet()) {
+            register(machine.getKey(), machine.getValue());
+        }
+        return loaded;
+    }
+
+    private void index(int id, VendingMachine machine) {
+        MachineType type = MachineType.of(machine);
+        machines.put(id, machine);
+        byType.get(type).put(id, machine);
+        typeCounts.get(type).incrementAndGet();
+        if (aggregates != null) {
+            aggregates.track(id, machine);
+        }
+        if (refills != null) {
+            refills.track(id, machine);
+        }
+    }
+}
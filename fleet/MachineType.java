@@ -0,0 +1,29 @@
+package fleet;
+
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * The kinds of vending machines in a fleet.
+ */
+public enum MachineType {
+    COFFEE,
+    SANDWICH,
+    SNACK;
+
+    /**
+     * Gets the type of a vending machine.
+     *
+     * @param machine the vending machine
+     * @return the machine type
+     */
+    public static MachineType of(VendingMachine machine) {
+        if (machine instanceof CoffeeMachine) {
+            return COFFEE;
+        } else if (machine instanceof SandwichMachine) {
+            return SANDWICH;
+        }
+        return SNACK;
+    }
+}
@@ -0,0 +1,223 @@
+package fleet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import interfaces.MachineListener;
+import interfaces.Refillable;
+import vendingmachines.VendingMachine;
+
+/**
+ * A fleet-wide index of the machines that need service, ordered by urgency.
+ *
+ * <p>Tracked machines report every mutation to the index, which recomputes the machine's
+ * {@link Refillable#refillUrgency() urgency} in constant time and only touches the ordered
+ * set when the urgency changes. Urgency is 0 until a machine runs low and then grows with
+ * how low its stock or scarcest ingredient is, so the most urgent machines are the ones
+ * closest to running out. Queries never scan the fleet: the top N machines cost
+ * O(log n + N), the empty machines cost O(k), and the urgency of one machine and the number
+ * of machines needing service cost O(1).
+ */
+public class RefillIndex {
+    private static final int EMPTY_URGENCY = Refillable.MAX_URGENCY;
+
+    private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>();
+    private final Map<Integer, Tracker> trackers = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Starts tracking a machine.
+     *
+     * @param machineId the id of the machine
+     * @param machine the vending machine
+     */
+    public void track(int machineId, VendingMachine machine) {
+        Tracker tracker = new Tracker(machineId, machine);
+        Tracker previous = trackers.put(machineId, tracker);
+        if (previous != null) {
+            previous.stop();
+        }
+        machine.addListener(tracker);
+        tracker.update();
+    }
+
+    /**
+     * Stops tracking a machine.
+     *
+     * @param machineId the id of the machine
+     */
+    public void untrack(int machineId) {
+        Tracker tracker = trackers.remove(machineId);
+        if (tracker != null) {
+            tracker.stop();
+        }
+    }
+
+    /**
+     * Gets the most urgent machines, most urgent first. Machines of equal urgency are
+     * ordered by id.
+     *
+     * @param limit the maximum number of machines to return
+     * @return the ids of at most limit machines that need service
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public List<Integer> mostUrgent(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative: " + limit);
+        }
+        List<Integer> ids = new ArrayList<>(Math.min(limit, 64));
+        Iterator<Entry> iterator = entries.iterator();
+        while (ids.size() < limit && iterator.hasNext()) {
+            ids.add(iterator.next().machineId);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets all empty machines.
+     *
+     * @return the ids of the empty machines, ordered by id
+     */
+    public List<Integer> emptyMachines() {
+        List<Integer> ids = new ArrayList<>();
+        for (Entry entry : entries.headSet(new Entry(EMPTY_URGENCY - 1, Integer.MIN_VALUE))) {
+            ids.add(entry.machineId);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets the current urgency of a tracked machine.
+     *
+     * @param machineId the id of the machine
+     * @return the urgency, or 0 if the machine is not tracked
+     */
+    public int urgencyOf(int machineId) {
+        Tracker tracker = trackers.get(machineId);
+        return tracker != null ? tracker.urgency : 0;
+    }
+
+    /**
+     * Gets the number of machines that need service.
+     *
+     * @return the number of machines with a non-zero urgency
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Formats the number of machines needing service and the most urgent of them as text.
+     *
+     * @param limit the maximum number of machines to list
+     * @return the text, one item per line
+     */
+    public String toText(int limit) {
+        StringBuilder text = new StringBuilder("Machines needing service: ").append(size()).append('\n');
+        List<Integer> ids = mostUrgent(limit);
+        if (!ids.isEmpty()) {
+            text.append("Most urgent:");
+            for (int id : ids) {
+                text.append(' ').append(id);
+                if (urgencyOf(id) == EMPTY_URGENCY) {
+                    text.append(" (empty)");
+                }
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * A machine id with its urgency, ordered by urgency descending and then by id.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final int urgency;
+        private final int machineId;
+
+        Entry(int urgency, int machineId) {
+            this.urgency = urgency;
+            this.machineId = machineId;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (urgency != other.urgency) {
+                return Integer.compare(other.urgency, urgency);
+            }
+            return Integer.compare(machineId, other.machineId);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && compareTo((Entry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return urgency * 31 + machineId;
+        }
+    }
+
+    /**
+     * Listener that keeps the entry of one machine in step with its urgency.
+     */
+    private class Tracker implements MachineListener {
+        private final int machineId;
+        private final VendingMachine machine;
+        private volatile int urgency;
+        private boolean stopped;
+
+        Tracker(int machineId, VendingMachine machine) {
+            this.machineId = machineId;
+            this.machine = machine;
+        }
+
+        @Override
+        public void productAdded(VendingMachine machine, int productId, String name, int price, int quantity) {
+            update();
+        }
+
+        @Override
+        public void productBought(VendingMachine machine, int productId, int price, int quantity) {
+            update();
+        }
+
+        @Override
+        public void operationPerformed(VendingMachine machine, String operation, int amount) {
+            update();
+        }
+
+        void update() {
+            if (machine.refillUrgency() == urgency) {
+                return;
+            }
+            synchronized (this) {
+                int current = machine.refillUrgency();
+                if (stopped || current == urgency) {
+                    return;
+                }
+                if (urgency > 0 && entries.remove(new Entry(urgency, machineId))) {
+                    size.decrementAndGet();
+                }
+                if (current > 0 && entries.add(new Entry(current, machineId))) {
+                    size.incrementAndGet();
+                }
+                urgency = current;
+            }
+        }
+
+        synchronized void stop() {
+            machine.removeListener(this);
+            if (urgency > 0 && entries.remove(new Entry(urgency, machineId))) {
+                size.decrementAndGet();
+            }
+            stopped = true;
+        }
+    }
+}
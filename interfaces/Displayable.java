@@ -1,14 +1,66 @@
 package interfaces;
 
+import java.io.IOException;
+
 /**
  * An interface that represents a displayable and refillable vending machine.
  */
 public interface Displayable extends Refillable {
 
+    /**
+     * Products with a quantity below this are shown by {@link InventoryFilter#LOW_STOCK}.
+     */
+    public static final int LOW_STOCK_QUANTITY = 5;
+
     /**
      * Displays the inventory of the vending machine.
      *
      * @return the inventory as a string
      */
     public String displayInventory();
+
+    /**
+     * Writes one page of the inventory of the vending machine. Only the products that match
+     * the filter are counted and paged.
+     *
+     * @param out where to write the inventory
+     * @param filter which products to show
+     * @param offset the number of matching products to skip
+     * @param limit the maximum number of products to write
+     * @return the number of products that match the filter, across all pages
+     * @throws IOException if writing fails
+     */
+    public default int renderInventory(Appendable out, InventoryFilter filter, int offset, int limit) throws IOException {
+        out.append(displayInventory());
+        return 0;
+    }
+
+    /**
+     * Selects the products shown by {@link #renderInventory}.
+     */
+    public enum InventoryFilter {
+        /** All products. */
+        ALL,
+        /** Products with at least one unit in stock. */
+        IN_STOCK,
+        /** Products with fewer than {@link #LOW_STOCK_QUANTITY} units in stock, including sold-out products. */
+        LOW_STOCK;
+
+        /**
+         * Checks if a product with the given quantity is shown.
+         *
+         * @param quantity the quantity in stock
+         * @return true if the product is shown
+         */
+        public boolean matches(int quantity) {
+            switch (this) {
+                case IN_STOCK:
+                    return quantity > 0;
+                case LOW_STOCK:
+                    return quantity < LOW_STOCK_QUANTITY;
+                default:
+                    return true;
+            }
+        }
+    }
 }
@@ -0,0 +1,44 @@
+package interfaces;
+
+import vendingmachines.VendingMachine;
+
+/**
+ * An interface for observing the mutations of a vending machine. Listeners are called on the
+ * mutating thread after each successful change, so implementations must be fast and must not
+ * call back into the machine.
+ */
+public interface MachineListener {
+
+    /**
+     * Called after a product has been added to a vending machine.
+     *
+     * @param machine the vending machine
+     * @param productId the id of the product
+     * @param name the name of the product
+     * @param price the price of the product
+     * @param quantity the quantity that was added
+     */
+    default void productAdded(VendingMachine machine, int productId, String name, int price, int quantity) {
+    }
+
+    /**
+     * Called after units of a product have been bought from a vending machine.
+     *
+     * @param machine the vending machine
+     * @param productId the id of the product
+     * @param price the unit price of the product
+     * @param quantity the number of units bought
+     */
+    default void productBought(VendingMachine machine, int productId, int price, int quantity) {
+    }
+
+    /**
+     * Called after a machine-specific operation such as brewing coffee or refilling an ingredient.
+     *
+     * @param machine the vending machine
+     * @param operation the name of the operation, e.g. "brewCoffee" or "refillWater"
+     * @param amount the amount the operation was performed with
+     */
+    default void operationPerformed(VendingMachine machine, String operation, int amount) {
+    }
+}
@@ -5,6 +5,11 @@ package interfaces;
  */
 public interface Refillable {
 
+    /**
+     * The urgency of an empty vending machine, the highest there is.
+     */
+    public static final int MAX_URGENCY = 1000;
+
     /**
      * Checks if the vending machine needs a refill.
      *
@@ -18,4 +23,32 @@ public interface Refillable {
      * @return true if the vending machine is empty, false otherwise
      */
     public boolean isEmpty();
+
+    /**
+     * Gets how urgently the vending machine needs service. Higher values are more urgent.
+     *
+     * @return 0 if the vending machine does not need a refill, {@link #MAX_URGENCY} if it is
+     *         empty, and in between a value that grows as it runs lower
+     */
+    public default int refillUrgency() {
+        return isEmpty() ? MAX_URGENCY : needsRefill() ? 1 : 0;
+    }
+
+    /**
+     * Scales how far a stock has fallen below its refill threshold to an urgency.
+     *
+     * @param remaining what is left, such as the products in stock or an ingredient level
+     * @param low the level below which a refill is needed
+     * @return 0 if remaining is at least low, {@link #MAX_URGENCY} if nothing remains, and in
+     *         between an urgency that grows as remaining falls
+     */
+    public static int urgency(int remaining, int low) {
+        if (remaining >= low) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return MAX_URGENCY;
+        }
+        return 1 + (int) ((MAX_URGENCY - 2L) * (low - remaining) / low);
+    }
 }
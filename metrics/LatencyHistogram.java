@@ -0,0 +1,131 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent latency histogram with log-linear buckets. Every power of two is split into
+ * eight buckets, so recorded values are kept with a precision of about 12.5%. Recording
+ * never allocates. The counts can be striped over several arrays to spread contention
+ * when many threads record into the same histogram.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = ((MAX_EXPONENT - SUB_BITS + 1) << SUB_BITS) + SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructs a new LatencyHistogram.
+     *
+     * @param stripes the number of count arrays, rounded up to a power of two
+     */
+    public LatencyHistogram(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicLongArray[size];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        AtomicLongArray stripe = stripes.length == 1
+                ? stripes[0] : stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        stripe.getAndIncrement(bucketOf(Math.max(0, nanos)));
+        total.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Gets the number of recorded latencies.
+     *
+     * @return the count
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    /**
+     * Gets the mean of the recorded latencies.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Gets the bucket counts merged over all stripes.
+     *
+     * @return the count of each bucket
+     */
+    public long[] buckets() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Gets a percentile of merged bucket counts.
+     *
+     * @param counts the bucket counts, as returned by {@link #buckets()}
+     * @param percentile the percentile between 0 and 100
+     * @return the lower bound of the bucket holding the percentile in nanoseconds, or 0 if empty
+     */
+    public static long percentile(long[] counts, double percentile) {
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(counts.length - 1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        return (1L << exponent) | (sub << (exponent - SUB_BITS));
+    }
+}
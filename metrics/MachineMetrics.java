@@ -0,0 +1,386 @@
+package metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import exceptions.InsufficientResourcesException;
+import exceptions.ProductNotFoundException;
+import exceptions.VendingMachineException;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.OperationStatus;
+import vendingmachines.VendingMachine;
+
+/**
+ * Counters and latency histograms for the operations of one vending machine, or of a whole
+ * fleet. The instrumented methods call through to the machine, classify the outcome and record
+ * it together with the latency. Everything recorded into machine metrics is also recorded into
+ * the fleet metrics they belong to. Recording only increments striped adders and histogram
+ * buckets, so it does not allocate once a histogram exists for the operation.
+ */
+public class MachineMetrics {
+    private static final int OPERATIONS = Operation.values().length;
+    private static final int OUTCOMES = Outcome.values().length;
+
+    private final MachineMetrics fleet;
+    private final int stripes;
+    private final LongAdder[] counters = new LongAdder[OPERATIONS * OUTCOMES];
+    private final LongAccumulator[] maxima = new LongAccumulator[OPERATIONS];
+    private final AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<>(OPERATIONS);
+
+    /**
+     * The instrumented operations. The labels match the operation names machines report to
+     * their listeners.
+     */
+    public enum Operation {
+        BUY_PRODUCT("buyProduct"),
+        ADD_PRODUCT("addProduct"),
+        BREW_COFFEE("brewCoffee"),
+        MAKE_SANDWICH("makeSandwich"),
+        REFILL("refill");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Gets the label used when the metrics are rendered.
+         *
+         * @return the label
+         */
+        public String label() {
+            return label;
+        }
+    }
+
+    /**
+     * The outcomes an operation is counted under.
+     */
+    public enum Outcome {
+        SUCCESS("success"),
+        NOT_FOUND("notFound"),
+        OUT_OF_STOCK("outOfStock"),
+        INSUFFICIENT_RESOURCES("insufficientResources"),
+        FAILED("failed");
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Gets the label used when the metrics are rendered.
+         *
+         * @return the label
+         */
+        public String label() {
+            return label;
+        }
+    }
+
+    /**
+     * Constructs new MachineMetrics.
+     *
+     * @param fleet the fleet metrics to record into as well, or null for fleet metrics
+     * @param stripes the number of stripes of the latency histograms
+     */
+    MachineMetrics(MachineMetrics fleet, int stripes) {
+        this.fleet = fleet;
+        this.stripes = stripes;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < maxima.length; i++) {
+            maxima[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    /**
+     * Buys a product and records the outcome.
+     *
+     * @param machine the vending machine
+     * @param name the name of the product
+     * @throws ProductNotFoundException if the product is not found
+     * @throws VendingMachineException if the product is out of stock
+     */
+    public void buyProduct(VendingMachine machine, String name) throws ProductNotFoundException, VendingMachineException {
+        long start = System.nanoTime();
+        try {
+            machine.buyProduct(name);
+        } catch (ProductNotFoundException e) {
+            record(Operation.BUY_PRODUCT, Outcome.NOT_FOUND, start);
+            throw e;
+        } catch (VendingMachineException e) {
+            record(Operation.BUY_PRODUCT, Outcome.OUT_OF_STOCK, start);
+            throw e;
+        } catch (RuntimeException e) {
+            record(Operation.BUY_PRODUCT, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.BUY_PRODUCT, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Buys a product without throwing on failure and records the outcome.
+     *
+     * @param machine the vending machine
+     * @param name the name of the product
+     * @return the status of the purchase
+     */
+    public OperationStatus tryBuy(VendingMachine machine, String name) {
+        long start = System.nanoTime();
+        OperationStatus status = machine.tryBuy(name);
+        record(Operation.BUY_PRODUCT, outcomeOf(status), start);
+        return status;
+    }
+
+    /**
+     * Adds a product and records the outcome.
+     *
+     * @param machine the vending machine
+     * @param name the name of the product
+     * @param price the price of the product
+     * @param quantity the quantity of the product
+     */
+    public void addProduct(VendingMachine machine, String name, int price, int quantity) {
+        long start = System.nanoTime();
+        try {
+            machine.addProduct(name, price, quantity);
+        } catch (RuntimeException e) {
+            record(Operation.ADD_PRODUCT, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.ADD_PRODUCT, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Brews a coffee and records the outcome.
+     *
+     * @param machine the coffee machine
+     * @throws InsufficientResourcesException if there are not enough ingredients
+     */
+    public void brewCoffee(CoffeeMachine machine) throws InsufficientResourcesException {
+        long start = System.nanoTime();
+        try {
+            machine.brewCoffee();
+        } catch (InsufficientResourcesException e) {
+            record(Operation.BREW_COFFEE, Outcome.INSUFFICIENT_RESOURCES, start);
+            throw e;
+        } catch (RuntimeException e) {
+            record(Operation.BREW_COFFEE, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.BREW_COFFEE, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Brews up to a number of coffees at once and records the outcome. A batch that
+     * falls short of the count is recorded as insufficient resources.
+     *
+     * @param machine the coffee machine
+     * @param count the number of coffees wanted
+     * @return the number of coffees brewed
+     */
+    public int brewCoffee(CoffeeMachine machine, int count) {
+        long start = System.nanoTime();
+        int brewed;
+        try {
+            brewed = machine.brewCoffee(count);
+        } catch (RuntimeException e) {
+            record(Operation.BREW_COFFEE, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.BREW_COFFEE, brewed == count ? Outcome.SUCCESS : Outcome.INSUFFICIENT_RESOURCES, start);
+        return brewed;
+    }
+
+    /**
+     * Brews a coffee without throwing on failure and records the outcome.
+     *
+     * @param machine the coffee machine
+     * @return the status of the operation
+     */
+    public OperationStatus tryBrew(CoffeeMachine machine) {
+        long start = System.nanoTime();
+        OperationStatus status = machine.tryBrew();
+        record(Operation.BREW_COFFEE, outcomeOf(status), start);
+        return status;
+    }
+
+    /**
+     * Makes a sandwich and records the outcome.
+     *
+     * @param machine the sandwich machine
+     * @throws InsufficientResourcesException if there are not enough ingredients
+     */
+    public void makeSandwich(SandwichMachine machine) throws InsufficientResourcesException {
+        long start = System.nanoTime();
+        try {
+            machine.makeSandwich();
+        } catch (InsufficientResourcesException e) {
+            record(Operation.MAKE_SANDWICH, Outcome.INSUFFICIENT_RESOURCES, start);
+            throw e;
+        } catch (RuntimeException e) {
+            record(Operation.MAKE_SANDWICH, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.MAKE_SANDWICH, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Makes up to a number of sandwiches at once and records the outcome. A batch that
+     * falls short of the count is recorded as insufficient resources.
+     *
+     * @param machine the sandwich machine
+     * @param count the number of sandwiches wanted
+     * @return the number of sandwiches made
+     */
+    public int makeSandwich(SandwichMachine machine, int count) {
+        long start = System.nanoTime();
+        int made;
+        try {
+            made = machine.makeSandwich(count);
+        } catch (RuntimeException e) {
+            record(Operation.MAKE_SANDWICH, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.MAKE_SANDWICH, made == count ? Outcome.SUCCESS : Outcome.INSUFFICIENT_RESOURCES, start);
+        return made;
+    }
+
+    /**
+     * Makes a sandwich without throwing on failure and records the outcome.
+     *
+     * @param machine the sandwich machine
+     * @return the status of the operation
+     */
+    public OperationStatus tryMake(SandwichMachine machine) {
+        long start = System.nanoTime();
+        OperationStatus status = machine.tryMake();
+        record(Operation.MAKE_SANDWICH, outcomeOf(status), start);
+        return status;
+    }
+
+    /**
+     * Refills a coffee machine and records the outcome. Nothing is refilled if any level would
+     * exceed the capacity.
+     *
+     * @param machine the coffee machine
+     * @param water the amount of water to add
+     * @param beans the amount of beans to add
+     * @param sugar the amount of sugar to add
+     */
+    public void refill(CoffeeMachine machine, int water, int beans, int sugar) {
+        long start = System.nanoTime();
+        try {
+            machine.refillAll(water, beans, sugar);
+        } catch (RuntimeException e) {
+            record(Operation.REFILL, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.REFILL, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Refills a sandwich machine and records the outcome. Nothing is refilled if any level
+     * would exceed the capacity.
+     *
+     * @param machine the sandwich machine
+     * @param ham the amount of ham to add
+     * @param cheese the amount of cheese to add
+     * @param bread the amount of bread to add
+     */
+    public void refill(SandwichMachine machine, int ham, int cheese, int bread) {
+        long start = System.nanoTime();
+        try {
+            machine.refillAll(ham, cheese, bread);
+        } catch (RuntimeException e) {
+            record(Operation.REFILL, Outcome.FAILED, start);
+            throw e;
+        }
+        record(Operation.REFILL, Outcome.SUCCESS, start);
+    }
+
+    /**
+     * Records an operation that was timed by the caller, for call paths the instrumented
+     * methods do not cover.
+     *
+     * @param operation the operation
+     * @param outcome the outcome of the operation
+     * @param startNanos the value of {@link System#nanoTime()} when the operation started
+     */
+    public void record(Operation operation, Outcome outcome, long startNanos) {
+        recordElapsed(operation, outcome, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets how often an operation ended with an outcome.
+     *
+     * @param operation the operation
+     * @param outcome the outcome
+     * @return the count
+     */
+    public long count(Operation operation, Outcome outcome) {
+        return counters[operation.ordinal() * OUTCOMES + outcome.ordinal()].sum();
+    }
+
+    /**
+     * Takes a snapshot of the counters and latencies of every operation that was recorded.
+     *
+     * @return the snapshot of each recorded operation, in operation order
+     */
+    public Map<Operation, MetricsSnapshot.OperationStats> snapshot() {
+        Map<Operation, MetricsSnapshot.OperationStats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation.ordinal());
+            if (histogram == null) {
+                continue;
+            }
+            long[] counts = new long[OUTCOMES];
+            for (Outcome outcome : Outcome.values()) {
+                counts[outcome.ordinal()] = count(operation, outcome);
+            }
+            long[] buckets = histogram.buckets();
+            stats.put(operation, new MetricsSnapshot.OperationStats(counts, histogram.mean(),
+                    LatencyHistogram.percentile(buckets, 50), LatencyHistogram.percentile(buckets, 90),
+                    LatencyHistogram.percentile(buckets, 99), LatencyHistogram.percentile(buckets, 99.9),
+                    maxima[operation.ordinal()].get()));
+        }
+        return stats;
+    }
+
+    private static Outcome outcomeOf(OperationStatus status) {
+        switch (status) {
+            case OK:
+                return Outcome.SUCCESS;
+            case NOT_FOUND:
+                return Outcome.NOT_FOUND;
+            case OUT_OF_STOCK:
+                return Outcome.OUT_OF_STOCK;
+            case INSUFFICIENT_RESOURCES:
+                return Outcome.INSUFFICIENT_RESOURCES;
+            default:
+                return Outcome.FAILED;
+        }
+    }
+
+    private void recordElapsed(Operation operation, Outcome outcome, long elapsed) {
+        int index = operation.ordinal();
+        counters[index * OUTCOMES + outcome.ordinal()].increment();
+        maxima[index].accumulate(elapsed);
+        LatencyHistogram histogram = latencies.get(index);
+        if (histogram == null) {
+            latencies.compareAndSet(index, null, new LatencyHistogram(stripes));
+            histogram = latencies.get(index);
+        }
+        histogram.record(elapsed);
+        if (fleet != null) {
+            fleet.recordElapsed(operation, outcome, elapsed);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the fleet-wide metrics and the metrics of each machine by id. Callers on a hot path
+ * should look up the metrics of a machine once and keep them, since the lookup by id boxes it.
+ */
+public class MetricsRegistry implements Closeable {
+    private final MachineMetrics fleet = new MachineMetrics(null, Runtime.getRuntime().availableProcessors());
+    private final Map<Integer, MachineMetrics> machines = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * Gets the fleet-wide metrics.
+     *
+     * @return the fleet metrics
+     */
+    public MachineMetrics fleet() {
+        return fleet;
+    }
+
+    /**
+     * Gets the metrics of a machine, creating them on first use.
+     *
+     * @param id the id of the machine
+     * @return the metrics of the machine
+     */
+    public MachineMetrics forMachine(int id) {
+        return machines.computeIfAbsent(id, key -> new MachineMetrics(fleet, 1));
+    }
+
+    /**
+     * Removes the metrics of a machine. What it recorded stays in the fleet metrics.
+     *
+     * @param id the id of the machine
+     */
+    public void remove(int id) {
+        machines.remove(id);
+    }
+
+    /**
+     * Takes a snapshot of the fleet-wide metrics and the metrics of every machine.
+     *
+     * @return the snapshot
+     */
+    public MetricsSnapshot snapshot() {
+        return snapshot(true);
+    }
+
+    /**
+     * Takes a snapshot of the fleet-wide metrics and, optionally, the metrics of every machine.
+     *
+     * @param includeMachines false to leave out the per-machine metrics, which is cheaper for large fleets
+     * @return the snapshot
+     */
+    public MetricsSnapshot snapshot(boolean includeMachines) {
+        Map<Integer, Map<MachineMetrics.Operation, MetricsSnapshot.OperationStats>> perMachine = new TreeMap<>();
+        if (includeMachines) {
+            for (Map.Entry<Integer, MachineMetrics> entry : machines.entrySet()) {
+                Map<MachineMetrics.Operation, MetricsSnapshot.OperationStats> stats = entry.getValue().snapshot();
+                if (!stats.isEmpty()) {
+                    perMachine.put(entry.getKey(), stats);
+                }
+            }
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), fleet.snapshot(), perMachine);
+    }
+
+    /**
+     * Writes a snapshot to a file. The snapshot is written to a temporary file first and
+     * moved into place, so readers never see a partial dump.
+     *
+     * @param path the file to write
+     * @param json true to write JSON, false to write text
+     * @throws IOException if the file cannot be written
+     */
+    public void dump(Path path, boolean json) throws IOException {
+        MetricsSnapshot snapshot = snapshot();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, (json ? snapshot.toJson() : snapshot.toText()).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts dumping a snapshot to a file periodically on a background thread.
+     *
+     * @param path the file to write
+     * @param periodMillis the time between dumps in milliseconds
+     * @param json true to write JSON, false to write text
+     * @return the scheduled dump, which can be cancelled
+     */
+    public synchronized ScheduledFuture<?> startDump(Path path, long periodMillis, boolean json) {
+        if (dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return dumper.scheduleAtFixedRate(() -> {
+            try {
+                dump(path, json);
+            } catch (IOException e) {
+                System.err.println("Error dumping metrics to " + path + ": " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops all periodic dumps.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+}
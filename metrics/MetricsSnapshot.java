@@ -0,0 +1,212 @@
+package metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time view of the fleet-wide and per-machine metrics, renderable as text or JSON.
+ */
+public class MetricsSnapshot {
+    private final long timestamp;
+    private final Map<MachineMetrics.Operation, OperationStats> fleet;
+    private final Map<Integer, Map<MachineMetrics.Operation, OperationStats>> machines;
+
+    MetricsSnapshot(long timestamp, Map<MachineMetrics.Operation, OperationStats> fleet,
+                    Map<Integer, Map<MachineMetrics.Operation, OperationStats>> machines) {
+        this.timestamp = timestamp;
+        this.fleet = Collections.unmodifiableMap(fleet);
+        this.machines = Collections.unmodifiableMap(machines);
+    }
+
+    /**
+     * The counters and latencies of one operation.
+     */
+    public static final class OperationStats {
+        private final long[] counts;
+        private final double meanNanos;
+        private final long p50Nanos;
+        private final long p90Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+
+        OperationStats(long[] counts, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos,
+                       long p999Nanos, long maxNanos) {
+            this.counts = counts;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * Gets how often the operation ended with an outcome.
+         *
+         * @param outcome the outcome
+         * @return the count
+         */
+        public long count(MachineMetrics.Outcome outcome) {
+            return counts[outcome.ordinal()];
+        }
+
+        /**
+         * Gets how often the operation was performed.
+         *
+         * @return the count over all outcomes
+         */
+        public long total() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * Gets the mean latency.
+         *
+         * @return the mean latency in nanoseconds
+         */
+        public double getMeanNanos() {
+            return meanNanos;
+        }
+
+        /**
+         * Gets the median latency.
+         *
+         * @return the median latency in nanoseconds
+         */
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        /**
+         * Gets the 90th percentile latency.
+         *
+         * @return the 90th percentile latency in nanoseconds
+         */
+        public long getP90Nanos() {
+            return p90Nanos;
+        }
+
+        /**
+         * Gets the 99th percentile latency.
+         *
+         * @return the 99th percentile latency in nanoseconds
+         */
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        /**
+         * Gets the 99.9th percentile latency.
+         *
+         * @return the 99.9th percentile latency in nanoseconds
+         */
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        /**
+         * Gets the highest latency.
+         *
+         * @return the highest latency in nanoseconds
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+    /**
+     * Gets the time the snapshot was taken.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the fleet-wide metrics.
+     *
+     * @return the metrics of each recorded operation
+     */
+    public Map<MachineMetrics.Operation, OperationStats> fleet() {
+        return fleet;
+    }
+
+    /**
+     * Gets the metrics of each machine.
+     *
+     * @return the metrics of each recorded operation by machine id
+     */
+    public Map<Integer, Map<MachineMetrics.Operation, OperationStats>> machines() {
+        return machines;
+    }
+
+    /**
+     * Renders the snapshot as plain text, one line per operation.
+     *
+     * @return the text
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append("Metrics at ").append(timestamp).append('\n');
+        appendText(text, "fleet", fleet);
+        for (Map.Entry<Integer, Map<MachineMetrics.Operation, OperationStats>> entry : machines.entrySet()) {
+            appendText(text, "machine " + entry.getKey(), entry.getValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Renders the snapshot as a JSON object.
+     *
+     * @return the JSON
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\": ").append(timestamp).append(", \"fleet\": ");
+        appendJson(json, fleet);
+        json.append(", \"machines\": {");
+        int m = 0;
+        for (Map.Entry<Integer, Map<MachineMetrics.Operation, OperationStats>> entry : machines.entrySet()) {
+            json.append(m++ > 0 ? ", " : "").append('"').append(entry.getKey()).append("\": ");
+            appendJson(json, entry.getValue());
+        }
+        return json.append("}}\n").toString();
+    }
+
+    private static void appendText(StringBuilder text, String scope, Map<MachineMetrics.Operation, OperationStats> stats) {
+        for (Map.Entry<MachineMetrics.Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats stat = entry.getValue();
+            text.append(scope).append(' ').append(entry.getKey().label()).append(':');
+            for (MachineMetrics.Outcome outcome : MachineMetrics.Outcome.values()) {
+                text.append(' ').append(outcome.label()).append('=').append(stat.count(outcome));
+            }
+            text.append(String.format(" mean=%.0fns p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns%n",
+                    stat.meanNanos, stat.p50Nanos, stat.p90Nanos, stat.p99Nanos, stat.p999Nanos, stat.maxNanos));
+        }
+    }
+
+    private static void appendJson(StringBuilder json, Map<MachineMetrics.Operation, OperationStats> stats) {
+        json.append('{');
+        int o = 0;
+        for (Map.Entry<MachineMetrics.Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats stat = entry.getValue();
+            json.append(o++ > 0 ? ", " : "").append('"').append(entry.getKey().label()).append("\": {");
+            for (MachineMetrics.Outcome outcome : MachineMetrics.Outcome.values()) {
+                json.append('"').append(outcome.label()).append("\": ").append(stat.count(outcome)).append(", ");
+            }
+            json.append("\"meanNanos\": ").append(stat.meanNanos)
+                    .append(", \"p50Nanos\": ").append(stat.p50Nanos)
+                    .append(", \"p90Nanos\": ").append(stat.p90Nanos)
+                    .append(", \"p99Nanos\": ").append(stat.p99Nanos)
+                    .append(", \"p999Nanos\": ").append(stat.p999Nanos)
+                    .append(", \"maxNanos\": ").append(stat.maxNanos).append('}');
+        }
+        json.append('}');
+    }
+}
@@ -0,0 +1,296 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import vendingmachines.VendingMachine;
+
+/**
+ * A single memory-mapped file that holds the snapshots of a whole fleet of vending machines.
+ *
+ * <p>The file starts with a header and a fixed-size index, followed by the data region:
+ * <pre>
+ * header: int magic ("VMFL"), short version, short unused, int index capacity, int entry count, long data end
+ * index entry: int machine id, int active copy (0 or 1), then per copy: long offset, int slot capacity, int record length
+ * data: {@link MachineCodec} snapshots, each in a slot with some spare room
+ * </pre>
+ * Any machine can be read or rewritten by id without touching the others. Each machine has
+ * two slots. A write goes to the inactive one, which is forced to disk before the entry
+ * switches its active copy, so a crash in the middle of a write leaves the previous record
+ * in place. A record that outgrows its slot is moved to a new slot at the end of the data
+ * region. The space of the old slot is not reclaimed. The whole file is mapped at once, so
+ * it is limited to 2 GB. Opening a file checks every index entry against the data region.
+ */
+public class FleetSnapshotFile implements Closeable {
+    public static final int MAGIC = 0x564D464C;
+    public static final short VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 40;
+    private static final int COPY_SIZE = 16;
+    private static final int MIN_SLOT = 64;
+
+    private final FileChannel channel;
+    private final int indexCapacity;
+    private final Map<Integer, Integer> entries = new HashMap<>();
+    private MappedByteBuffer map;
+    private long dataEnd;
+
+    private FleetSnapshotFile(FileChannel channel, int indexCapacity, long dataEnd) throws IOException {
+        this.channel = channel;
+        this.indexCapacity = indexCapacity;
+        this.dataEnd = dataEnd;
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    /**
+     * Creates a new, empty fleet snapshot file, replacing any existing file.
+     *
+     * @param path the file to create
+     * @param indexCapacity the maximum number of machines the file can hold
+     * @return the open fleet snapshot file
+     * @throws IOException if the file cannot be created
+     */
+    public static FleetSnapshotFile create(Path path, int indexCapacity) throws IOException {
+        if (indexCapacity <= 0) {
+            throw new IllegalArgumentException("Index capacity must be positive");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long dataStart = HEADER_SIZE + (long) indexCapacity * ENTRY_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(indexCapacity).putInt(0).putLong(dataStart).flip();
+        channel.write(header, 0);
+        channel.write(ByteBuffer.allocate(1), dataStart + 2L * indexCapacity * MIN_SLOT - 1);
+        channel.force(true);
+        return new FleetSnapshotFile(channel, indexCapacity, dataStart);
+    }
+
+    /**
+     * Opens an existing fleet snapshot file.
+     *
+     * @param path the file to open
+     * @return the open fleet snapshot file
+     * @throws IOException if the file cannot be read, is not a fleet snapshot file or has a
+     *         corrupt header or index
+     */
+    public static FleetSnapshotFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a fleet snapshot file: " + path);
+            }
+            short version = header.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported fleet snapshot version: " + version);
+            }
+            header.getShort();
+            int indexCapacity = header.getInt();
+            int entryCount = header.getInt();
+            long dataEnd = header.getLong();
+            long dataStart = HEADER_SIZE + (long) indexCapacity * ENTRY_SIZE;
+            if (channel.size() > Integer.MAX_VALUE || indexCapacity <= 0 || entryCount < 0 || entryCount > indexCapacity
+                    || dataEnd < dataStart || dataEnd > channel.size()) {
+                throw new IOException("Corrupt fleet snapshot header: " + path);
+            }
+            FleetSnapshotFile file = new FleetSnapshotFile(channel, indexCapacity, dataEnd);
+            for (int slot = 0; slot < entryCount; slot++) {
+                int position = entryPosition(slot);
+                if (!file.isValidEntry(position, dataStart) || file.entries.put(file.map.getInt(position), slot) != null) {
+                    throw new IOException("Corrupt fleet snapshot index entry " + slot + ": " + path);
+                }
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a machine into the inactive slot of the machine, then makes it
+     * the active one. The record is on disk before it becomes active.
+     *
+     * @param machineId the id of the machine
+     * @param machine the machine to save
+     * @throws IOException if the index is full or the file cannot grow
+     */
+    public synchronized void put(int machineId, VendingMachine machine) throws IOException {
+        ByteBuffer record = MachineCodec.encode(machine);
+        int length = record.remaining();
+        Integer slot = entries.get(machineId);
+        boolean added = slot == null;
+        if (added) {
+            if (entries.size() == indexCapacity) {
+                throw new IOException("Fleet snapshot index is full (" + indexCapacity + " machines)");
+            }
+            slot = entries.size();
+            int position = entryPosition(slot);
+            map.put(position, new byte[ENTRY_SIZE]);
+            map.putInt(position, machineId);
+            // Copy 1 is active but empty, so the first record goes to copy 0.
+            map.putInt(position + 4, 1);
+        }
+
+        int position = entryPosition(slot);
+        int target = 1 - map.getInt(position + 4);
+        int copy = copyPosition(position, target);
+        long offset = map.getLong(copy);
+        int capacity = map.getInt(copy + 8);
+        if (length > capacity) {
+            capacity = Math.max(MIN_SLOT, length + length / 2);
+            offset = allocate(capacity);
+            map.putLong(copy, offset);
+            map.putInt(copy + 8, capacity);
+        }
+        map.put((int) offset, record, 0, length);
+        map.putInt(copy + 12, length);
+        map.force((int) offset, length);
+        map.force(position, ENTRY_SIZE);
+        map.putInt(position + 4, target);
+        map.force(position + 4, 4);
+        if (added) {
+            entries.put(machineId, slot);
+            map.putInt(12, entries.size());
+            map.force(12, 4);
+        }
+    }
+
+    /**
+     * Writes the snapshots of several machines.
+     *
+     * @param machines the machines to save keyed by machine id
+     * @throws IOException if the index is full or the file cannot grow
+     */
+    public synchronized void putAll(Map<Integer, ? extends VendingMachine> machines) throws IOException {
+        for (Map.Entry<Integer, ? extends VendingMachine> machine : machines.entrySet()) {
+            put(machine.getKey(), machine.getValue());
+        }
+    }
+
+    /**
+     * Reads the snapshot of a single machine.
+     *
+     * @param machineId the id of the machine
+     * @return the decoded machine, or null if the file holds no machine with that id
+     * @throws IOException if the record is corrupt
+     */
+    public synchronized VendingMachine get(int machineId) throws IOException {
+        Integer slot = entries.get(machineId);
+        if (slot == null) {
+            return null;
+        }
+        int copy = activeCopy(entryPosition(slot));
+        ByteBuffer record = map.slice((int) map.getLong(copy), map.getInt(copy + 12));
+        return MachineCodec.decode(record);
+    }
+
+    /**
+     * Reads the snapshots of every machine in the file.
+     *
+     * @return the decoded machines keyed by machine id, in the order they were first written
+     * @throws IOException if a record is corrupt
+     */
+    public synchronized Map<Integer, VendingMachine> getAll() throws IOException {
+        Map<Integer, VendingMachine> machines = new LinkedHashMap<>();
+        for (int slot = 0; slot < entries.size(); slot++) {
+            int machineId = map.getInt(entryPosition(slot));
+            machines.put(machineId, get(machineId));
+        }
+        return machines;
+    }
+
+    /**
+     * Checks if the file holds a snapshot of a machine.
+     *
+     * @param machineId the id of the machine
+     * @return true if the machine is in the file
+     */
+    public synchronized boolean contains(int machineId) {
+        return entries.containsKey(machineId);
+    }
+
+    /**
+     * Gets the number of machines in the file.
+     *
+     * @return the number of machines
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Flushes all changes to the storage device.
+     */
+    public synchronized void force() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    private long allocate(int capacity) throws IOException {
+        long offset = dataEnd;
+        long end = offset + capacity;
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Fleet snapshot file cannot grow beyond 2 GB");
+        }
+        if (end > map.capacity()) {
+            long size = Math.min(Integer.MAX_VALUE, Math.max(end, (long) map.capacity() * 2));
+            map.force();
+            channel.write(ByteBuffer.allocate(1), size - 1);
+            channel.force(true);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        dataEnd = end;
+        map.putLong(16, dataEnd);
+        // An entry may only point below the recorded data end.
+        map.force(16, 8);
+        return offset;
+    }
+
+    private boolean isValidEntry(int position, long dataStart) {
+        int active = map.getInt(position + 4);
+        if (active != 0 && active != 1) {
+            return false;
+        }
+        for (int index = 0; index < 2; index++) {
+            int copy = copyPosition(position, index);
+            long offset = map.getLong(copy);
+            int capacity = map.getInt(copy + 8);
+            int length = map.getInt(copy + 12);
+            if (capacity < 0 || length < 0 || length > capacity
+                    || capacity > 0 && (offset < dataStart || offset + capacity > dataEnd)) {
+                return false;
+            }
+            if (index == active && length == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int activeCopy(int position) {
+        return copyPosition(position, map.getInt(position + 4));
+    }
+
+    private static int copyPosition(int position, int index) {
+        return position + 8 + index * COPY_SIZE;
+    }
+
+    private static int entryPosition(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,238 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import vendingmachines.VendingMachine;
+
+/**
+ * Saves a vending machine as a full base snapshot followed by a chain of delta records that
+ * hold only what changed since the previous save. The changes come from the dirty tracking
+ * of {@link VendingMachine}, so a save costs time proportional to the activity on the
+ * machine rather than its size.
+ *
+ * <p>The base is a {@link MachineCodec} snapshot. The deltas are appended to
+ * {@code <base>.delta}, which starts with a header ({@code int magic "VMDL", short version,
+ * short unused, int CRC of the base}) linking it to its base. Deltas whose base CRC does not
+ * match are ignored. A new base resets the delta file before it is written, and a full save
+ * through {@link #writeFull} removes it first, so a crash in between never leaves deltas
+ * next to a base they do not belong to. Each delta record is {@code int body length, int CRC32C of body}
+ * followed by the changed products (id, name, price, quantity) and, if it changed, the
+ * machine-specific state.
+ */
+public class IncrementalSnapshot {
+    public static final int MAGIC = 0x564D444C;
+    public static final short VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final Path basePath;
+    private final Path deltaPath;
+    private final int deltasPerBase;
+    private int deltaCount = -1;
+    private VendingMachine machine;
+
+    /**
+     * Constructs a new IncrementalSnapshot.
+     *
+     * @param basePath the path of the base snapshot
+     * @param deltasPerBase the number of deltas written before the next full base snapshot
+     */
+    public IncrementalSnapshot(Path basePath, int deltasPerBase) {
+        this.basePath = basePath;
+        this.deltaPath = deltaPathFor(basePath);
+        this.deltasPerBase = deltasPerBase;
+    }
+
+    /**
+     * Gets the path of the base snapshot.
+     *
+     * @return the path of the base snapshot
+     */
+    public Path getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * Saves the changes of a machine since the previous save. The first save, every save
+     * after {@code deltasPerBase} deltas, the first save after a failed one or after
+     * {@link #rebase()} and a save of a different machine than the previous one write a full
+     * base snapshot instead.
+     *
+     * @param machine the vending machine to save
+     * @return the number of bytes written, or 0 if nothing changed
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized int save(VendingMachine machine) throws IOException {
+        if (deltaCount < 0 || deltaCount >= deltasPerBase || machine != this.machine) {
+            return saveBase(machine);
+        }
+        int[] ids = machine.takeDirtyProducts();
+        boolean stateDirty = machine.takeStateDirty();
+        if (ids.length == 0 && !stateDirty) {
+            return 0;
+        }
+
+        byte type = MachineCodec.typeOf(machine);
+        byte[][] names = new byte[ids.length][];
+        int bodySize = 5;
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = machine.productName(ids[i]).getBytes(StandardCharsets.UTF_8);
+            bodySize += 16 + names[i].length;
+        }
+        if (stateDirty) {
+            bodySize += MachineCodec.stateSize(type);
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + bodySize);
+        record.position(8);
+        record.putInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            record.putInt(ids[i]).putInt(names[i].length).put(names[i])
+                    .putInt(machine.productPrice(ids[i])).putInt(machine.productQuantity(ids[i]));
+        }
+        record.put((byte) (stateDirty ? 1 : 0));
+        if (stateDirty) {
+            MachineCodec.putState(record, machine, type);
+        }
+        record.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(8));
+        record.putInt(0, bodySize).putInt(4, (int) crc.getValue());
+
+        try (FileChannel channel = FileChannel.open(deltaPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // The changes taken above are in no delta, and a torn record hides every delta
+            // after it, so the next save starts over with a full base.
+            deltaCount = -1;
+            throw e;
+        }
+        deltaCount++;
+        return 8 + bodySize;
+    }
+
+    /**
+     * Makes the next save write a full base snapshot. Call it when the machine's changes
+     * were taken by something else, such as a delta chain of another file, so the next delta
+     * would miss them.
+     */
+    public synchronized void rebase() {
+        deltaCount = -1;
+    }
+
+    /**
+     * Writes a full snapshot that replaces a base and its delta chain. The delta file is
+     * removed before the base is replaced.
+     *
+     * @param snapshot the snapshot returned by {@link MachineCodec#encode}
+     * @param basePath the path of the base snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static void writeFull(ByteBuffer snapshot, Path basePath) throws IOException {
+        Files.deleteIfExists(deltaPathFor(basePath));
+        MachineCodec.writeAtomically(snapshot, basePath);
+    }
+
+    /**
+     * Loads a machine from its base snapshot and merges the delta chain on top of it.
+     *
+     * @param basePath the path of the base snapshot
+     * @return the loaded vending machine
+     * @throws IOException if the base snapshot cannot be read
+     */
+    public static VendingMachine load(Path basePath) throws IOException {
+        ByteBuffer base = ByteBuffer.wrap(Files.readAllBytes(basePath));
+        int baseCrc = base.remaining() >= MachineCodec.HEADER_SIZE ? base.getInt(12) : 0;
+        VendingMachine machine = MachineCodec.decode(base);
+        Path deltaPath = deltaPathFor(basePath);
+        if (!Files.exists(deltaPath)) {
+            return machine;
+        }
+        try (FileChannel channel = FileChannel.open(deltaPath, StandardOpenOption.READ)) {
+            MappedByteBuffer deltas = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (deltas.remaining() < HEADER_SIZE || deltas.getInt() != MAGIC || deltas.getShort() != VERSION) {
+                return machine;
+            }
+            deltas.getShort();
+            if (deltas.getInt() != baseCrc) {
+                return machine;
+            }
+            CRC32C crc = new CRC32C();
+            while (deltas.remaining() >= 8) {
+                int length = deltas.getInt();
+                int checksum = deltas.getInt();
+                if (length < 5 || length > deltas.remaining()) {
+                    break;
+                }
+                ByteBuffer body = deltas.slice().limit(length);
+                deltas.position(deltas.position() + length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                applyDelta(body, machine);
+            }
+        }
+        machine.markClean();
+        return machine;
+    }
+
+    /**
+     * Gets the path of the delta chain that belongs to a base snapshot.
+     *
+     * @param basePath the path of the base snapshot
+     * @return the path of the delta file
+     */
+    public static Path deltaPathFor(Path basePath) {
+        return Paths.get(basePath + ".delta");
+    }
+
+    private int saveBase(VendingMachine machine) throws IOException {
+        deltaCount = -1;
+        machine.markClean();
+        ByteBuffer snapshot = MachineCodec.encode(machine);
+        int length = snapshot.remaining();
+        // The old deltas go first: they would still match a new base with the same content.
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(snapshot.getInt(12)).flip();
+        MachineCodec.writeAtomically(header, deltaPath);
+        MachineCodec.writeAtomically(snapshot, basePath);
+        this.machine = machine;
+        deltaCount = 0;
+        return length;
+    }
+
+    private static void applyDelta(ByteBuffer body, VendingMachine machine) throws IOException {
+        try {
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                int id = body.getInt();
+                byte[] name = new byte[body.getInt()];
+                body.get(name);
+                int price = body.getInt();
+                int quantity = body.getInt();
+                String productName = new String(name, StandardCharsets.UTF_8);
+                if (id > machine.getProductCount()) {
+                    throw new IOException("Delta skips product ids before " + id);
+                }
+                int current = id < machine.getProductCount() ? machine.productQuantity(id) : 0;
+                machine.addProduct(productName, price, quantity - current);
+            }
+            if (body.get() != 0) {
+                MachineCodec.applyState(body, machine);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt delta record", e);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+import vendingmachines.VendingMachine;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+
+/**
+ * Compact binary snapshot format for vending machines.
+ *
+ * <p>A snapshot is a fixed header followed by a payload:
+ * <pre>
+ * int   magic ("VMSN")
+ * short version
+ * byte  machine type (snack, coffee, sandwich)
+ * byte  inventory mode
+ * int   payload length
+ * int   CRC32C of the payload
+ * --- payload ---
+ * long  serial, most significant bits (since version 2)
+ * long  serial, least significant bits (since version 2)
+ * int   product count
+ * per product: int name length, UTF-8 name bytes, int price, int quantity
+ * coffee machines: int water, int beans, int sugar
+ * sandwich machines: int ham, int cheese, int bread
+ * </pre>
+ * Products are written in product id order, so ids survive a round trip. Version 1 snapshots,
+ * which have no serial, are still read; their machines get a new serial.
+ */
+public abstract class MachineCodec {
+    public static final int MAGIC = 0x564D534E;
+    public static final short VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+
+    public static final byte TYPE_SNACK = 0;
+    public static final byte TYPE_COFFEE = 1;
+    public static final byte TYPE_SANDWICH = 2;
+
+    /**
+     * Encodes a vending machine into a snapshot.
+     *
+     * @param machine the vending machine to encode
+     * @return a buffer positioned at the start of the snapshot
+     * @throws IllegalArgumentException if the machine type is not supported
+     */
+    public static ByteBuffer encode(VendingMachine machine) {
+        byte type = typeOf(machine);
+        // One pass collects whatever products the machine has, even while others are added.
+        Products products = new Products();
+        machine.forEachProduct(products);
+        int payloadSize = 20 + products.size + stateSize(type);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.position(HEADER_SIZE);
+        UUID serial = machine.getSerial();
+        buffer.putLong(serial.getMostSignificantBits()).putLong(serial.getLeastSignificantBits());
+        buffer.putInt(products.count);
+        for (int id = 0; id < products.count; id++) {
+            byte[] name = products.names[id];
+            buffer.putInt(name.length).put(name).putInt(products.prices[id]).putInt(products.quantities[id]);
+        }
+        putState(buffer, machine, type);
+
+        buffer.flip();
+        buffer.position(HEADER_SIZE);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.put(6, type);
+        buffer.put(7, (byte) machine.getInventoryMode().ordinal());
+        buffer.putInt(8, payloadSize);
+        buffer.putInt(12, (int) crc.getValue());
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Decodes a vending machine from a snapshot. The buffer position is advanced past the snapshot.
+     *
+     * @param buffer the buffer positioned at the start of a snapshot
+     * @return the decoded vending machine
+     * @throws IOException if the snapshot is malformed, of an unsupported version or fails its checksum
+     */
+    public static VendingMachine decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a vending machine snapshot");
+        }
+        short version = buffer.getShort();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        byte type = buffer.get();
+        byte modeIndex = buffer.get();
+        int payloadLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        VendingMachine.InventoryMode[] modes = VendingMachine.InventoryMode.values();
+        if (modeIndex < 0 || modeIndex >= modes.length || payloadLength < (version == 1 ? 4 : 20) || payloadLength > buffer.remaining()) {
+            throw new IOException("Corrupt snapshot header");
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(payloadLength);
+        buffer.position(buffer.position() + payloadLength);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+
+        try {
+            VendingMachine.InventoryMode mode = modes[modeIndex];
+            UUID serial = version == 1 ? null : new UUID(payload.getLong(), payload.getLong());
+            int productCount = payload.getInt();
+            String[] names = new String[productCount];
+            int[] prices = new int[productCount];
+            int[] quantities = new int[productCount];
+            for (int id = 0; id < productCount; id++) {
+                byte[] name = new byte[payload.getInt()];
+                payload.get(name);
+                names[id] = new String(name, StandardCharsets.UTF_8);
+                prices[id] = payload.getInt();
+                quantities[id] = payload.getInt();
+            }
+
+            VendingMachine machine;
+            switch (type) {
+                case TYPE_SNACK:
+                    machine = new VendingMachine("Snack Variety", 100, mode);
+                    break;
+                case TYPE_COFFEE:
+                    machine = new CoffeeMachine("Basic Coffee", 150, payload.getInt(), payload.getInt(), payload.getInt(), mode);
+                    break;
+                case TYPE_SANDWICH:
+                    machine = new SandwichMachine("Basic Sandwich", 200, payload.getInt(), payload.getInt(), payload.getInt(), mode);
+                    break;
+                default:
+                    throw new IOException("Unknown machine type in snapshot: " + type);
+            }
+            if (serial != null) {
+                machine.setSerial(serial);
+            }
+            for (int id = 0; id < productCount; id++) {
+                machine.addProduct(names[id], prices[id], quantities[id]);
+            }
+            return machine;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt snapshot payload", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of a vending machine to a file, replacing any existing content.
+     *
+     * @param machine the vending machine to save
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(VendingMachine machine, Path path) throws IOException {
+        ByteBuffer buffer = encode(machine);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of a vending machine to a file atomically. The snapshot is written and
+     * forced to a temporary file in the same directory, which is then renamed over the target,
+     * so readers and crashes never observe a torn file.
+     *
+     * @param machine the vending machine to save
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeAtomically(VendingMachine machine, Path path) throws IOException {
+        writeAtomically(encode(machine), path);
+    }
+
+    /**
+     * Writes an encoded snapshot, or any other bytes, to a file atomically, as
+     * {@link #writeAtomically(VendingMachine, Path)} does.
+     *
+     * @param snapshot the bytes to write, such as a snapshot returned by {@link #encode}
+     * @param path the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeAtomically(ByteBuffer snapshot, Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            ByteBuffer buffer = snapshot.duplicate();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reads a vending machine snapshot from a file.
+     *
+     * @param path the file to read
+     * @return the decoded vending machine
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static VendingMachine read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large: " + size + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+            return decode(buffer);
+        }
+    }
+
+    /**
+     * Checks if a file starts with the snapshot magic number.
+     *
+     * @param path the file to check
+     * @return true if the file looks like a snapshot written by this codec
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading until the magic number is complete
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Gets the size of the machine-specific state of a machine type.
+     *
+     * @param type the type tag
+     * @return the size in bytes
+     */
+    static int stateSize(byte type) {
+        return type == TYPE_SNACK ? 0 : 12;
+    }
+
+    /**
+     * Writes the machine-specific state, such as ingredient levels, of a machine.
+     *
+     * @param buffer the buffer to write to
+     * @param machine the vending machine
+     * @param type the type tag of the machine
+     */
+    static void putState(ByteBuffer buffer, VendingMachine machine, byte type) {
+        if (type == TYPE_COFFEE) {
+            CoffeeMachine coffee = (CoffeeMachine) machine;
+            buffer.putInt(coffee.getWaterLevel()).putInt(coffee.getBeanLevel()).putInt(coffee.getSugarLevel());
+        } else if (type == TYPE_SANDWICH) {
+            SandwichMachine sandwich = (SandwichMachine) machine;
+            buffer.putInt(sandwich.getHamQuantity()).putInt(sandwich.getCheeseQuantity()).putInt(sandwich.getBreadQuantity());
+        }
+    }
+
+    /**
+     * Reads machine-specific state written by {@link #putState} and applies it to a machine.
+     *
+     * @param buffer the buffer to read from
+     * @param machine the vending machine to update
+     */
+    static void applyState(ByteBuffer buffer, VendingMachine machine) {
+        if (machine instanceof CoffeeMachine) {
+            CoffeeMachine coffee = (CoffeeMachine) machine;
+            coffee.refillWater(buffer.getInt() - coffee.getWaterLevel());
+            coffee.refillBeans(buffer.getInt() - coffee.getBeanLevel());
+            coffee.refillSugar(buffer.getInt() - coffee.getSugarLevel());
+        } else if (machine instanceof SandwichMachine) {
+            SandwichMachine sandwich = (SandwichMachine) machine;
+            sandwich.refillHam(buffer.getInt() - sandwich.getHamQuantity());
+            sandwich.refillCheese(buffer.getInt() - sandwich.getCheeseQuantity());
+            sandwich.refillBread(buffer.getInt() - sandwich.getBreadQuantity());
+        }
+    }
+
+    /**
+     * Gets the snapshot type tag of a vending machine.
+     *
+     * @param machine the vending machine
+     * @return the type tag
+     * @throws IllegalArgumentException if the machine type is not supported
+     */
+    public static byte typeOf(VendingMachine machine) {
+        if (machine.getClass() == CoffeeMachine.class) {
+            return TYPE_COFFEE;
+        } else if (machine.getClass() == SandwichMachine.class) {
+            return TYPE_SANDWICH;
+        } else if (machine.getClass() == VendingMachine.class) {
+            return TYPE_SNACK;
+        }
+        throw new IllegalArgumentException("Unsupported machine type: " + machine.getClass().getName());
+    }
+
+    /**
+     * The products of a machine, collected in product id order into arrays that grow as
+     * needed.
+     */
+    private static final class Products implements VendingMachine.ProductVisitor {
+        private byte[][] names = new byte[16][];
+        private int[] prices = new int[16];
+        private int[] quantities = new int[16];
+        private int count;
+        private int size;
+
+        @Override
+        public void visit(int id, String name, int price, int quantity) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+                quantities = Arrays.copyOf(quantities, count * 2);
+            }
+            names[count] = name.getBytes(StandardCharsets.UTF_8);
+            prices[count] = price;
+            quantities[count] = quantity;
+            size += 12 + names[count].length;
+            count++;
+        }
+    }
+}
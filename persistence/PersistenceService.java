@@ -0,0 +1,276 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import vendingmachines.VendingMachine;
+
+/**
+ * Runs saves and loads of vending machines on a bounded pool of threads and reports their
+ * completion through {@link CompletableFuture}s.
+ *
+ * <p>Saves are written atomically and coalesced per file. While a save of a file is queued,
+ * further saves of that file replace the queued state instead of queueing another write, and
+ * all of them complete when the latest state is on disk. At most one write per file is in
+ * flight, so concurrent saves never race on the same file.
+ *
+ * <p>Saves are full snapshots, which remove any delta chain of the file, or incremental
+ * ones, which go through one {@link IncrementalSnapshot} per file. A machine's changes can
+ * only feed one delta chain, so a machine saved incrementally to a new file makes the chain
+ * of its previous file start over with a full base.
+ */
+public class PersistenceService implements Closeable {
+    private final ThreadPoolExecutor executor;
+    private final Map<Path, PendingSave> queued = new HashMap<>();
+    private final Map<Path, CompletableFuture<Path>> writing = new HashMap<>();
+    private final Map<Path, IncrementalSnapshot> incremental = new ConcurrentHashMap<>();
+    private final Map<VendingMachine, Path> incrementalPaths = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Constructs a new PersistenceService.
+     *
+     * @param threads the number of threads performing I/O
+     * @param queueCapacity the maximum number of tasks waiting for a thread
+     */
+    public PersistenceService(int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "persistence-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Saves a vending machine to a file. The machine is encoded on the calling thread, so the
+     * saved state is the state at the time of the call even if the machine keeps changing.
+     *
+     * @param machine the vending machine to save
+     * @param path the file to write
+     * @return a future that completes with the path once the state, or a later state saved to
+     *         the same file, is on disk
+     */
+    public CompletableFuture<Path> save(VendingMachine machine, Path path) {
+        ByteBuffer snapshot;
+        try {
+            snapshot = MachineCodec.encode(machine);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return enqueue(path, key -> {
+            incremental.remove(key);
+            IncrementalSnapshot.writeFull(snapshot, key);
+        });
+    }
+
+    /**
+     * Saves the changes of a vending machine since its previous save to a file, as a delta
+     * appended to the file's chain or as a new full base; see {@link IncrementalSnapshot}.
+     * The changes are read on a pool thread. Deltas hold the latest values of what changed,
+     * so a change made while the save runs is written again by the next save.
+     *
+     * @param machine the vending machine to save
+     * @param path the file of the base snapshot
+     * @param deltasPerBase the number of deltas written before the next full base snapshot
+     * @return a future that completes with the path once the changes, or those of a later save
+     *         to the same file, are on disk
+     */
+    public CompletableFuture<Path> saveIncremental(VendingMachine machine, Path path, int deltasPerBase) {
+        try {
+            MachineCodec.typeOf(machine);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return enqueue(path, key -> {
+            Path previous = incrementalPaths.put(machine, key);
+            if (previous != null && !previous.equals(key)) {
+                IncrementalSnapshot stale = incremental.get(previous);
+                if (stale != null) {
+                    stale.rebase();
+                }
+            }
+            incremental.computeIfAbsent(key, k -> new IncrementalSnapshot(k, deltasPerBase)).save(machine);
+        });
+    }
+
+    /**
+     * Loads a vending machine from a file, after any save of that file has finished.
+     *
+     * @param path the file to read
+     * @return a future that completes with the loaded machine
+     */
+    public CompletableFuture<VendingMachine> load(Path path) {
+        return submitAfterSave(path, () -> read(path));
+    }
+
+    /**
+     * Runs a persistence task that reads a file once the saves of that file queued so far
+     * have finished, whether they succeeded or not.
+     *
+     * @param path the file the task reads
+     * @param task the task to run
+     * @return a future that completes with the result of the task
+     */
+    public <T> CompletableFuture<T> submitAfterSave(Path path, Callable<T> task) {
+        Path key = path.toAbsolutePath().normalize();
+        CompletableFuture<Path> save;
+        synchronized (this) {
+            PendingSave pending = queued.get(key);
+            save = pending != null ? pending.future : writing.get(key);
+        }
+        if (save == null) {
+            return submit(task);
+        }
+        // The save was submitted before this task and the queue is first in, first out, so
+        // waiting for it on a pool thread cannot starve it.
+        return submit(() -> {
+            save.handle((saved, error) -> null).join();
+            return task.call();
+        });
+    }
+
+    /**
+     * Runs a persistence task on the pool.
+     *
+     * @param task the task to run
+     * @return a future that completes with the result of the task, or exceptionally with
+     *         whatever it threw or a {@link RejectedExecutionException} if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Reads a vending machine from a file. Binary snapshots are read together with their
+     * delta chain, if an incremental save left one. Other files are read with Java serialization, which is how files were
+     * saved before the binary snapshot format.
+     *
+     * @param path the file to read
+     * @return the loaded vending machine
+     * @throws IOException if the file cannot be read
+     */
+    public static VendingMachine read(Path path) throws IOException {
+        if (MachineCodec.isSnapshot(path)) {
+            if (Files.exists(IncrementalSnapshot.deltaPathFor(path))) {
+                return IncrementalSnapshot.load(path);
+            }
+            return MachineCodec.read(path);
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path));
+             ObjectInputStream ois = new ObjectInputStream(in)) {
+            return (VendingMachine) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Not a vending machine file: " + path, e);
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued saves and loads to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Queues a write of a file, replacing the write already queued for it.
+    private CompletableFuture<Path> enqueue(Path path, Write write) {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            PendingSave pending = queued.get(key);
+            if (pending != null) {
+                pending.write = write;
+                return pending.future;
+            }
+            pending = new PendingSave(write);
+            queued.put(key, pending);
+            if (!writing.containsKey(key)) {
+                submitSave(key);
+            }
+            return pending.future;
+        }
+    }
+
+    // Called with the lock held. Saves queued while the file is being written are picked up
+    // by the thread writing it.
+    private void submitSave(Path key) {
+        try {
+            executor.execute(() -> writeQueued(key));
+        } catch (RejectedExecutionException e) {
+            queued.remove(key).future.completeExceptionally(e);
+        }
+    }
+
+    private void writeQueued(Path key) {
+        while (true) {
+            PendingSave pending;
+            synchronized (this) {
+                pending = queued.remove(key);
+                if (pending == null) {
+                    writing.remove(key);
+                    return;
+                }
+                writing.put(key, pending.future);
+            }
+            try {
+                pending.write.to(key);
+                pending.future.complete(key);
+            } catch (Throwable e) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a save to its file.
+     */
+    private interface Write {
+        void to(Path key) throws IOException;
+    }
+
+    /**
+     * The latest save queued for a file and the future shared by the saves it coalesces.
+     */
+    private static final class PendingSave {
+        private final CompletableFuture<Path> future = new CompletableFuture<>();
+        private Write write;
+
+        PendingSave(Write write) {
+            this.write = write;
+        }
+    }
+}
@@ -0,0 +1,857 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import interfaces.MachineListener;
+import vendingmachines.VendingMachine;
+
+/**
+ * An append-only ledger of sales, kept in columns for fast aggregation.
+ *
+ * <p>Machines attached to the ledger record every purchase as a row of machine, product,
+ * unit price, quantity and timestamp. Rows are appended to in-memory segments of primitive
+ * arrays, one per column. Appends are spread over stripes by machine, so machines on
+ * different threads rarely contend, and the sales of one machine stay in order. A full segment
+ * is handed to a background writer, which stores it in its own file and then drops the
+ * arrays, so the heap only holds the segments being filled.
+ *
+ * <p>Products are recorded by a fleet-wide product code rather than by the id local to a
+ * machine. Codes are assigned to product names in a dictionary file, so queries can group
+ * sales of the same product across machines and name the results without any machine objects.
+ * Machines are recorded the same way, by a code assigned to their serial in a second
+ * dictionary. Fleet ids start again at 1 in every session, but a machine keeps its serial when
+ * it is saved and loaded, so its sales stay together across sessions.
+ *
+ * <p>Queries scan the columns of every segment in tight loops over primitive arrays, with no
+ * object per row; the JIT vectorizes the plain revenue sum. Each segment records the time
+ * range of its rows, so segments outside the queried range are skipped and segments fully
+ * inside it are summed without checking timestamps.
+ *
+ * <p>A segment file is a header ({@code int magic "VMSL", short version, short unused,
+ * int rows, int CRC32C of the columns, long first timestamp, long last timestamp}) followed
+ * by the columns: machine codes, product codes, prices and quantities as ints, then timestamps
+ * as longs, all little-endian. The dictionary files, {@code products.dict} and
+ * {@code machines.dict}, are sequences of modified UTF-8 names and serials; the code of an
+ * entry is its position.
+ */
+public class SalesLedger implements Closeable {
+    public static final int MAGIC = 0x564D534C;
+    public static final short VERSION = 1;
+    /** The default number of rows in a segment. */
+    public static final int DEFAULT_SEGMENT_ROWS = 1 << 16;
+    private static final int HEADER_SIZE = 32;
+    private static final int ROW_SIZE = 24;
+    private static final String SEGMENT_SUFFIX = ".sales";
+    private static final String PRODUCTS = "products.dict";
+    private static final String MACHINES = "machines.dict";
+    private static final Segment STOP = new Segment(0, 0, 0, null, null);
+
+    private final Path directory;
+    private final int segmentRows;
+    private final Stripe[] stripes;
+    private final List<Segment> archived = new ArrayList<>();
+    private final Map<VendingMachine, Binding> bindings = new ConcurrentHashMap<>();
+    private final Dictionary products;
+    private final Dictionary machines;
+    private final BlockingQueue<Segment> unwritten = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private long nextSegment;
+    private volatile int maxMachineCode;
+    private volatile IOException failure;
+
+    private SalesLedger(Path directory, int segmentRows) throws IOException {
+        this.directory = directory;
+        this.segmentRows = segmentRows;
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        products = new Dictionary(directory.resolve(PRODUCTS));
+        machines = new Dictionary(directory.resolve(MACHINES));
+        readSegments();
+        writer = new Thread(this::writeLoop, "sales-ledger-" + directory.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens a ledger with segments of {@link #DEFAULT_SEGMENT_ROWS} rows, creating its
+     * directory if it does not exist.
+     *
+     * @param directory the directory of the segment and dictionary files
+     * @return the ledger
+     * @throws IOException if the directory cannot be read or holds a corrupt segment
+     */
+    public static SalesLedger open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_ROWS);
+    }
+
+    /**
+     * Opens a ledger, creating its directory if it does not exist. Segments already in the
+     * directory are kept and included in queries.
+     *
+     * @param directory the directory of the segment and dictionary files
+     * @param segmentRows the number of rows after which a segment is written to disk
+     * @return the ledger
+     * @throws IOException if the directory cannot be read or holds a corrupt segment
+     */
+    public static SalesLedger open(Path directory, int segmentRows) throws IOException {
+        if (segmentRows < 1) {
+            throw new IllegalArgumentException("Segments need at least one row");
+        }
+        Files.createDirectories(directory);
+        return new SalesLedger(directory, segmentRows);
+    }
+
+    /**
+     * Attaches a machine so that all its purchases are recorded under its machine code.
+     * Machines with the same serial, such as two machines loaded from the same file, share
+     * the code.
+     *
+     * @param machine the machine to attach
+     * @return the machine code, as returned by {@link #machineCode(VendingMachine)}
+     */
+    public int attach(VendingMachine machine) {
+        int machineCode = machineCode(machine);
+        Binding binding = new Binding(machineCode, machine);
+        Binding previous = bindings.put(machine, binding);
+        if (previous != null) {
+            machine.removeListener(previous);
+        }
+        machine.addListener(binding);
+        return machineCode;
+    }
+
+    /**
+     * Detaches a machine from the ledger. Its recorded sales are kept.
+     *
+     * @param machine the machine to detach
+     */
+    public void detach(VendingMachine machine) {
+        Binding binding = bindings.remove(machine);
+        if (binding != null) {
+            machine.removeListener(binding);
+        }
+    }
+
+    /**
+     * Records a sale.
+     *
+     * @param machineCode the machine code, from {@link #machineCode(VendingMachine)}
+     * @param productCode the product code, from {@link #productCode(String)}
+     * @param price the unit price
+     * @param quantity the number of units sold
+     * @param timestamp the time of the sale in milliseconds since the epoch
+     */
+    public void record(int machineCode, int productCode, int price, int quantity, long timestamp) {
+        if (machineCode < 0) {
+            throw new IllegalArgumentException("Invalid machine code: " + machineCode);
+        }
+        if (machineCode > maxMachineCode) {
+            // Raised before the row is visible, so queries always size their totals for it.
+            synchronized (this) {
+                maxMachineCode = Math.max(maxMachineCode, machineCode);
+            }
+        }
+        Stripe stripe = stripes[machineCode & (stripes.length - 1)];
+        synchronized (stripe) {
+            if (stripe.columns == null) {
+                stripe.columns = new Columns(segmentRows);
+            }
+            Columns columns = stripe.columns;
+            int row = stripe.rows;
+            columns.machines[row] = machineCode;
+            columns.products[row] = productCode;
+            columns.prices[row] = price;
+            columns.quantities[row] = quantity;
+            columns.timestamps[row] = timestamp;
+            stripe.rows = row + 1;
+            if (stripe.rows == segmentRows) {
+                seal(stripe);
+            }
+        }
+    }
+
+    /**
+     * Gets the code of a product, assigning the next free code to a new name.
+     *
+     * @param name the name of the product
+     * @return the product code
+     */
+    public int productCode(String name) {
+        return products.code(name);
+    }
+
+    /**
+     * Looks up the code of a product without assigning one.
+     *
+     * @param name the name of the product
+     * @return the product code, or -1 if the ledger has never seen the product
+     */
+    public int findProductCode(String name) {
+        return products.find(name);
+    }
+
+    /**
+     * Gets the name of a product.
+     *
+     * @param productCode the product code
+     * @return the name of the product
+     * @throws IndexOutOfBoundsException if the code is not assigned
+     */
+    public String productName(int productCode) {
+        return products.name(productCode);
+    }
+
+    /**
+     * Gets the number of product codes assigned so far.
+     *
+     * @return the number of products
+     */
+    public int getProductCount() {
+        return products.size();
+    }
+
+    /**
+     * Gets the code of a machine, assigning the next free code to a new serial.
+     *
+     * @param machine the machine
+     * @return the machine code
+     */
+    public int machineCode(VendingMachine machine) {
+        return machines.code(machine.getSerial().toString());
+    }
+
+    /**
+     * Gets the serial of a machine.
+     *
+     * @param machineCode the machine code
+     * @return the serial of the machine
+     * @throws IndexOutOfBoundsException if the code is not assigned
+     */
+    public UUID machineSerial(int machineCode) {
+        return UUID.fromString(machines.name(machineCode));
+    }
+
+    /**
+     * Gets the number of sales recorded.
+     *
+     * @return the number of rows in the ledger
+     */
+    public long getRowCount() {
+        long rows = 0;
+        for (Segment segment : segments()) {
+            rows += segment.rows;
+        }
+        return rows;
+    }
+
+    /**
+     * Sums the revenue of the sales in a time range.
+     *
+     * @param from the start of the range in epoch milliseconds, inclusive
+     * @param to the end of the range in epoch milliseconds, exclusive
+     * @return the revenue
+     * @throws IOException if a segment file cannot be read
+     */
+    public long revenue(long from, long to) throws IOException {
+        long[] total = new long[1];
+        scan(segments(), from, to, (c, rows, all) -> {
+            long sum = 0;
+            if (all) {
+                for (int i = 0; i < rows; i++) {
+                    sum += (long) c.prices[i] * c.quantities[i];
+                }
+            } else {
+                for (int i = 0; i < rows; i++) {
+                    long timestamp = c.timestamps[i];
+                    if (timestamp >= from && timestamp < to) {
+                        sum += (long) c.prices[i] * c.quantities[i];
+                    }
+                }
+            }
+            total[0] += sum;
+        });
+        return total[0];
+    }
+
+    /**
+     * Sums the revenue of the sales in a time range per product.
+     *
+     * @param from the start of the range in epoch milliseconds, inclusive
+     * @param to the end of the range in epoch milliseconds, exclusive
+     * @return the revenue indexed by product code
+     * @throws IOException if a segment file cannot be read
+     */
+    public long[] revenueByProduct(long from, long to) throws IOException {
+        List<Segment> segments = segments();
+        long[] revenue = new long[getProductCount()];
+        scan(segments, from, to, (c, rows, all) -> {
+            for (int i = 0; i < rows; i++) {
+                long timestamp = c.timestamps[i];
+                if (all || timestamp >= from && timestamp < to) {
+                    revenue[c.products[i]] += (long) c.prices[i] * c.quantities[i];
+                }
+            }
+        });
+        return revenue;
+    }
+
+    /**
+     * Sums the revenue of the sales in a time range per machine.
+     *
+     * @param from the start of the range in epoch milliseconds, inclusive
+     * @param to the end of the range in epoch milliseconds, exclusive
+     * @return the revenue indexed by machine code
+     * @throws IOException if a segment file cannot be read
+     */
+    public long[] revenueByMachine(long from, long to) throws IOException {
+        List<Segment> segments = segments();
+        long[] revenue = new long[maxMachineCode + 1];
+        scan(segments, from, to, (c, rows, all) -> {
+            for (int i = 0; i < rows; i++) {
+                long timestamp = c.timestamps[i];
+                if (all || timestamp >= from && timestamp < to) {
+                    revenue[c.machines[i]] += (long) c.prices[i] * c.quantities[i];
+                }
+            }
+        });
+        return revenue;
+    }
+
+    /**
+     * Sums the revenue of the sales in a time range per time bucket.
+     *
+     * @param from the start of the range, and of the first bucket, in epoch milliseconds
+     * @param to the end of the range in epoch milliseconds, exclusive
+     * @param bucketMillis the length of a bucket in milliseconds
+     * @return the revenue of each bucket; bucket i starts at {@code from + i * bucketMillis}
+     * @throws IOException if a segment file cannot be read
+     */
+    public long[] revenueByBucket(long from, long to, long bucketMillis) throws IOException {
+        if (bucketMillis <= 0 || to < from) {
+            throw new IllegalArgumentException("Invalid buckets: " + bucketMillis + " ms from " + from + " to " + to);
+        }
+        long buckets = (to - from + bucketMillis - 1) / bucketMillis;
+        if (buckets > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many buckets: " + buckets);
+        }
+        long[] revenue = new long[(int) buckets];
+        scan(segments(), from, to, (c, rows, all) -> {
+            for (int i = 0; i < rows; i++) {
+                long timestamp = c.timestamps[i];
+                if (all || timestamp >= from && timestamp < to) {
+                    revenue[(int) ((timestamp - from) / bucketMillis)] += (long) c.prices[i] * c.quantities[i];
+                }
+            }
+        });
+        return revenue;
+    }
+
+    /**
+     * Formats the number of sales and the revenue, in total and per product, as text.
+     *
+     * @return the totals over all recorded sales, one per line
+     * @throws IOException if a segment file cannot be read
+     */
+    public String toText() throws IOException {
+        long[] byProduct = revenueByProduct(Long.MIN_VALUE, Long.MAX_VALUE);
+        long total = 0;
+        StringBuilder products = new StringBuilder();
+        for (int code = 0; code < byProduct.length; code++) {
+            total += byProduct[code];
+            if (byProduct[code] != 0) {
+                products.append(' ').append(productName(code)).append('=').append(byProduct[code]);
+            }
+        }
+        StringBuilder text = new StringBuilder("Sales recorded: ").append(getRowCount())
+                .append("\nSales revenue: ").append(total).append('\n');
+        if (products.length() > 0) {
+            text.append("Revenue by product:").append(products).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes all recorded sales to disk, including those of partly filled segments, and waits
+     * until they are written.
+     *
+     * @throws IOException if writing failed
+     */
+    public void flush() throws IOException {
+        List<Segment> pending = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.rows > 0) {
+                    seal(stripe);
+                }
+                for (Segment segment : stripe.sealed) {
+                    if (segment.file == null) {
+                        pending.add(segment);
+                    }
+                }
+            }
+        }
+        for (Segment segment : pending) {
+            segment.written.join();
+        }
+        products.flush();
+        machines.flush();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes all recorded sales to disk and stops the writer. Attached machines are detached.
+     */
+    @Override
+    public void close() throws IOException {
+        for (VendingMachine machine : bindings.keySet()) {
+            detach(machine);
+        }
+        try {
+            flush();
+        } finally {
+            unwritten.add(STOP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            products.close();
+            machines.close();
+        }
+    }
+
+    /**
+     * Moves the rows of a stripe into a sealed segment and queues it for writing. Called with
+     * the stripe locked.
+     */
+    private void seal(Stripe stripe) {
+        Columns columns = stripe.columns;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < stripe.rows; i++) {
+            first = Math.min(first, columns.timestamps[i]);
+            last = Math.max(last, columns.timestamps[i]);
+        }
+        Segment segment = new Segment(stripe.rows, first, last, columns, null);
+        stripe.sealed.add(segment);
+        stripe.columns = null;
+        stripe.rows = 0;
+        unwritten.add(segment);
+    }
+
+    /**
+     * Collects every segment, including the rows being filled, as they are now. Each stripe is
+     * copied under its lock, so every row is seen exactly once.
+     */
+    private List<Segment> segments() {
+        List<Segment> segments = new ArrayList<>(archived);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                segments.addAll(stripe.sealed);
+                if (stripe.rows > 0) {
+                    long first = Long.MAX_VALUE;
+                    long last = Long.MIN_VALUE;
+                    for (int i = 0; i < stripe.rows; i++) {
+                        first = Math.min(first, stripe.columns.timestamps[i]);
+                        last = Math.max(last, stripe.columns.timestamps[i]);
+                    }
+                    segments.add(new Segment(stripe.rows, first, last, stripe.columns, null));
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Visits the columns of every segment that overlaps a time range.
+     */
+    private void scan(List<Segment> segments, long from, long to, ColumnVisitor visitor) throws IOException {
+        Columns buffer = null;
+        for (Segment segment : segments) {
+            if (segment.rows == 0 || segment.last < from || segment.first >= to) {
+                continue;
+            }
+            boolean all = segment.first >= from && segment.last < to;
+            Columns columns = segment.columns;
+            if (columns == null) {
+                if (buffer == null || buffer.prices.length < segment.rows) {
+                    buffer = new Columns(Math.max(segment.rows, segmentRows));
+                }
+                columns = segment.read(buffer);
+            }
+            visitor.visit(columns, segment.rows, all);
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        while (true) {
+            Segment segment;
+            try {
+                segment = unwritten.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (segment == STOP) {
+                return;
+            }
+            try {
+                int size = HEADER_SIZE + segment.rows * ROW_SIZE;
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                buffer.clear();
+                segment.encode(buffer);
+                // A segment must never refer to codes missing from the dictionaries.
+                products.flush();
+                machines.flush();
+                Path file = directory.resolve(String.format("segment-%012d%s", nextSegment++, SEGMENT_SUFFIX));
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+                segment.file = file;
+                segment.columns = null;
+            } catch (IOException e) {
+                // The segment stays in memory, so queries still see its rows.
+                failure = e;
+            } finally {
+                segment.written.complete(null);
+            }
+        }
+    }
+
+    private void readSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            maxMachineCode = Math.max(maxMachineCode, segment.maxMachineCode);
+            archived.add(segment);
+            String name = file.getFileName().toString();
+            nextSegment = Math.max(nextSegment, Long.parseLong(name.substring("segment-".length(), name.length() - SEGMENT_SUFFIX.length())) + 1);
+        }
+    }
+
+    /**
+     * Receives the columns of one segment during a scan.
+     */
+    private interface ColumnVisitor {
+        /**
+         * @param columns the columns; only the first rows entries are valid
+         * @param rows the number of rows
+         * @param all true if every row is inside the queried time range
+         */
+        void visit(Columns columns, int rows, boolean all);
+    }
+
+    /**
+     * The column arrays of a segment.
+     */
+    private static final class Columns {
+        private final int[] machines;
+        private final int[] products;
+        private final int[] prices;
+        private final int[] quantities;
+        private final long[] timestamps;
+
+        Columns(int capacity) {
+            machines = new int[capacity];
+            products = new int[capacity];
+            prices = new int[capacity];
+            quantities = new int[capacity];
+            timestamps = new long[capacity];
+        }
+    }
+
+    /**
+     * A sealed run of rows, held in memory until the writer has stored it and read back from
+     * its file afterwards.
+     */
+    private static final class Segment {
+        private final int rows;
+        private final long first;
+        private final long last;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private volatile Columns columns;
+        private volatile Path file;
+        private int maxMachineCode;
+
+        Segment(int rows, long first, long last, Columns columns, Path file) {
+            this.rows = rows;
+            this.first = first;
+            this.last = last;
+            this.columns = columns;
+            this.file = file;
+        }
+
+        /**
+         * Reads the header of a segment file and checks its columns.
+         */
+        static Segment open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                if (mapped.remaining() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getShort(4) != VERSION) {
+                    throw new IOException("Not a sales ledger segment: " + file);
+                }
+                int rows = mapped.getInt(8);
+                if (rows < 0 || (long) HEADER_SIZE + (long) rows * ROW_SIZE != mapped.capacity()) {
+                    throw new IOException("Segment " + file + " has the wrong size for " + rows + " rows");
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(mapped.duplicate().position(HEADER_SIZE));
+                if ((int) crc.getValue() != mapped.getInt(12)) {
+                    throw new IOException("Checksum mismatch in segment " + file);
+                }
+                Segment segment = new Segment(rows, mapped.getLong(16), mapped.getLong(24), null, file);
+                for (int i = 0; i < rows; i++) {
+                    segment.maxMachineCode = Math.max(segment.maxMachineCode, mapped.getInt(HEADER_SIZE + 4 * i));
+                }
+                segment.written.complete(null);
+                return segment;
+            }
+        }
+
+        void encode(ByteBuffer buffer) {
+            Columns source = columns;
+            buffer.position(HEADER_SIZE);
+            buffer.asIntBuffer().put(source.machines, 0, rows);
+            buffer.position(HEADER_SIZE + 4 * rows);
+            buffer.asIntBuffer().put(source.products, 0, rows);
+            buffer.position(HEADER_SIZE + 8 * rows);
+            buffer.asIntBuffer().put(source.prices, 0, rows);
+            buffer.position(HEADER_SIZE + 12 * rows);
+            buffer.asIntBuffer().put(source.quantities, 0, rows);
+            buffer.position(HEADER_SIZE + 16 * rows);
+            buffer.asLongBuffer().put(source.timestamps, 0, rows);
+            buffer.position(HEADER_SIZE + ROW_SIZE * rows);
+            buffer.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().position(HEADER_SIZE));
+            buffer.putInt(0, MAGIC).putShort(4, VERSION).putShort(6, (short) 0).putInt(8, rows)
+                    .putInt(12, (int) crc.getValue()).putLong(16, first).putLong(24, last);
+        }
+
+        /**
+         * Reads the columns from the file into the given arrays.
+         */
+        Columns read(Columns into) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                mapped.position(HEADER_SIZE);
+                mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(into.machines, 0, rows);
+                mapped.position(HEADER_SIZE + 4 * rows);
+                mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(into.products, 0, rows);
+                mapped.position(HEADER_SIZE + 8 * rows);
+                mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(into.prices, 0, rows);
+                mapped.position(HEADER_SIZE + 12 * rows);
+                mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(into.quantities, 0, rows);
+                mapped.position(HEADER_SIZE + 16 * rows);
+                mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(into.timestamps, 0, rows);
+                return into;
+            }
+        }
+    }
+
+    /**
+     * The rows being appended for the machines of one stripe, and the segments it has sealed.
+     * Guarded by the stripe's lock.
+     */
+    private static final class Stripe {
+        private final List<Segment> sealed = new ArrayList<>();
+        private Columns columns;
+        private int rows;
+    }
+
+    /**
+     * Names assigned to consecutive codes and appended to a file as they are assigned. The
+     * code of a name is its position in the file. Known names are looked up without a lock;
+     * new names are assigned and written under the dictionary's lock.
+     */
+    private final class Dictionary implements Closeable {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final DataOutputStream out;
+
+        Dictionary(Path file) throws IOException {
+            long validBytes = read(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // A name cut short by a crash is dropped.
+                channel.truncate(validBytes);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+        }
+
+        int code(String name) {
+            Integer code = codes.get(name);
+            if (code != null) {
+                return code;
+            }
+            synchronized (this) {
+                code = codes.get(name);
+                if (code == null) {
+                    code = names.size();
+                    try {
+                        out.writeUTF(name);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    names.add(name);
+                    codes.put(name, code);
+                }
+                return code;
+            }
+        }
+
+        int find(String name) {
+            Integer code = codes.get(name);
+            return code != null ? code : -1;
+        }
+
+        synchronized String name(int code) {
+            return names.get(code);
+        }
+
+        synchronized int size() {
+            return names.size();
+        }
+
+        synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private long read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            long valid = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                CountingInput counting = new CountingInput(new BufferedInputStream(in));
+                DataInputStream entries = new DataInputStream(counting);
+                while (true) {
+                    String name;
+                    try {
+                        name = entries.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    codes.put(name, names.size());
+                    names.add(name);
+                    valid = counting.count;
+                }
+            }
+            return valid;
+        }
+    }
+
+    /**
+     * An input stream that counts the bytes read, to find the end of the last whole name.
+     */
+    private static final class CountingInput extends FilterInputStream {
+        private long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Listener that records the purchases of one attached machine. Product codes are cached
+     * by the machine's product id, so a sale only looks up the name the first time.
+     */
+    private class Binding implements MachineListener {
+        private final int machineCode;
+        private final VendingMachine machine;
+        private volatile int[] codes = new int[0];
+
+        Binding(int machineCode, VendingMachine machine) {
+            this.machineCode = machineCode;
+            this.machine = machine;
+        }
+
+        @Override
+        public void productBought(VendingMachine machine, int productId, int price, int quantity) {
+            record(machineCode, codeOf(productId), price, quantity, System.currentTimeMillis());
+        }
+
+        private int codeOf(int productId) {
+            int[] current = codes;
+            if (productId < current.length && current[productId] > 0) {
+                return current[productId] - 1;
+            }
+            int code = productCode(machine.productName(productId));
+            synchronized (this) {
+                int[] updated = codes;
+                if (productId >= updated.length) {
+                    updated = Arrays.copyOf(updated, Math.max(productId + 1, updated.length * 2));
+                }
+                updated[productId] = code + 1;
+                codes = updated;
+            }
+            return code;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import interfaces.MachineListener;
+import vendingmachines.OperationStatus;
+import vendingmachines.RecipeMachine;
+import vendingmachines.VendingMachine;
+
+/**
+ * An append-only write-ahead log of vending machine operations.
+ *
+ * <p>Machines attached to the log have every mutation appended as a record. Records are
+ * collected in memory and written by a background flusher thread, which writes and fsyncs
+ * everything that arrived during the previous fsync in one batch (group commit). In
+ * synchronous mode each mutating thread also waits until its record is durable.
+ *
+ * <p>The file is a header ({@code int magic "VMWL", short version, short unused}) followed by
+ * records of the form {@code int body length, int CRC32C of body, body}, where the body is
+ * {@code long sequence number, int machine id, byte kind} and the kind-specific data.
+ * A checkpoint record holds a full {@link MachineCodec} snapshot of one machine.
+ * {@link #compact()} replaces the whole log with fresh checkpoints, so a log always
+ * replays from its own contents. Compaction should run while the attached machines
+ * are not being mutated, for example from the thread that owns them. Records are replayed
+ * in the order they were appended, which matches the order of the mutations as long as
+ * each machine is mutated by one thread at a time or its operations commute.
+ *
+ * <p>An open log holds an exclusive lock on its file, so a second instance, in this process
+ * or another one, cannot append to the same file and fails to open instead. An open log is
+ * replayed with {@link #replayOnto(Map)} rather than {@link #replay(Path, Map)}.
+ */
+public class TransactionLog implements Closeable {
+    public static final int MAGIC = 0x564D574C;
+    public static final short VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 8;
+    private static final byte RECORD_CHECKPOINT = 1;
+    private static final byte RECORD_ADD_PRODUCT = 2;
+    private static final byte RECORD_BUY_PRODUCT = 3;
+    private static final byte RECORD_OPERATION = 4;
+    private static final Map<String, byte[]> OPERATION_NAMES = new ConcurrentHashMap<>();
+    /**
+     * The logs open in this process. File locks only keep out other processes, and closing any
+     * channel on a locked file releases the process's lock, so a second open is refused before
+     * it touches the file.
+     */
+    private static final Set<Path> OPEN_LOGS = ConcurrentHashMap.newKeySet();
+
+    private final Path path;
+    private final boolean syncCommit;
+    private final Object lock = new Object();
+    private final Object writeLock = new Object();
+    private final Map<Integer, Binding> bindings = new ConcurrentHashMap<>();
+    private final CRC32C appendCrc = new CRC32C();
+    private final Thread flusher;
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    private long nextSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    private TransactionLog(Path path, FileChannel channel, long lastSequence, boolean syncCommit) {
+        this.path = path;
+        this.channel = channel;
+        this.syncCommit = syncCommit;
+        this.nextSequence = lastSequence + 1;
+        this.durableSequence = lastSequence;
+        this.flusher = new Thread(this::flushLoop, "transaction-log-" + path.getFileName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Opens a log for appending, creating it if it does not exist. A torn record at the end
+     * of an existing log, left by a crash, is truncated.
+     *
+     * @param path the log file
+     * @param syncCommit whether mutating threads wait until their records are durable
+     * @return the open log
+     * @throws IOException if the log cannot be opened, is already open or is not a transaction log
+     */
+    public static TransactionLog open(Path path, boolean syncCommit) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        if (!OPEN_LOGS.add(key)) {
+            throw new IOException("Transaction log is already open: " + path);
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            OPEN_LOGS.remove(key);
+            throw e;
+        }
+        try {
+            lock(channel, path);
+            long lastSequence = 0;
+            if (channel.size() == 0) {
+                channel.write(header(), 0);
+                channel.force(true);
+                channel.position(HEADER_SIZE);
+            } else {
+                ByteBuffer log = map(channel);
+                lastSequence = scan(log, null);
+                channel.truncate(log.position());
+                channel.position(log.position());
+            }
+            return new TransactionLog(path, channel, lastSequence, syncCommit);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            OPEN_LOGS.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Replays a log onto a set of machines. Checkpoint records replace the machine with the
+     * same id, and operation records are applied to it. Replay stops at the first torn or
+     * corrupt record.
+     *
+     * @param path the log file
+     * @param machines the machines to replay onto keyed by machine id; updated in place
+     * @return the sequence number of the last record applied, or 0 if there were none
+     * @throws IOException if the log cannot be read, is open in this process or refers to a
+     *         machine that is not known
+     */
+    public static long replay(Path path, Map<Integer, VendingMachine> machines) throws IOException {
+        if (OPEN_LOGS.contains(path.toAbsolutePath().normalize())) {
+            // Closing the channel below would release the open log's lock.
+            throw new IOException("Transaction log is open, replay it with replayOnto: " + path);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return scan(map(channel), machines);
+        }
+    }
+
+    /**
+     * Attaches a machine so that all its mutations are logged under the given id.
+     *
+     * @param machineId the id of the machine within this log
+     * @param machine the machine to attach
+     */
+    public void attach(int machineId, VendingMachine machine) {
+        Binding binding = new Binding(machineId, machine);
+        Binding previous = bindings.put(machineId, binding);
+        if (previous != null) {
+            previous.machine.removeListener(previous);
+        }
+        machine.addListener(binding);
+    }
+
+    /**
+     * Replays this log onto a set of machines, as {@link #replay(Path, Map)} does, once every
+     * record appended so far is durable. The log's own channel is read.
+     *
+     * @param machines the machines to replay onto keyed by machine id; updated in place
+     * @return the sequence number of the last record applied, or 0 if there were none
+     * @throws IOException if the log is closed, cannot be read or refers to a machine that is not known
+     */
+    public long replayOnto(Map<Integer, VendingMachine> machines) throws IOException {
+        sync();
+        synchronized (writeLock) {
+            synchronized (lock) {
+                checkOpen();
+            }
+            return scan(map(channel), machines);
+        }
+    }
+
+    /**
+     * Gets the machine attached under an id.
+     *
+     * @param machineId the id of the machine within this log
+     * @return the attached machine, or null if none is attached under the id
+     */
+    public VendingMachine getMachine(int machineId) {
+        Binding binding = bindings.get(machineId);
+        return binding != null ? binding.machine : null;
+    }
+
+    /**
+     * Detaches a machine from the log.
+     *
+     * @param machineId the id of the machine within this log
+     */
+    public void detach(int machineId) {
+        Binding binding = bindings.remove(machineId);
+        if (binding != null) {
+            binding.machine.removeListener(binding);
+        }
+    }
+
+    /**
+     * Gets the log file.
+     *
+     * @return the path of the log file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Waits until every record appended so far is durable.
+     *
+     * @throws IOException if the flusher failed to write the log
+     */
+    public void sync() throws IOException {
+        long sequence;
+        synchronized (lock) {
+            sequence = nextSequence - 1;
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Folds the whole log into a fresh checkpoint of every attached machine. The new log is
+     * written to a temporary file and atomically renamed over the old one.
+     *
+     * @throws IOException if the new log cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            synchronized (lock) {
+                checkOpen();
+                Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+                FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    // The lock moves to the new file with the rename.
+                    lock(compacted, path);
+                    compacted.write(header());
+                    CRC32C crc = new CRC32C();
+                    for (Binding binding : bindings.values()) {
+                        ByteBuffer snapshot = MachineCodec.encode(binding.machine);
+                        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + 13 + snapshot.remaining());
+                        record.position(RECORD_OVERHEAD);
+                        record.putLong(nextSequence++).putInt(binding.machineId).put(RECORD_CHECKPOINT).put(snapshot);
+                        seal(record, 0, crc);
+                        record.flip();
+                        while (record.hasRemaining()) {
+                            compacted.write(record);
+                        }
+                    }
+                    compacted.force(true);
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException | RuntimeException e) {
+                    compacted.close();
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+                channel.close();
+                channel = compacted;
+                pending.clear();
+                durableSequence = nextSequence - 1;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Integer machineId : bindings.keySet()) {
+            detach(machineId);
+        }
+        channel.close();
+        OPEN_LOGS.remove(path.toAbsolutePath().normalize());
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void append(int machineId, byte kind, byte[] text, int first, int second) {
+        long sequence;
+        synchronized (lock) {
+            if (closed || failure != null) {
+                return;
+            }
+            int bodySize = 13 + (text != null ? 4 + text.length : 0) + 8;
+            if (pending.remaining() < RECORD_OVERHEAD + bodySize) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_OVERHEAD + bodySize));
+                pending.flip();
+                pending = grown.put(pending);
+            }
+            int start = pending.position();
+            sequence = nextSequence++;
+            pending.position(start + RECORD_OVERHEAD);
+            pending.putLong(sequence).putInt(machineId).put(kind);
+            if (text != null) {
+                pending.putInt(text.length).put(text);
+            }
+            pending.putInt(first).putInt(second);
+            seal(pending, start, appendCrc);
+            lock.notifyAll();
+        }
+        if (syncCommit) {
+            try {
+                awaitDurable(sequence);
+            } catch (IOException e) {
+                System.err.println("Error writing transaction log " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void awaitDurable(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durableSequence < sequence && failure == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the transaction log", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (lock) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+            }
+            long batchSequence;
+            synchronized (writeLock) {
+                synchronized (lock) {
+                    if (pending.position() == 0) {
+                        continue;
+                    }
+                    ByteBuffer batch = pending;
+                    pending = flushing;
+                    flushing = batch;
+                    batchSequence = nextSequence - 1;
+                }
+                try {
+                    flushing.flip();
+                    while (flushing.hasRemaining()) {
+                        channel.write(flushing);
+                    }
+                    channel.force(false);
+                    flushing.clear();
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        failure = e;
+                        lock.notifyAll();
+                    }
+                    System.err.println("Error writing transaction log " + path + ": " + e.getMessage());
+                    return;
+                }
+            }
+            synchronized (lock) {
+                durableSequence = Math.max(durableSequence, batchSequence);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Transaction log is closed: " + path);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads records from a log positioned at its start, applying them if machines are given.
+     * On return the buffer is positioned after the last valid record.
+     */
+    private static long scan(ByteBuffer log, Map<Integer, VendingMachine> machines) throws IOException {
+        if (log.remaining() < HEADER_SIZE || log.getInt() != MAGIC) {
+            throw new IOException("Not a transaction log");
+        }
+        short version = log.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported transaction log version: " + version);
+        }
+        log.getShort();
+        long lastSequence = 0;
+        CRC32C crc = new CRC32C();
+        while (log.remaining() >= RECORD_OVERHEAD) {
+            int start = log.position();
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length < 13 || length > log.remaining()) {
+                log.position(start);
+                break;
+            }
+            ByteBuffer body = log.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                log.position(start);
+                break;
+            }
+            log.position(log.position() + length);
+            lastSequence = body.getLong();
+            if (machines != null) {
+                apply(body, machines);
+            }
+        }
+        return lastSequence;
+    }
+
+    private static void apply(ByteBuffer body, Map<Integer, VendingMachine> machines) throws IOException {
+        int machineId = body.getInt();
+        byte kind = body.get();
+        if (kind == RECORD_CHECKPOINT) {
+            machines.put(machineId, MachineCodec.decode(body));
+            return;
+        }
+        VendingMachine machine = machines.get(machineId);
+        if (machine == null) {
+            throw new IOException("Transaction log refers to unknown machine " + machineId);
+        }
+        String text = null;
+        if (kind == RECORD_ADD_PRODUCT || kind == RECORD_OPERATION) {
+            byte[] bytes = new byte[body.getInt()];
+            body.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        int first = body.getInt();
+        int second = body.getInt();
+        switch (kind) {
+            case RECORD_ADD_PRODUCT:
+                machine.addProduct(text, first, second);
+                break;
+            case RECORD_BUY_PRODUCT:
+                for (int i = 0; i < second; i++) {
+                    if (!machine.buy(first)) {
+                        throw new IOException("Transaction log replay diverged buying product " + first);
+                    }
+                }
+                break;
+            case RECORD_OPERATION:
+                applyOperation(machine, text, first);
+                break;
+            default:
+                throw new IOException("Unknown transaction log record kind: " + kind);
+        }
+    }
+
+    private static void applyOperation(VendingMachine machine, String operation, int amount) throws IOException {
+        if (machine instanceof RecipeMachine) {
+            OperationStatus status;
+            try {
+                status = ((RecipeMachine) machine).applyOperation(operation, amount);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Transaction log replay diverged: " + e.getMessage(), e);
+            }
+            if (status == OperationStatus.OK) {
+                return;
+            }
+            if (status == OperationStatus.INSUFFICIENT_RESOURCES) {
+                throw new IOException("Transaction log replay diverged: not enough ingredients for " + operation);
+            }
+        }
+        throw new IOException("Unknown operation in transaction log: " + operation);
+    }
+
+    private static void seal(ByteBuffer buffer, int start, CRC32C crc) {
+        int end = buffer.position();
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + RECORD_OVERHEAD).limit(end);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start, end - start - RECORD_OVERHEAD);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private static void lock(FileChannel channel, Path path) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            throw new IOException("Transaction log is already open: " + path);
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).flip();
+        return header;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Transaction log too large: " + channel.size() + " bytes");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Listener that appends the mutations of one attached machine to the log.
+     */
+    private class Binding implements MachineListener {
+        private final int machineId;
+        private final VendingMachine machine;
+
+        Binding(int machineId, VendingMachine machine) {
+            this.machineId = machineId;
+            this.machine = machine;
+        }
+
+        @Override
+        public void productAdded(VendingMachine machine, int productId, String name, int price, int quantity) {
+            append(machineId, RECORD_ADD_PRODUCT, name.getBytes(StandardCharsets.UTF_8), price, quantity);
+        }
+
+        @Override
+        public void productBought(VendingMachine machine, int productId, int price, int quantity) {
+            append(machineId, RECORD_BUY_PRODUCT, null, productId, quantity);
+        }
+
+        @Override
+        public void operationPerformed(VendingMachine machine, String operation, int amount) {
+            byte[] name = OPERATION_NAMES.computeIfAbsent(operation, op -> op.getBytes(StandardCharsets.UTF_8));
+            append(machineId, RECORD_OPERATION, name, amount, 0);
+        }
+    }
+}
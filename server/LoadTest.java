@@ -0,0 +1,282 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import fleet.FleetRegistry;
+import fleet.MachineType;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+/**
+ * Measures the throughput and latency of a {@link VendingServer} under many concurrent
+ * kiosks. One selector thread drives all connections; each connection keeps a fixed number of
+ * BUY requests in flight, for random products of random snack machines, and sends a new one
+ * as soon as a response arrives. Latencies are measured from when a request is queued to when
+ * its response is read, after a warm-up period.
+ *
+ * <p>Without a port, the load test starts a server in the same process.
+ *
+ * <p>Usage: {@code java server.LoadTest [--host 127.0.0.1] [--port p] [--loops n]
+ * [--connections 1000] [--pipeline 4] [--machines 16] [--products 64] [--warmup 2] [--seconds 10]}
+ */
+public class LoadTest {
+    private static final int STOCK = 100_000_000;
+
+    private final List<byte[]> requests = new ArrayList<>();
+    private final LatencyHistogram latencies = new LatencyHistogram(1);
+    private final long[] statuses = new long[256];
+    private long seed = System.nanoTime() | 1;
+    private long measureFrom;
+    private long sendUntil;
+    private long completed;
+    private long failed;
+
+    /**
+     * Creates the machines and products used by the load test.
+     *
+     * @param client a client of the server
+     * @param machines the number of snack machines
+     * @param products the number of products per machine
+     * @throws IOException if the server fails
+     */
+    void setUp(VendingClient client, int machines, int products) throws IOException {
+        for (int m = 0; m < machines; m++) {
+            int id = client.create(MachineType.SNACK);
+            for (int p = 0; p < products; p++) {
+                String name = "Product " + p;
+                if (client.addProduct(id, name, 100 + p, STOCK) != Protocol.OK) {
+                    throw new IOException("Could not add " + name + ": " + Protocol.statusName(client.getStatus()));
+                }
+                ByteBuffer frame = ByteBuffer.allocate(64);
+                frame.putInt(0).put(Protocol.BUY).putInt(id);
+                Protocol.putString(frame, name);
+                frame.putInt(0, frame.position() - 4);
+                byte[] request = new byte[frame.position()];
+                frame.flip().get(request);
+                requests.add(request);
+            }
+        }
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param address the address of the server
+     * @param connections the number of connections
+     * @param pipeline the number of requests in flight per connection
+     * @param warmupSeconds the time before measuring starts
+     * @param seconds the time to measure
+     * @throws IOException if the connections fail
+     */
+    void run(InetSocketAddress address, int connections, int pipeline, double warmupSeconds, double seconds) throws IOException {
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(address);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+                key.attach(new Kiosk(channel, key, pipeline));
+            }
+            long start = System.nanoTime();
+            measureFrom = start + (long) (warmupSeconds * 1e9);
+            sendUntil = measureFrom + (long) (seconds * 1e9);
+            long giveUp = sendUntil + 5_000_000_000L;
+            int open = connections;
+            while (open > 0 && System.nanoTime() < giveUp) {
+                selector.select(100);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Kiosk kiosk = (Kiosk) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            kiosk.connected();
+                        } else if (key.isReadable()) {
+                            kiosk.read();
+                        } else if (key.isWritable()) {
+                            kiosk.flush();
+                        }
+                    } catch (IOException e) {
+                        failed++;
+                        kiosk.close();
+                    }
+                    if (kiosk.done) {
+                        open--;
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Kiosk) key.attachment()).close();
+            }
+        }
+    }
+
+    /**
+     * Prints the results of the last run.
+     *
+     * @param connections the number of connections
+     * @param pipeline the number of requests in flight per connection
+     * @param seconds the measured time
+     */
+    void report(int connections, int pipeline, double seconds) {
+        long[] buckets = latencies.buckets();
+        System.out.printf("Connections: %d, pipeline: %d, products: %d%n", connections, pipeline, requests.size());
+        System.out.printf("Requests: %d in %.1f s = %.0f req/s%n", completed, seconds, completed / seconds);
+        System.out.printf("Latency: mean %.1f us, p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n",
+                latencies.mean() / 1e3, LatencyHistogram.percentile(buckets, 50) / 1e3,
+                LatencyHistogram.percentile(buckets, 99) / 1e3, LatencyHistogram.percentile(buckets, 99.9) / 1e3);
+        StringBuilder line = new StringBuilder("Statuses:");
+        for (int status = 0; status < statuses.length; status++) {
+            if (statuses[status] > 0) {
+                line.append(' ').append(Protocol.statusName((byte) status)).append('=').append(statuses[status]);
+            }
+        }
+        System.out.println(line);
+        if (failed > 0) {
+            System.out.println("Failed connections: " + failed);
+        }
+    }
+
+    private byte[] nextRequest() {
+        // xorshift, so that picking a request costs next to nothing next to sending it
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return requests.get((int) ((seed >>> 1) % requests.size()));
+    }
+
+    /**
+     * One simulated kiosk: a connection with its buffers and the send times of its requests
+     * in flight, oldest first.
+     */
+    private final class Kiosk {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final long[] sent;
+        private final ByteBuffer out;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+        private int oldest;
+        private int inFlight;
+        private boolean done;
+
+        Kiosk(SocketChannel channel, SelectionKey key, int pipeline) {
+            this.channel = channel;
+            this.key = key;
+            sent = new long[pipeline];
+            out = ByteBuffer.allocate(pipeline * 64);
+        }
+
+        void connected() throws IOException {
+            channel.finishConnect();
+            send();
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            in.flip();
+            long now = System.nanoTime();
+            while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                int length = in.getInt();
+                int status = in.get(in.position()) & 0xFF;
+                in.position(in.position() + length);
+                if (now >= measureFrom && sent[oldest] >= measureFrom) {
+                    latencies.record(now - sent[oldest]);
+                    statuses[status]++;
+                    completed++;
+                }
+                oldest = (oldest + 1) % sent.length;
+                inFlight--;
+            }
+            in.compact();
+            send();
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (!done) {
+                done = true;
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The run is over for this kiosk either way.
+                }
+            }
+        }
+
+        private void send() throws IOException {
+            long now = System.nanoTime();
+            if (now >= sendUntil) {
+                if (inFlight == 0) {
+                    close();
+                }
+                return;
+            }
+            while (inFlight < sent.length) {
+                out.put(nextRequest());
+                sent[(oldest + inFlight) % sent.length] = now;
+                inFlight++;
+            }
+            flush();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        String host = options.getOrDefault("host", "127.0.0.1");
+        int connections = Integer.parseInt(options.getOrDefault("connections", "1000"));
+        int pipeline = Integer.parseInt(options.getOrDefault("pipeline", "4"));
+        double warmup = Double.parseDouble(options.getOrDefault("warmup", "2"));
+        double seconds = Double.parseDouble(options.getOrDefault("seconds", "10"));
+
+        VendingServer server = null;
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            server = new VendingServer(new FleetRegistry(), new MetricsRegistry(), new InetSocketAddress(host, 0),
+                    Integer.parseInt(options.getOrDefault("loops", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+            port = server.getPort();
+        }
+        try {
+            LoadTest test = new LoadTest();
+            try (VendingClient client = new VendingClient(host, port)) {
+                test.setUp(client, Integer.parseInt(options.getOrDefault("machines", "16")),
+                        Integer.parseInt(options.getOrDefault("products", "64")));
+            }
+            test.run(new InetSocketAddress(host, port), connections, pipeline, warmup, seconds);
+            test.report(connections, pipeline, seconds);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request/response protocol of the {@link VendingServer}. Every message is a frame: a
+ * 4-byte big-endian length followed by that many bytes. A request starts with an opcode
+ * byte and a response with a status byte; the fields that follow are 4-byte ints and strings,
+ * which are a 2-byte length followed by UTF-8 bytes.
+ *
+ * <pre>
+ * CREATE    type (byte, a {@link fleet.MachineType} ordinal)  -&gt; machine id (int)
+ * ADD       machine, price, quantity (ints), name (string)    -&gt; -
+ * BUY       machine (int), name (string)                      -&gt; -
+ * BREW      machine, count (ints)                             -&gt; coffees brewed (int)
+ * MAKE      machine, count (ints)                             -&gt; sandwiches made (int)
+ * REFILL    machine and three amounts (ints)                  -&gt; -
+ * INVENTORY machine, offset, limit (ints)                     -&gt; matching products (int), text (UTF-8, rest of the frame)
+ * </pre>
+ *
+ * <p>A client may send many requests without waiting; responses come back in request order.
+ */
+public abstract class Protocol {
+    /** The largest frame, without its length prefix, that a server or client accepts. */
+    public static final int MAX_FRAME = 1 << 20;
+    /** The most products an INVENTORY request lists. */
+    public static final int MAX_INVENTORY_PAGE = 1000;
+
+    public static final byte CREATE = 1;
+    public static final byte ADD = 2;
+    public static final byte BUY = 3;
+    public static final byte BREW = 4;
+    public static final byte MAKE = 5;
+    public static final byte REFILL = 6;
+    public static final byte INVENTORY = 7;
+
+    /** The request succeeded. */
+    public static final byte OK = 0;
+    /** The product is not in the machine. */
+    public static final byte NOT_FOUND = 1;
+    /** The product is out of stock. */
+    public static final byte OUT_OF_STOCK = 2;
+    /** The machine does not have the ingredients for the whole request. */
+    public static final byte INSUFFICIENT_RESOURCES = 3;
+    /** There is no machine of the right type with the given id. */
+    public static final byte NO_MACHINE = 4;
+    /** The request is malformed or its arguments are invalid. */
+    public static final byte BAD_REQUEST = 5;
+
+    private static final String[] STATUS_NAMES = {
+        "OK", "NOT_FOUND", "OUT_OF_STOCK", "INSUFFICIENT_RESOURCES", "NO_MACHINE", "BAD_REQUEST"
+    };
+
+    /**
+     * Gets the name of a status, for messages.
+     *
+     * @param status the status byte of a response
+     * @return the name of the status
+     */
+    public static String statusName(byte status) {
+        return status >= 0 && status < STATUS_NAMES.length ? STATUS_NAMES[status] : "UNKNOWN(" + status + ")";
+    }
+
+    /**
+     * Writes a string field.
+     *
+     * @param buffer the buffer to write to
+     * @param value the string, whose UTF-8 encoding must fit in 65535 bytes
+     * @throws IllegalArgumentException if the string is too long
+     */
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String field longer than 65535 bytes");
+        }
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * Reads a string field.
+     *
+     * @param buffer the buffer to read from
+     * @return the string
+     * @throws BufferUnderflowException if the buffer ends inside the field
+     */
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
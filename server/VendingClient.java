@@ -0,0 +1,201 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import fleet.MachineType;
+
+/**
+ * A blocking client of a {@link VendingServer}. Each call sends one request and waits for its
+ * response, so a client must not be shared between threads.
+ */
+public class VendingClient implements Closeable {
+    private final SocketChannel channel;
+    // Large enough for any request, including one with the longest string field.
+    private final ByteBuffer request = ByteBuffer.allocate(32 + 0xFFFF);
+    private ByteBuffer response = ByteBuffer.allocate(1024);
+    private byte status;
+
+    /**
+     * Constructs a new VendingClient connected to a server.
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @throws IOException if the connection fails
+     */
+    public VendingClient(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Gets the status of the last response.
+     *
+     * @return a status of {@link Protocol}
+     */
+    public byte getStatus() {
+        return status;
+    }
+
+    /**
+     * Creates a vending machine on the server.
+     *
+     * @param type the type of the machine
+     * @return the id of the new machine
+     * @throws IOException if the request fails
+     */
+    public int create(MachineType type) throws IOException {
+        begin(Protocol.CREATE).put((byte) type.ordinal());
+        return expectOk(call()).getInt();
+    }
+
+    /**
+     * Adds a product to a vending machine.
+     *
+     * @param machine the id of the machine
+     * @param name the name of the product
+     * @param price the price of the product
+     * @param quantity the quantity to add
+     * @return the status of the response
+     * @throws IOException if the connection fails
+     */
+    public byte addProduct(int machine, String name, int price, int quantity) throws IOException {
+        Protocol.putString(begin(Protocol.ADD).putInt(machine).putInt(price).putInt(quantity), name);
+        call();
+        return status;
+    }
+
+    /**
+     * Buys a product from a vending machine.
+     *
+     * @param machine the id of the machine
+     * @param name the name of the product
+     * @return the status of the response, {@link Protocol#OK} if the product was sold
+     * @throws IOException if the connection fails
+     */
+    public byte buy(int machine, String name) throws IOException {
+        Protocol.putString(begin(Protocol.BUY).putInt(machine), name);
+        call();
+        return status;
+    }
+
+    /**
+     * Brews coffees on a coffee machine.
+     *
+     * @param machine the id of the coffee machine
+     * @param count the number of coffees to brew
+     * @return the number of coffees brewed
+     * @throws IOException if the connection fails or the machine is not a coffee machine
+     */
+    public int brew(int machine, int count) throws IOException {
+        begin(Protocol.BREW).putInt(machine).putInt(count);
+        return expectCount(call());
+    }
+
+    /**
+     * Makes sandwiches on a sandwich machine.
+     *
+     * @param machine the id of the sandwich machine
+     * @param count the number of sandwiches to make
+     * @return the number of sandwiches made
+     * @throws IOException if the connection fails or the machine is not a sandwich machine
+     */
+    public int make(int machine, int count) throws IOException {
+        begin(Protocol.MAKE).putInt(machine).putInt(count);
+        return expectCount(call());
+    }
+
+    /**
+     * Refills the ingredients of a coffee or sandwich machine.
+     *
+     * @param machine the id of the machine
+     * @param first the amount of the first ingredient (water or ham)
+     * @param second the amount of the second ingredient (beans or cheese)
+     * @param third the amount of the third ingredient (sugar or bread)
+     * @return the status of the response
+     * @throws IOException if the connection fails
+     */
+    public byte refill(int machine, int first, int second, int third) throws IOException {
+        begin(Protocol.REFILL).putInt(machine).putInt(first).putInt(second).putInt(third);
+        call();
+        return status;
+    }
+
+    /**
+     * Lists a page of the products of a vending machine.
+     *
+     * @param machine the id of the machine
+     * @param offset the number of products to skip
+     * @param limit the most products to list
+     * @return the listing, as the console shows it
+     * @throws IOException if the request fails
+     */
+    public String inventory(int machine, int offset, int limit) throws IOException {
+        begin(Protocol.INVENTORY).putInt(machine).putInt(offset).putInt(limit);
+        ByteBuffer payload = expectOk(call());
+        payload.getInt();
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer begin(byte opcode) {
+        request.clear();
+        return request.putInt(0).put(opcode);
+    }
+
+    /**
+     * Sends the request being built and reads its response.
+     *
+     * @return the payload of the response
+     */
+    private ByteBuffer call() throws IOException {
+        request.putInt(0, request.position() - 4).flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        response.clear().limit(4);
+        readFully();
+        int length = response.getInt(0);
+        if (length < 1 || length > Protocol.MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (response.capacity() < 4 + length) {
+            response = ByteBuffer.allocate(4 + length).putInt(length);
+        }
+        response.limit(4 + length);
+        readFully();
+        response.flip().position(4);
+        status = response.get();
+        return response;
+    }
+
+    private void readFully() throws IOException {
+        while (response.hasRemaining()) {
+            if (channel.read(response) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+
+    private ByteBuffer expectOk(ByteBuffer payload) throws IOException {
+        if (status != Protocol.OK) {
+            throw new IOException("Request failed: " + Protocol.statusName(status));
+        }
+        return payload;
+    }
+
+    private int expectCount(ByteBuffer payload) throws IOException {
+        if (status != Protocol.OK && status != Protocol.INSUFFICIENT_RESOURCES) {
+            throw new IOException("Request failed: " + Protocol.statusName(status));
+        }
+        return payload.getInt();
+    }
+}
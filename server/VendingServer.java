@@ -0,0 +1,471 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import Templates.VendingMachineFactory;
+import fleet.FleetRegistry;
+import fleet.MachineType;
+import interfaces.Displayable.InventoryFilter;
+import metrics.MetricsRegistry;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.OperationStatus;
+import vendingmachines.VendingMachine;
+
+/**
+ * A network front end for a fleet of vending machines, speaking the {@link Protocol}. A few
+ * event loops, each a thread with its own {@link Selector}, serve all connections: the first
+ * loop also accepts connections and deals them out to the loops in turn. Requests are
+ * executed on the loop that read them, so the server needs no thread per client and scales to
+ * thousands of connections.
+ *
+ * <p>Machines are created in {@link VendingMachine.InventoryMode#CONCURRENT} mode, since
+ * clients on different loops may use the same machine at the same time. Every operation is
+ * recorded in the metrics of its machine.
+ *
+ * <p>Usage: {@code java server.VendingServer [--host 127.0.0.1] [--port 7070] [--loops n]}
+ */
+public class VendingServer implements Closeable {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final FleetRegistry fleet;
+    private final MetricsRegistry metrics;
+    private final ServerSocketChannel acceptor;
+    private final EventLoop[] loops;
+    private final LongAdder requests = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean running = true;
+    private int nextLoop;
+
+    /**
+     * Constructs a new VendingServer and starts serving.
+     *
+     * @param fleet the machines to serve; machines created by clients are added to it
+     * @param metrics the metrics to record the operations in
+     * @param address the address to listen on; port 0 picks a free port
+     * @param loopCount the number of event loop threads
+     * @throws IOException if the address cannot be bound
+     */
+    public VendingServer(FleetRegistry fleet, MetricsRegistry metrics, InetSocketAddress address, int loopCount) throws IOException {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is needed");
+        }
+        this.fleet = fleet;
+        this.metrics = metrics;
+        acceptor = ServerSocketChannel.open();
+        acceptor.configureBlocking(false);
+        acceptor.bind(address, 4096);
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return the port
+     * @throws IOException if the server is closed
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) acceptor.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Gets the number of open client connections.
+     *
+     * @return the number of connections
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Gets the number of requests served since the server started.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Stops accepting connections, closes all connections and waits for the event loops to end.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        acceptor.close();
+    }
+
+    /**
+     * Executes one request and writes its payload.
+     *
+     * @return the status of the response
+     */
+    private byte execute(byte opcode, ByteBuffer request, Connection connection) {
+        switch (opcode) {
+            case Protocol.CREATE: {
+                int type = request.get();
+                if (type < 0 || type >= MachineType.values().length) {
+                    return Protocol.BAD_REQUEST;
+                }
+                VendingMachine machine = VendingMachineFactory.createVendingMachine(MachineType.values()[type].name().toLowerCase(),
+                        VendingMachine.InventoryMode.CONCURRENT);
+                connection.reserve(4).putInt(fleet.register(machine));
+                return Protocol.OK;
+            }
+            case Protocol.ADD: {
+                int id = request.getInt();
+                int price = request.getInt();
+                int quantity = request.getInt();
+                String name = Protocol.getString(request);
+                VendingMachine machine = fleet.get(id);
+                if (machine == null) {
+                    return Protocol.NO_MACHINE;
+                }
+                metrics.forMachine(id).addProduct(machine, name, price, quantity);
+                return Protocol.OK;
+            }
+            case Protocol.BUY: {
+                int id = request.getInt();
+                String name = Protocol.getString(request);
+                VendingMachine machine = fleet.get(id);
+                if (machine == null) {
+                    return Protocol.NO_MACHINE;
+                }
+                return status(metrics.forMachine(id).tryBuy(machine, name));
+            }
+            case Protocol.BREW: {
+                int id = request.getInt();
+                int count = request.getInt();
+                CoffeeMachine machine = fleet.get(id, CoffeeMachine.class);
+                if (machine == null) {
+                    return Protocol.NO_MACHINE;
+                }
+                int brewed = metrics.forMachine(id).brewCoffee(machine, count);
+                connection.reserve(4).putInt(brewed);
+                return brewed == count ? Protocol.OK : Protocol.INSUFFICIENT_RESOURCES;
+            }
+            case Protocol.MAKE: {
+                int id = request.getInt();
+                int count = request.getInt();
+                SandwichMachine machine = fleet.get(id, SandwichMachine.class);
+                if (machine == null) {
+                    return Protocol.NO_MACHINE;
+                }
+                int made = metrics.forMachine(id).makeSandwich(machine, count);
+                connection.reserve(4).putInt(made);
+                return made == count ? Protocol.OK : Protocol.INSUFFICIENT_RESOURCES;
+            }
+            case Protocol.REFILL: {
+                int id = request.getInt();
+                int first = request.getInt();
+                int second = request.getInt();
+                int third = request.getInt();
+                // Only machines that exist get metrics, so clients cannot grow the registry.
+                VendingMachine machine = fleet.get(id);
+                if (machine instanceof CoffeeMachine) {
+                    metrics.forMachine(id).refill((CoffeeMachine) machine, first, second, third);
+                } else if (machine instanceof SandwichMachine) {
+                    metrics.forMachine(id).refill((SandwichMachine) machine, first, second, third);
+                } else {
+                    return Protocol.NO_MACHINE;
+                }
+                return Protocol.OK;
+            }
+            case Protocol.INVENTORY: {
+                int id = request.getInt();
+                int offset = request.getInt();
+                int limit = Math.min(request.getInt(), Protocol.MAX_INVENTORY_PAGE);
+                VendingMachine machine = fleet.get(id);
+                if (machine == null) {
+                    return Protocol.NO_MACHINE;
+                }
+                if (offset < 0 || limit < 0) {
+                    return Protocol.BAD_REQUEST;
+                }
+                StringBuilder text = new StringBuilder();
+                int matching;
+                try {
+                    matching = machine.renderInventory(text, InventoryFilter.ALL, offset, limit);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+                connection.reserve(4 + bytes.length).putInt(matching).put(bytes);
+                return Protocol.OK;
+            }
+            default:
+                return Protocol.BAD_REQUEST;
+        }
+    }
+
+    /**
+     * Maps the outcome of an operation to its protocol status.
+     */
+    private static byte status(OperationStatus status) {
+        switch (status) {
+            case OK:
+                return Protocol.OK;
+            case NOT_FOUND:
+                return Protocol.NOT_FOUND;
+            case OUT_OF_STOCK:
+                return Protocol.OUT_OF_STOCK;
+            case INSUFFICIENT_RESOURCES:
+                return Protocol.INSUFFICIENT_RESOURCES;
+            default:
+                throw new AssertionError(status);
+        }
+    }
+
+    /**
+     * A thread that serves its share of the connections with one selector.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> adopted = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "vending-server-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Hands a new connection to this loop. Called from the accepting loop.
+         */
+        void adopt(SocketChannel channel) {
+            adopted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = adopted.poll()) != null) {
+                        register(channel);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept();
+                        } else if (key.isValid()) {
+                            Connection connection = (Connection) key.attachment();
+                            try {
+                                if (key.isReadable()) {
+                                    connection.read();
+                                } else if (key.isWritable()) {
+                                    connection.flush();
+                                }
+                            } catch (IOException e) {
+                                connection.close();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Event loop " + thread.getName() + " failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel channel;
+                while ((channel = acceptor.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connections.incrementAndGet();
+                    loops[nextLoop].adopt(channel);
+                    nextLoop = (nextLoop + 1) % loops.length;
+                }
+            } catch (IOException e) {
+                System.err.println("Error accepting connection: " + e.getMessage());
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (IOException e) {
+                connections.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The connection is being dropped anyway.
+                }
+            }
+        }
+    }
+
+    /**
+     * The buffers of one client connection. Requests are read into {@code in} and executed as
+     * soon as they are complete; responses are collected in {@code out} and written once all
+     * complete requests of a read are done. While a response cannot be written in full the
+     * connection stops reading, so a slow client cannot make the server buffer without limit.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > Protocol.MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                int start = in.position() + 4;
+                respond(in.slice(start, length));
+                in.position(start + length);
+            }
+            in.compact();
+            if (in.position() >= 4 && 4 + in.getInt(0) > in.capacity()) {
+                in = grow(in, 4 + in.getInt(0));
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Makes room for part of a response payload.
+         *
+         * @return the output buffer, with at least the given number of bytes free
+         */
+        ByteBuffer reserve(int bytes) {
+            if (out.remaining() < bytes) {
+                out = grow(out, out.position() + bytes);
+            }
+            return out;
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing more can be sent on the connection anyway.
+            }
+            connections.decrementAndGet();
+        }
+
+        private void respond(ByteBuffer request) {
+            int start = reserve(5).position();
+            out.putInt(0).put(Protocol.OK);
+            byte status;
+            try {
+                status = execute(request.get(), request, this);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                out.position(start + 5);
+                status = Protocol.BAD_REQUEST;
+            }
+            out.put(start + 4, status);
+            out.putInt(start, out.position() - start - 4);
+            requests.increment();
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer, int needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        MetricsRegistry metrics = new MetricsRegistry();
+        VendingServer server = new VendingServer(new FleetRegistry(), metrics,
+                new InetSocketAddress(options.getOrDefault("host", "127.0.0.1"), Integer.parseInt(options.getOrDefault("port", "7070"))),
+                Integer.parseInt(options.getOrDefault("loops", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                System.out.println("Served " + server.getRequestCount() + " requests.");
+                System.out.print(metrics.snapshot(false).toText());
+            } catch (IOException e) {
+                System.err.println("Error closing server: " + e.getMessage());
+            }
+        }));
+        System.out.println("Listening on port " + server.getPort() + " with " + server.loops.length + " event loops.");
+        for (EventLoop loop : server.loops) {
+            loop.thread.join();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package simulation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import Templates.VendingMachineFactory;
+import fleet.FleetExecutor;
+import fleet.FleetRegistry;
+import fleet.MachineType;
+import metrics.LatencyHistogram;
+import metrics.MachineMetrics;
+import metrics.MetricsRegistry;
+import metrics.MetricsSnapshot;
+import specializedmachines.CoffeeMachine;
+import specializedmachines.SandwichMachine;
+import vendingmachines.OperationStatus;
+import vendingmachines.VendingMachine;
+
+/**
+ * A headless load generator for capacity planning. It creates a fleet through
+ * {@link VendingMachineFactory} and lets customers arrive at a fixed rate, each buying a
+ * product, brewing a coffee or making a sandwich at a random machine. Products are chosen
+ * with a Zipf popularity skew. A failed operation sends the refill crew to the machine, which
+ * arrives after a delay and tops it up.
+ *
+ * <p>Customers are scheduled onto a pool of worker threads. A worker waits until the planned
+ * arrival time of its next customer, and response times are measured from that planned time,
+ * so a saturated fleet shows up as growing response times instead of a slower arrival rate.
+ * With a rate of 0 customers arrive as fast as the workers can serve them.
+ *
+ * <p>By default the workers operate the machines themselves, which are therefore in
+ * {@link VendingMachine.InventoryMode#CONCURRENT} mode. With {@code --shards n} the fleet is
+ * partitioned over a {@link FleetExecutor} instead: workers and the refill crew submit every
+ * operation to the loop that owns the machine and wait for it, and the machines use the
+ * unsynchronized {@link VendingMachine.InventoryMode#STANDARD} mode.
+ *
+ * <p>Usage: {@code java simulation.FleetSimulation [--coffee 10] [--sandwich 10] [--snack 10]
+ * [--products 50] [--customers 1000000] [--rate 0] [--skew 1.0] [--threads 64] [--stock 100]
+ * [--refill-delay 50] [--shards 0] [--json report.json]}
+ */
+public class FleetSimulation {
+    private final VendingMachine[] machines;
+    private final int[] ids;
+    private final MachineType[] types;
+    private final MachineMetrics[] machineMetrics;
+    private final AtomicBoolean[] refillPending;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final ZipfDistribution popularity;
+    private final String[] productNames;
+    private final int stock;
+    private final long refillDelayMillis;
+    private final AtomicLong refills = new AtomicLong();
+    private final FleetExecutor executor;
+    private LatencyHistogram responseTimes;
+
+    /**
+     * Constructs a new FleetSimulation and stocks its machines.
+     *
+     * @param machineCounts the number of machines of each type
+     * @param products the number of products in each snack machine
+     * @param skew the Zipf exponent of product popularity
+     * @param stock the units of each product, and the servings of ingredients, a machine is filled with
+     * @param refillDelayMillis the time the refill crew takes to reach a machine
+     * @param shards the number of event loops that own the machines, or 0 to let the workers
+     *               operate the machines directly
+     */
+    public FleetSimulation(Map<MachineType, Integer> machineCounts, int products, double skew, int stock, long refillDelayMillis,
+                           int shards) {
+        this.stock = stock;
+        this.refillDelayMillis = refillDelayMillis;
+        this.popularity = new ZipfDistribution(products, skew);
+        this.productNames = new String[products];
+        for (int i = 0; i < products; i++) {
+            productNames[i] = "Product " + i;
+        }
+
+        FleetRegistry fleet = new FleetRegistry();
+        VendingMachine.InventoryMode mode = shards > 0 ? VendingMachine.InventoryMode.STANDARD : VendingMachine.InventoryMode.CONCURRENT;
+        for (Map.Entry<MachineType, Integer> entry : machineCounts.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                fleet.register(VendingMachineFactory.createVendingMachine(entry.getKey().name().toLowerCase(), mode));
+            }
+        }
+        int size = fleet.size();
+        machines = new VendingMachine[size];
+        ids = new int[size];
+        types = new MachineType[size];
+        machineMetrics = new MachineMetrics[size];
+        refillPending = new AtomicBoolean[size];
+        int index = 0;
+        for (Map.Entry<Integer, VendingMachine> entry : fleet.machines().entrySet()) {
+            machines[index] = entry.getValue();
+            ids[index] = entry.getKey();
+            types[index] = MachineType.of(entry.getValue());
+            machineMetrics[index] = metrics.forMachine(entry.getKey());
+            refillPending[index] = new AtomicBoolean();
+            if (types[index] == MachineType.SNACK) {
+                for (int p = 0; p < products; p++) {
+                    machines[index].addProduct(productNames[p], 100 + p % 50, 0);
+                }
+            }
+            refill(index);
+            index++;
+        }
+        executor = shards > 0 ? new FleetExecutor(fleet, shards) : null;
+    }
+
+    /**
+     * Serves customers until all of them have been served.
+     *
+     * @param customers the number of customers
+     * @param ratePerSecond the arrival rate, or 0 to serve customers as fast as possible
+     * @param threads the number of worker threads
+     * @return the elapsed time in nanoseconds
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public long run(long customers, double ratePerSecond, int threads) throws InterruptedException {
+        responseTimes = new LatencyHistogram(threads);
+        ScheduledExecutorService crew = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "refill-crew");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicLong next = new AtomicLong();
+        long interval = ratePerSecond > 0 ? (long) (1_000_000_000 / ratePerSecond) : 0;
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long customer;
+                while ((customer = next.getAndIncrement()) < customers) {
+                    long arrival = System.nanoTime();
+                    if (interval > 0) {
+                        arrival = start + customer * interval;
+                        long wait;
+                        while ((wait = arrival - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    serve(random, crew);
+                    responseTimes.record(System.nanoTime() - arrival);
+                }
+            }, "customer-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        crew.shutdownNow();
+        if (executor != null) {
+            executor.close();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Formats the results of a run as text.
+     *
+     * @param customers the number of customers served
+     * @param elapsedNanos the elapsed time of the run
+     * @return the report
+     */
+    public String report(long customers, long elapsedNanos) {
+        StringBuilder report = new StringBuilder();
+        double seconds = elapsedNanos / 1e9;
+        report.append(String.format("Served %d customers at %d machines in %.2f s: %.0f customers/s, %d refills%n",
+                customers, machines.length, seconds, customers / seconds, refills.get()));
+        if (executor != null) {
+            report.append(String.format("Shards: %d, average batch: %.1f operations%n", executor.getShardCount(),
+                    (double) executor.getCompletedCount() / Math.max(1, executor.getBatchCount())));
+        }
+        long[] buckets = responseTimes.buckets();
+        report.append(String.format("Response time: p50=%dns p90=%dns p99=%dns p99.9=%dns%n",
+                LatencyHistogram.percentile(buckets, 50), LatencyHistogram.percentile(buckets, 90),
+                LatencyHistogram.percentile(buckets, 99), LatencyHistogram.percentile(buckets, 99.9)));
+        for (Map.Entry<MachineMetrics.Operation, MetricsSnapshot.OperationStats> entry : metrics.snapshot(false).fleet().entrySet()) {
+            MetricsSnapshot.OperationStats stats = entry.getValue();
+            long failed = stats.count(MachineMetrics.Outcome.OUT_OF_STOCK) + stats.count(MachineMetrics.Outcome.INSUFFICIENT_RESOURCES);
+            report.append(String.format("%-12s count=%d stock-out rate=%.2f%% p50=%dns p99=%dns p99.9=%dns max=%dns%n",
+                    entry.getKey().label(), stats.total(), 100.0 * failed / stats.total(), stats.getP50Nanos(),
+                    stats.getP99Nanos(), stats.getP999Nanos(), stats.getMaxNanos()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Formats the results of a run as JSON, including the fleet-wide metrics.
+     *
+     * @param customers the number of customers served
+     * @param elapsedNanos the elapsed time of the run
+     * @return the report
+     */
+    public String jsonReport(long customers, long elapsedNanos) {
+        long[] buckets = responseTimes.buckets();
+        return "{\"customers\": " + customers + ", \"machines\": " + machines.length
+                + ", \"elapsedSeconds\": " + elapsedNanos / 1e9 + ", \"throughput\": " + customers * 1e9 / elapsedNanos
+                + ", \"refills\": " + refills.get()
+                + ", \"responseTime\": {\"p50Nanos\": " + LatencyHistogram.percentile(buckets, 50)
+                + ", \"p90Nanos\": " + LatencyHistogram.percentile(buckets, 90)
+                + ", \"p99Nanos\": " + LatencyHistogram.percentile(buckets, 99)
+                + ", \"p999Nanos\": " + LatencyHistogram.percentile(buckets, 99.9) + "}"
+                + ", \"metrics\": " + metrics.snapshot(false).toJson().trim() + "}\n";
+    }
+
+    private void serve(ThreadLocalRandom random, ScheduledExecutorService crew) {
+        int index = random.nextInt(machines.length);
+        String product = types[index] == MachineType.SNACK ? productNames[popularity.sample(random)] : null;
+        OperationStatus status = executor == null
+                ? operate(index, product) : executor.submit(ids[index], machine -> operate(index, product)).join();
+        if (!status.isOk() && refillPending[index].compareAndSet(false, true)) {
+            crew.schedule(() -> {
+                if (executor == null) {
+                    refill(index);
+                    refillPending[index].set(false);
+                } else {
+                    executor.submit(ids[index], machine -> {
+                        refill(index);
+                        refillPending[index].set(false);
+                        return null;
+                    });
+                }
+            }, refillDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private OperationStatus operate(int index, String product) {
+        VendingMachine machine = machines[index];
+        MachineMetrics recorder = machineMetrics[index];
+        switch (types[index]) {
+            case SNACK:
+                return recorder.tryBuy(machine, product);
+            case COFFEE:
+                return recorder.tryBrew((CoffeeMachine) machine);
+            default:
+                return recorder.tryMake((SandwichMachine) machine);
+        }
+    }
+
+    private void refill(int index) {
+        VendingMachine machine = machines[index];
+        MachineMetrics recorder = machineMetrics[index];
+        if (machine instanceof CoffeeMachine) {
+            CoffeeMachine coffee = (CoffeeMachine) machine;
+            recorder.refill(coffee, stock * 10 - coffee.getWaterLevel(), stock * 5 - coffee.getBeanLevel(),
+                    stock * 2 - coffee.getSugarLevel());
+        } else if (machine instanceof SandwichMachine) {
+            SandwichMachine sandwich = (SandwichMachine) machine;
+            recorder.refill(sandwich, stock - sandwich.getHamQuantity(), stock - sandwich.getCheeseQuantity(),
+                    stock * 2 - sandwich.getBreadQuantity());
+        } else {
+            long start = System.nanoTime();
+            for (int id = 0; id < machine.getProductCount(); id++) {
+                int missing = stock - machine.productQuantity(id);
+                if (missing > 0) {
+                    machine.addProduct(machine.productName(id), machine.productPrice(id), missing);
+                }
+            }
+            recorder.record(MachineMetrics.Operation.REFILL, MachineMetrics.Outcome.SUCCESS, start);
+        }
+        refills.incrementAndGet();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        Map<MachineType, Integer> machineCounts = new LinkedHashMap<>();
+        for (MachineType type : MachineType.values()) {
+            machineCounts.put(type, Integer.parseInt(options.getOrDefault(type.name().toLowerCase(), "10")));
+        }
+        long customers = Long.parseLong(options.getOrDefault("customers", "1000000"));
+        FleetSimulation simulation = new FleetSimulation(machineCounts,
+                Integer.parseInt(options.getOrDefault("products", "50")),
+                Double.parseDouble(options.getOrDefault("skew", "1.0")),
+                Integer.parseInt(options.getOrDefault("stock", "100")),
+                Long.parseLong(options.getOrDefault("refill-delay", "50")),
+                Integer.parseInt(options.getOrDefault("shards", "0")));
+        long elapsed = simulation.run(customers, Double.parseDouble(options.getOrDefault("rate", "0")),
+                Integer.parseInt(options.getOrDefault("threads", "64")));
+        System.out.print(simulation.report(customers, elapsed));
+        if (options.containsKey("json")) {
+            try {
+                Files.write(Paths.get(options.get("json")), simulation.jsonReport(customers, elapsed).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Error writing report to " + options.get("json") + ": " + e.getMessage());
+            }
+        }
+    }
+}
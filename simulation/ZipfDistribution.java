@@ -0,0 +1,45 @@
+package simulation;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples ranks from a Zipf distribution, where rank {@code k} is drawn with a probability
+ * proportional to {@code 1 / (k + 1)^skew}. A skew of 0 is uniform; larger skews concentrate
+ * the draws on the first ranks, like the best-selling products of a catalog.
+ */
+public class ZipfDistribution {
+    private final double[] cumulative;
+
+    /**
+     * Constructs a new ZipfDistribution.
+     *
+     * @param size the number of ranks
+     * @param skew the exponent of the distribution, 0 or more
+     */
+    public ZipfDistribution(int size, double skew) {
+        if (size <= 0 || skew < 0) {
+            throw new IllegalArgumentException("Size must be positive and skew non-negative");
+        }
+        cumulative = new double[size];
+        double sum = 0;
+        for (int k = 0; k < size; k++) {
+            sum += 1 / Math.pow(k + 1, skew);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < size; k++) {
+            cumulative[k] /= sum;
+        }
+    }
+
+    /**
+     * Draws a rank.
+     *
+     * @param random the source of randomness
+     * @return a rank between 0 and size - 1
+     */
+    public int sample(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+}
@@ -1,16 +1,34 @@
 package specializedmachines;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import exceptions.InsufficientResourcesException;
-import vendingmachines.VendingMachine;
+import vendingmachines.OperationStatus;
+import vendingmachines.Recipe;
+import vendingmachines.RecipeBook;
+import vendingmachines.RecipeMachine;
 
 /**
- * A specialized vending machine that dispenses coffee.
+ * A specialized vending machine that dispenses coffee. It is a recipe machine with water,
+ * beans and sugar, which brews regular coffee, espresso and black coffee.
  */
-public class CoffeeMachine extends VendingMachine {
+public class CoffeeMachine extends RecipeMachine {
     private static final long serialVersionUID = 1L;
-    private int waterLevel;
-    private int beanLevel;
-    private int sugarLevel;
+
+    /**
+     * The ingredients and recipes of coffee machines.
+     */
+    public static final RecipeBook RECIPES = new RecipeBook(new String[] {"water", "beans", "sugar"},
+            new Recipe("brewCoffee", 10, 5, 2),
+            new Recipe("brewEspresso", 4, 7, 0),
+            new Recipe("brewBlackCoffee", 10, 5, 0));
+
+    private static final int WATER = 0;
+    private static final int BEANS = 1;
+    private static final int SUGAR = 2;
+    private static final int COFFEE = 0;
+    private static final InsufficientResourcesException NOT_ENOUGH_INGREDIENTS = new InsufficientResourcesException(
+            "Not enough ingredients to brew coffee. Required: 10 units of water, 5 units of beans, 2 units of sugar.", "brewCoffee", false);
 
     /**
      * Constructs a new CoffeeMachine with the specified initial levels of water, beans, and sugar.
@@ -22,24 +40,62 @@ public class CoffeeMachine extends VendingMachine {
      * @param sugar the initial level of sugar
      */
     public CoffeeMachine(String productName, Integer productPrice, int water, int beans, int sugar) {
-        super(productName, productPrice);
-        this.waterLevel = water;
-        this.beanLevel = beans;
-        this.sugarLevel = sugar;
+        this(productName, productPrice, water, beans, sugar, InventoryMode.STANDARD);
     }
 
     /**
-     * Brews a cup of coffee.
+     * Constructs a new CoffeeMachine with the specified initial levels of water, beans, and sugar and inventory mode.
+     *
+     * @param productName the name of the coffee product
+     * @param productPrice the price of the coffee product
+     * @param water the initial level of water
+     * @param beans the initial level of beans
+     * @param sugar the initial level of sugar
+     * @param mode the inventory mode of the machine
+     */
+    public CoffeeMachine(String productName, Integer productPrice, int water, int beans, int sugar, InventoryMode mode) {
+        super(productName, productPrice, mode, RECIPES, water, beans, sugar);
+    }
+
+    /**
+     * Brews a cup of coffee. The exception is a shared instance without a stack trace.
      *
      * @throws InsufficientResourcesException if there are not enough ingredients to brew coffee
      */
     public void brewCoffee() throws InsufficientResourcesException {
-        if (waterLevel < 10 || beanLevel < 5 || sugarLevel < 2) {
-            throw new InsufficientResourcesException("Not enough ingredients to brew coffee. Required: 10 units of water, 5 units of beans, 2 units of sugar.", "brewCoffee");
+        if (!tryBrew().isOk()) {
+            throw NOT_ENOUGH_INGREDIENTS;
         }
-        waterLevel -= 10;
-        beanLevel -= 5;
-        sugarLevel -= 2;
+    }
+
+    /**
+     * Brews a cup of coffee without throwing on failure.
+     *
+     * @return {@link OperationStatus#OK}, or {@link OperationStatus#INSUFFICIENT_RESOURCES} if there are not enough ingredients
+     */
+    public OperationStatus tryBrew() {
+        return tryPrepare(COFFEE);
+    }
+
+    /**
+     * Brews up to a number of coffees at once. The feasible number is computed from the
+     * current levels and the ingredients are taken once, rather than once per serving.
+     *
+     * @param count the number of coffees wanted
+     * @return the number of coffees brewed, which is less than count if the ingredients run out
+     * @throws IllegalArgumentException if count is negative
+     */
+    public int brewCoffee(int count) {
+        return prepare(COFFEE, count);
+    }
+
+    /**
+     * Gets how many more coffees the machine can brew with its current ingredients.
+     *
+     * @return the number of coffees
+     */
+    public int getRemainingCoffees() {
+        return getRemainingServings(COFFEE);
     }
 
     /**
@@ -48,7 +104,7 @@ public class CoffeeMachine extends VendingMachine {
      * @param amount the amount of water to add
      */
     public void refillWater(int amount) {
-        waterLevel += amount;
+        refill(WATER, amount);
     }
 
     /**
@@ -57,7 +113,7 @@ public class CoffeeMachine extends VendingMachine {
      * @param amount the amount of beans to add
      */
     public void refillBeans(int amount) {
-        beanLevel += amount;
+        refill(BEANS, amount);
     }
 
     /**
@@ -66,21 +122,46 @@ public class CoffeeMachine extends VendingMachine {
      * @param amount the amount of sugar to add
      */
     public void refillSugar(int amount) {
-        sugarLevel += amount;
+        refill(SUGAR, amount);
     }
 
-    @Override
-    public boolean isEmpty() {
-        return super.isEmpty() || waterLevel == 0 || beanLevel == 0 || sugarLevel == 0;
+    /**
+     * Gets the water level.
+     *
+     * @return the water level
+     */
+    public int getWaterLevel() {
+        return getLevel(WATER);
     }
 
-    @Override
-    public boolean needsRefill() {
-        return waterLevel < 5 || beanLevel < 5 || sugarLevel < 5;
+    /**
+     * Gets the bean level.
+     *
+     * @return the bean level
+     */
+    public int getBeanLevel() {
+        return getLevel(BEANS);
+    }
+
+    /**
+     * Gets the sugar level.
+     *
+     * @return the sugar level
+     */
+    public int getSugarLevel() {
+        return getLevel(SUGAR);
     }
 
     @Override
     public String displayInventory() {
-        return "Coffee Machine with the ability to create black coffee water level: " + waterLevel + ", bean level: " + beanLevel + ", sugar level: " + sugarLevel;
+        return "Coffee Machine with the ability to create black coffee water level: " + getWaterLevel() + ", bean level: " + getBeanLevel() + ", sugar level: " + getSugarLevel();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        if (!hasIngredients()) {
+            // Machines saved before coffee machines were recipe machines kept their levels in int fields.
+            restoreIngredients(RECIPES, fields.get("waterLevel", 0), fields.get("beanLevel", 0), fields.get("sugarLevel", 0));
+        }
     }
 }
@@ -1,16 +1,33 @@
 package specializedmachines;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import exceptions.InsufficientResourcesException;
-import vendingmachines.VendingMachine;
+import vendingmachines.OperationStatus;
+import vendingmachines.Recipe;
+import vendingmachines.RecipeBook;
+import vendingmachines.RecipeMachine;
 
 /**
- * A specialized vending machine that dispenses sandwiches.
+ * A specialized vending machine that dispenses sandwiches. It is a recipe machine with ham,
+ * cheese and bread, which makes ham sandwiches and cheese sandwiches.
  */
-public class SandwichMachine extends VendingMachine {
+public class SandwichMachine extends RecipeMachine {
     private static final long serialVersionUID = 1L;
-    private int hamQuantity;
-    private int cheeseQuantity;
-    private int breadQuantity;
+
+    /**
+     * The ingredients and recipes of sandwich machines.
+     */
+    public static final RecipeBook RECIPES = new RecipeBook(new String[] {"ham", "cheese", "bread"},
+            new Recipe("makeSandwich", 1, 1, 2),
+            new Recipe("makeCheeseSandwich", 0, 2, 2));
+
+    private static final int HAM = 0;
+    private static final int CHEESE = 1;
+    private static final int BREAD = 2;
+    private static final int SANDWICH = 0;
+    private static final InsufficientResourcesException NOT_ENOUGH_INGREDIENTS = new InsufficientResourcesException(
+            "Not enough ingredients to make a sandwich. Required: 1 ham, 1 cheese, 2 bread.", "makeSandwich", false);
 
     /**
      * Constructs a new SandwichMachine with the specified initial quantities of ham, cheese, and bread.
@@ -22,10 +39,21 @@ public class SandwichMachine extends VendingMachine {
      * @param bread the initial quantity of bread
      */
     public SandwichMachine(String productName, Integer productPrice, int ham, int cheese, int bread) {
-        super(productName, productPrice);
-        this.hamQuantity = ham;
-        this.cheeseQuantity = cheese;
-        this.breadQuantity = bread;
+        this(productName, productPrice, ham, cheese, bread, InventoryMode.STANDARD);
+    }
+
+    /**
+     * Constructs a new SandwichMachine with the specified initial quantities of ham, cheese, and bread and inventory mode.
+     *
+     * @param productName the name of the sandwich product
+     * @param productPrice the price of the sandwich product
+     * @param ham the initial quantity of ham
+     * @param cheese the initial quantity of cheese
+     * @param bread the initial quantity of bread
+     * @param mode the inventory mode of the machine
+     */
+    public SandwichMachine(String productName, Integer productPrice, int ham, int cheese, int bread, InventoryMode mode) {
+        super(productName, productPrice, mode, RECIPES, ham, cheese, bread);
     }
 
     /**
@@ -34,7 +62,7 @@ public class SandwichMachine extends VendingMachine {
      * @param amount the amount of ham to add
      */
     public void refillHam(int amount) {
-        hamQuantity += amount;
+        refill(HAM, amount);
     }
 
     /**
@@ -43,7 +71,7 @@ public class SandwichMachine extends VendingMachine {
      * @param amount the amount of cheese to add
      */
     public void refillCheese(int amount) {
-        cheeseQuantity += amount;
+        refill(CHEESE, amount);
     }
 
     /**
@@ -52,35 +80,87 @@ public class SandwichMachine extends VendingMachine {
      * @param amount the amount of bread to add
      */
     public void refillBread(int amount) {
-        breadQuantity += amount;
+        refill(BREAD, amount);
     }
 
     /**
-     * Makes a sandwich.
+     * Makes a sandwich. The exception is a shared instance without a stack trace.
      *
      * @throws InsufficientResourcesException if there are not enough ingredients to make a sandwich
      */
     public void makeSandwich() throws InsufficientResourcesException {
-        if (hamQuantity < 1 || cheeseQuantity < 1 || breadQuantity < 2) {
-            throw new InsufficientResourcesException("Not enough ingredients to make a sandwich. Required: 1 ham, 1 cheese, 2 bread.", "makeSandwich");
+        if (!tryMake().isOk()) {
+            throw NOT_ENOUGH_INGREDIENTS;
         }
-        hamQuantity--;
-        cheeseQuantity--;
-        breadQuantity -= 2;
     }
 
-    @Override
-    public boolean isEmpty() {
-        return super.isEmpty() || hamQuantity == 0 || cheeseQuantity == 0 || breadQuantity == 0;
+    /**
+     * Makes a sandwich without throwing on failure.
+     *
+     * @return {@link OperationStatus#OK}, or {@link OperationStatus#INSUFFICIENT_RESOURCES} if there are not enough ingredients
+     */
+    public OperationStatus tryMake() {
+        return tryPrepare(SANDWICH);
     }
 
-    @Override
-    public boolean needsRefill() {
-        return hamQuantity < 5 || cheeseQuantity < 5 || breadQuantity < 5;
+    /**
+     * Makes up to a number of sandwiches at once. The feasible number is computed from the
+     * current levels and the ingredients are taken once, rather than once per serving.
+     *
+     * @param count the number of sandwiches wanted
+     * @return the number of sandwiches made, which is less than count if the ingredients run out
+     * @throws IllegalArgumentException if count is negative
+     */
+    public int makeSandwich(int count) {
+        return prepare(SANDWICH, count);
+    }
+
+    /**
+     * Gets how many more sandwiches the machine can make with its current ingredients.
+     *
+     * @return the number of sandwiches
+     */
+    public int getRemainingSandwiches() {
+        return getRemainingServings(SANDWICH);
+    }
+
+    /**
+     * Gets the ham quantity.
+     *
+     * @return the ham quantity
+     */
+    public int getHamQuantity() {
+        return getLevel(HAM);
+    }
+
+    /**
+     * Gets the cheese quantity.
+     *
+     * @return the cheese quantity
+     */
+    public int getCheeseQuantity() {
+        return getLevel(CHEESE);
+    }
+
+    /**
+     * Gets the bread quantity.
+     *
+     * @return the bread quantity
+     */
+    public int getBreadQuantity() {
+        return getLevel(BREAD);
     }
 
     @Override
     public String displayInventory() {
-        return "Sandwich machine with the ability to create ham sandwiches ham: " + hamQuantity + ", cheese: " + cheeseQuantity + ", bread: " + breadQuantity;
+        return "Sandwich machine with the ability to create ham sandwiches ham: " + getHamQuantity() + ", cheese: " + getCheeseQuantity() + ", bread: " + getBreadQuantity();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        if (!hasIngredients()) {
+            // Machines saved before sandwich machines were recipe machines kept their quantities in int fields.
+            restoreIngredients(RECIPES, fields.get("hamQuantity", 0), fields.get("cheeseQuantity", 0), fields.get("breadQuantity", 0));
+        }
     }
 }
@@ -0,0 +1,84 @@
+package vendingmachines;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of an all-or-nothing multi-item purchase.
+ */
+public final class CartResult {
+    private final boolean successful;
+    private final long totalPrice;
+    private final Map<String, LineStatus> lines;
+
+    /**
+     * Constructs a new CartResult.
+     *
+     * @param successful whether the whole cart was debited
+     * @param totalPrice the total price of the cart, or 0 if it was rejected
+     * @param lines the status of each cart line, in cart order
+     */
+    CartResult(boolean successful, long totalPrice, Map<String, LineStatus> lines) {
+        this.successful = successful;
+        this.totalPrice = totalPrice;
+        this.lines = Collections.unmodifiableMap(lines);
+    }
+
+    /**
+     * Checks if every line of the cart was purchased.
+     *
+     * @return true if the cart was debited, false if nothing was debited
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Gets the total price of the purchased cart.
+     *
+     * @return the total price, or 0 if the cart was rejected
+     */
+    public long getTotalPrice() {
+        return totalPrice;
+    }
+
+    /**
+     * Gets the status of each cart line.
+     *
+     * @return the line statuses keyed by product name
+     */
+    public Map<String, LineStatus> getLines() {
+        return lines;
+    }
+
+    /**
+     * Gets the status of a single cart line.
+     *
+     * @param name the name of the product
+     * @return the line status, or null if the product was not in the cart
+     */
+    public LineStatus getStatus(String name) {
+        return lines.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "CartResult (Successful: " + successful + ", Total: " + totalPrice + ", Lines: " + lines + ")";
+    }
+
+    /**
+     * The status of a single cart line.
+     */
+    public enum LineStatus {
+        /** The requested units were purchased. */
+        OK,
+        /** The line could be served, but the cart was rejected because of another line. */
+        SKIPPED,
+        /** The product does not exist in the machine. */
+        NOT_FOUND,
+        /** The machine does not hold enough units of the product. */
+        OUT_OF_STOCK,
+        /** The requested quantity was missing, not positive or too large to price. */
+        INVALID_QUANTITY
+    }
+}
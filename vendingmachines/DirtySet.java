@@ -0,0 +1,91 @@
+package vendingmachines;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free set of product ids that changed since the last checkpoint. Bits live in
+ * fixed-size chunks that are never moved, so growing the set cannot lose a concurrent mark.
+ */
+class DirtySet {
+    private static final int CHUNK_BITS = 12;
+    private static final int WORDS_PER_CHUNK = 1 << (CHUNK_BITS - 6);
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[1];
+
+    /**
+     * Marks a product id as changed.
+     *
+     * @param id the product id
+     */
+    void mark(int id) {
+        AtomicLongArray chunk = chunk(id >>> CHUNK_BITS);
+        int word = (id >>> 6) & (WORDS_PER_CHUNK - 1);
+        long bit = 1L << id;
+        long current = chunk.get(word);
+        while ((current & bit) == 0 && !chunk.compareAndSet(word, current, current | bit)) {
+            current = chunk.get(word);
+        }
+    }
+
+    /**
+     * Removes and returns every marked id.
+     *
+     * @return the marked ids in ascending order
+     */
+    int[] drain() {
+        int[] ids = new int[16];
+        int count = 0;
+        AtomicLongArray[] current = chunks;
+        for (int c = 0; c < current.length; c++) {
+            AtomicLongArray chunk = current[c];
+            if (chunk == null) {
+                continue;
+            }
+            for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+                if (chunk.get(w) == 0) {
+                    continue;
+                }
+                long bits = chunk.getAndSet(w, 0);
+                while (bits != 0) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = (c << CHUNK_BITS) + (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Removes every marked id.
+     */
+    void clear() {
+        for (AtomicLongArray chunk : chunks) {
+            if (chunk != null) {
+                for (int w = 0; w < WORDS_PER_CHUNK; w++) {
+                    chunk.set(w, 0);
+                }
+            }
+        }
+    }
+
+    private AtomicLongArray chunk(int index) {
+        AtomicLongArray[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (index >= current.length) {
+                current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            }
+            if (current[index] == null) {
+                current[index] = new AtomicLongArray(WORDS_PER_CHUNK);
+            }
+            chunks = current;
+            return current[index];
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package vendingmachines;
+
+import java.util.Arrays;
+
+/**
+ * Inventory that stores prices and quantities in parallel primitive arrays indexed by
+ * product id. Names are mapped to ids with an open-addressing table, so there is no
+ * per-product object and lookups by id never allocate. This inventory is not safe for
+ * concurrent use.
+ */
+class IndexedInventory implements Inventory {
+    private static final long serialVersionUID = 1L;
+    private String[] names;
+    private int[] prices;
+    private int[] quantities;
+    private int size;
+    private String[] slotNames;
+    private int[] slotIds;
+
+    /**
+     * Constructs a new, empty IndexedInventory.
+     */
+    IndexedInventory() {
+        names = new String[8];
+        prices = new int[8];
+        quantities = new int[8];
+        slotNames = new String[16];
+        slotIds = new int[16];
+    }
+
+    @Override
+    public int idOf(String name) {
+        int mask = slotNames.length - 1;
+        for (int slot = slotOf(name, mask); ; slot = (slot + 1) & mask) {
+            String candidate = slotNames[slot];
+            if (candidate == null) {
+                return NOT_FOUND;
+            }
+            if (candidate.equals(name)) {
+                return slotIds[slot];
+            }
+        }
+    }
+
+    @Override
+    public int register(String name, int price) {
+        int existing = idOf(name);
+        if (existing != NOT_FOUND) {
+            return existing;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+            quantities = Arrays.copyOf(quantities, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        prices[id] = price;
+        if (size * 2 > slotNames.length) {
+            rehash(slotNames.length * 2);
+        } else {
+            insertSlot(name, id);
+        }
+        return id;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    @Override
+    public int priceOf(int id) {
+        return prices[id];
+    }
+
+    @Override
+    public int quantityOf(int id) {
+        return quantities[id];
+    }
+
+    @Override
+    public int addQuantity(int id, int delta) {
+        int before = quantities[id];
+        quantities[id] = before + delta;
+        return before;
+    }
+
+    @Override
+    public int tryTake(int id, int amount) {
+        int before = quantities[id];
+        if (before >= amount) {
+            quantities[id] = before - amount;
+        }
+        return before;
+    }
+
+    @Override
+    public Inventory copy() {
+        IndexedInventory copy = new IndexedInventory();
+        copy.names = names.clone();
+        copy.prices = prices.clone();
+        copy.quantities = quantities.clone();
+        copy.size = size;
+        copy.slotNames = slotNames.clone();
+        copy.slotIds = slotIds.clone();
+        return copy;
+    }
+
+    private void rehash(int capacity) {
+        slotNames = new String[capacity];
+        slotIds = new int[capacity];
+        for (int id = 0; id < size; id++) {
+            insertSlot(names[id], id);
+        }
+    }
+
+    private void insertSlot(String name, int id) {
+        int mask = slotNames.length - 1;
+        int slot = slotOf(name, mask);
+        while (slotNames[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        slotNames[slot] = name;
+        slotIds[slot] = id;
+    }
+
+    private static int slotOf(String name, int mask) {
+        int hash = name.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,91 @@
+package vendingmachines;
+
+import java.io.Serializable;
+
+/**
+ * Storage backend for the products of a vending machine. Products are addressed by a
+ * dense integer id that is assigned when the product is first registered and never changes.
+ */
+interface Inventory extends Serializable {
+
+    /**
+     * The id returned for a product that is not in the inventory.
+     */
+    int NOT_FOUND = -1;
+
+    /**
+     * Looks up the id of a product.
+     *
+     * @param name the name of the product
+     * @return the product id, or {@link #NOT_FOUND} if the product is not registered
+     */
+    int idOf(String name);
+
+    /**
+     * Registers a product with no stock, or returns the id of the existing product.
+     *
+     * @param name the name of the product
+     * @param price the price used if the product is new
+     * @return the product id
+     */
+    int register(String name, int price);
+
+    /**
+     * Gets the number of registered products. Valid ids range from 0 to size - 1.
+     *
+     * @return the number of registered products
+     */
+    int size();
+
+    String nameOf(int id);
+
+    int priceOf(int id);
+
+    int quantityOf(int id);
+
+    /**
+     * Changes the quantity of a product.
+     *
+     * @param id the product id
+     * @param delta the amount to add, may be negative
+     * @return the quantity before the change
+     */
+    int addQuantity(int id, int delta);
+
+    /**
+     * Takes units of a product if enough are in stock.
+     *
+     * @param id the product id
+     * @param amount the number of units to take
+     * @return the quantity before the take; a value below amount means nothing was taken
+     */
+    int tryTake(int id, int amount);
+
+    /**
+     * Creates a copy of the inventory. Later changes to either inventory do not affect the other.
+     *
+     * @return the copy
+     */
+    Inventory copy();
+
+    /**
+     * Creates a read-only view of the inventory as it is now. Later changes to the inventory
+     * do not affect it. By default this is a full {@link #copy()}.
+     *
+     * @return the snapshot
+     */
+    default Inventory snapshot() {
+        return copy();
+    }
+
+    /**
+     * Gets a read-only view for iterating over the products. Inventories that can take
+     * snapshots cheaply return one, so that the iteration sees a single point in time; others
+     * return themselves.
+     *
+     * @return the view
+     */
+    default Inventory view() {
+        return this;
+    }
+}
@@ -0,0 +1,87 @@
+package vendingmachines;
+
+/**
+ * A read-only view of the products of a vending machine at one point in time. Purchases and
+ * additions made after the snapshot was taken do not show up in it, so reports and saves can
+ * read a busy machine without locking it.
+ *
+ * @see VendingMachine#snapshot()
+ */
+public final class InventorySnapshot {
+    private final Inventory inventory;
+
+    InventorySnapshot(Inventory inventory) {
+        this.inventory = inventory;
+    }
+
+    /**
+     * Gets the number of distinct products in the snapshot.
+     *
+     * @return the number of products, including those that are out of stock
+     */
+    public int getProductCount() {
+        return inventory.size();
+    }
+
+    /**
+     * Gets the id of a product.
+     *
+     * @param name the name of the product
+     * @return the product id, or {@link VendingMachine#NO_PRODUCT} if the product is not found
+     */
+    public int productId(String name) {
+        return inventory.idOf(name);
+    }
+
+    /**
+     * Gets the name of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the name of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of the snapshot
+     */
+    public String productName(int productId) {
+        return inventory.nameOf(checkProductId(productId));
+    }
+
+    /**
+     * Gets the price of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the price of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of the snapshot
+     */
+    public int productPrice(int productId) {
+        return inventory.priceOf(checkProductId(productId));
+    }
+
+    /**
+     * Gets the quantity in stock of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the quantity of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of the snapshot
+     */
+    public int productQuantity(int productId) {
+        return inventory.quantityOf(checkProductId(productId));
+    }
+
+    /**
+     * Visits every product in the snapshot in product id order.
+     *
+     * @param visitor the visitor to call for each product
+     */
+    public void forEachProduct(VendingMachine.ProductVisitor visitor) {
+        int size = inventory.size();
+        for (int id = 0; id < size; id++) {
+            visitor.visit(id, inventory.nameOf(id), inventory.priceOf(id), inventory.quantityOf(id));
+        }
+    }
+
+    private int checkProductId(int productId) {
+        if (productId < 0 || productId >= inventory.size()) {
+            throw new IndexOutOfBoundsException("Unknown product id: " + productId);
+        }
+        return productId;
+    }
+}
@@ -0,0 +1,133 @@
+package vendingmachines;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inventory that keeps one {@link Product} object per product in a hash map. In concurrent
+ * mode the map is a {@link ConcurrentHashMap} and quantities are changed with CAS, so
+ * purchases never block each other.
+ */
+class MapInventory implements Inventory {
+    private static final long serialVersionUID = 1L;
+    private final boolean concurrent;
+    private final Map<String, Product> products;
+    private volatile Product[] byId;
+    private volatile int size;
+
+    /**
+     * Constructs a new, empty MapInventory.
+     *
+     * @param concurrent whether the inventory must be safe for concurrent use
+     */
+    MapInventory(boolean concurrent) {
+        this.concurrent = concurrent;
+        this.products = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+        this.byId = new Product[8];
+    }
+
+    /**
+     * Constructs a new MapInventory that holds the given products. The products are
+     * re-registered so their ids match this inventory.
+     *
+     * @param concurrent whether the inventory must be safe for concurrent use
+     * @param source the products to copy
+     */
+    MapInventory(boolean concurrent, Map<String, Product> source) {
+        this(concurrent);
+        for (Product product : source.values()) {
+            addQuantity(register(product.getName(), product.getPrice()), product.getQuantity());
+        }
+    }
+
+    @Override
+    public int idOf(String name) {
+        Product product = products.get(name);
+        return product != null ? product.getId() : NOT_FOUND;
+    }
+
+    @Override
+    public int register(String name, int price) {
+        Product product = products.get(name);
+        if (product != null) {
+            return product.getId();
+        }
+        synchronized (this) {
+            product = products.get(name);
+            if (product != null) {
+                return product.getId();
+            }
+            Product[] table = byId;
+            if (size == table.length) {
+                table = Arrays.copyOf(table, size * 2);
+            }
+            Product created = new Product(size, name, price, 0);
+            table[size] = created;
+            byId = table;
+            size++;
+            products.put(name, created);
+            return created.getId();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String nameOf(int id) {
+        return byId[id].getName();
+    }
+
+    @Override
+    public int priceOf(int id) {
+        return byId[id].getPrice();
+    }
+
+    @Override
+    public int quantityOf(int id) {
+        return byId[id].getQuantity();
+    }
+
+    @Override
+    public int addQuantity(int id, int delta) {
+        return byId[id].increaseQuantity(delta);
+    }
+
+    @Override
+    public int tryTake(int id, int amount) {
+        return byId[id].tryTake(amount);
+    }
+
+    /**
+     * Creates a copy with its own {@link Product} objects, so that purchases from either
+     * inventory do not change the quantities of the other.
+     *
+     * @return the copy
+     */
+    @Override
+    public synchronized Inventory copy() {
+        MapInventory copy = new MapInventory(concurrent);
+        Product[] table = new Product[byId.length];
+        for (int id = 0; id < size; id++) {
+            Product product = byId[id];
+            table[id] = new Product(id, product.getName(), product.getPrice(), product.getQuantity());
+            copy.products.put(product.getName(), table[id]);
+        }
+        copy.byId = table;
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Gets the underlying product map.
+     *
+     * @return the products keyed by name
+     */
+    Map<String, Product> getProducts() {
+        return products;
+    }
+}
@@ -0,0 +1,25 @@
+package vendingmachines;
+
+/**
+ * The result of a non-throwing machine operation such as {@link VendingMachine#tryBuy(String)}.
+ * The constants are shared, so reporting a failure this way does not allocate.
+ */
+public enum OperationStatus {
+    /** The operation succeeded. */
+    OK,
+    /** The product is not sold by the machine. */
+    NOT_FOUND,
+    /** The product is out of stock. */
+    OUT_OF_STOCK,
+    /** The machine does not have enough ingredients. */
+    INSUFFICIENT_RESOURCES;
+
+    /**
+     * Checks if the operation succeeded.
+     *
+     * @return true if the status is {@link #OK}
+     */
+    public boolean isOk() {
+        return this == OK;
+    }
+}
@@ -0,0 +1,332 @@
+package vendingmachines;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inventory whose whole state is one immutable {@link State}, so that a snapshot or a copy is
+ * a single reference read. Quantities live in a 32-way trie that is path-copied on every
+ * change: a purchase copies the two or three small arrays on the path to its product and
+ * shares the rest with earlier states. Changes are published with a compare-and-set, so the
+ * inventory is safe for concurrent use without locking readers or purchases.
+ *
+ * <p>Names and prices never change once a product is registered, so they are kept in
+ * append-only arrays shared by every state of the inventory. A state only reads the ids below
+ * its own size. Copies share the arrays too, and take their own the first time they
+ * register a product.
+ */
+class PersistentInventory implements Inventory {
+    private static final long serialVersionUID = 1L;
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private final AtomicReference<State> state;
+
+    /**
+     * Constructs a new, empty PersistentInventory.
+     */
+    PersistentInventory() {
+        state = new AtomicReference<>(new State(new Catalog(this, new String[8], new int[8], new ConcurrentHashMap<>()), 0, 0, new int[WIDTH]));
+    }
+
+    private PersistentInventory(State current) {
+        state = new AtomicReference<>(current);
+    }
+
+    @Override
+    public int idOf(String name) {
+        return state.get().idOf(name);
+    }
+
+    @Override
+    public synchronized int register(String name, int price) {
+        State current = state.get();
+        int existing = current.idOf(name);
+        if (existing != NOT_FOUND) {
+            return existing;
+        }
+        int id = current.size;
+        Catalog catalog = current.catalog;
+        if (catalog.owner != this) {
+            catalog = catalog.copy(this, id);
+        }
+        catalog = catalog.append(id, name, price);
+        // Purchases may change the state concurrently, so retry on the latest one. Only this
+        // method changes the size, and it holds the lock.
+        State updated;
+        do {
+            current = state.get();
+            int shift = current.shift;
+            Object root = current.root;
+            if (id == 1 << (shift + BITS)) {
+                Object[] grown = new Object[WIDTH];
+                grown[0] = root;
+                root = grown;
+                shift += BITS;
+            }
+            updated = new State(catalog, id + 1, shift, root);
+        } while (!state.compareAndSet(current, updated));
+        return id;
+    }
+
+    @Override
+    public int size() {
+        return state.get().size;
+    }
+
+    @Override
+    public String nameOf(int id) {
+        return state.get().nameOf(id);
+    }
+
+    @Override
+    public int priceOf(int id) {
+        return state.get().priceOf(id);
+    }
+
+    @Override
+    public int quantityOf(int id) {
+        return state.get().quantityOf(id);
+    }
+
+    @Override
+    public int addQuantity(int id, int delta) {
+        State current;
+        int before;
+        do {
+            current = state.get();
+            before = current.quantityOf(id);
+        } while (!state.compareAndSet(current, current.withQuantity(id, before + delta)));
+        return before;
+    }
+
+    @Override
+    public int tryTake(int id, int amount) {
+        State current;
+        int before;
+        do {
+            current = state.get();
+            before = current.quantityOf(id);
+            if (before < amount) {
+                return before;
+            }
+        } while (!state.compareAndSet(current, current.withQuantity(id, before - amount)));
+        return before;
+    }
+
+    /**
+     * Creates a copy that shares every product with this inventory until either side changes.
+     *
+     * @return the copy, in constant time
+     */
+    @Override
+    public Inventory copy() {
+        return new PersistentInventory(state.get());
+    }
+
+    /**
+     * Returns the current state, which later changes never affect.
+     *
+     * @return the snapshot, in constant time
+     */
+    @Override
+    public Inventory snapshot() {
+        return state.get();
+    }
+
+    @Override
+    public Inventory view() {
+        return state.get();
+    }
+
+    /**
+     * Serializes only the products of the current state, rather than the shared arrays and
+     * trie nodes, which may also hold products of other copies.
+     */
+    private Object writeReplace() {
+        State current = state.get();
+        String[] names = new String[current.size];
+        int[] prices = new int[current.size];
+        int[] quantities = new int[current.size];
+        for (int id = 0; id < current.size; id++) {
+            names[id] = current.nameOf(id);
+            prices[id] = current.priceOf(id);
+            quantities[id] = current.quantityOf(id);
+        }
+        return new SerializedForm(names, prices, quantities);
+    }
+
+    /**
+     * The serialized form of a PersistentInventory: its products in id order.
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String[] names;
+        private final int[] prices;
+        private final int[] quantities;
+
+        SerializedForm(String[] names, int[] prices, int[] quantities) {
+            this.names = names;
+            this.prices = prices;
+            this.quantities = quantities;
+        }
+
+        private Object readResolve() {
+            PersistentInventory inventory = new PersistentInventory();
+            for (int id = 0; id < names.length; id++) {
+                inventory.addQuantity(inventory.register(names[id], prices[id]), quantities[id]);
+            }
+            return inventory;
+        }
+    }
+
+    /**
+     * The names and prices of the registered products, and the index from names to ids. Only
+     * the owner appends to them.
+     */
+    private static final class Catalog {
+        private final PersistentInventory owner;
+        private final String[] names;
+        private final int[] prices;
+        private final Map<String, Integer> ids;
+
+        Catalog(PersistentInventory owner, String[] names, int[] prices, Map<String, Integer> ids) {
+            this.owner = owner;
+            this.names = names;
+            this.prices = prices;
+            this.ids = ids;
+        }
+
+        /**
+         * Copies the first products for a new owner.
+         */
+        Catalog copy(PersistentInventory owner, int size) {
+            Map<String, Integer> ownIds = new ConcurrentHashMap<>();
+            for (int id = 0; id < size; id++) {
+                ownIds.put(names[id], id);
+            }
+            return new Catalog(owner, Arrays.copyOf(names, Math.max(8, size * 2)), Arrays.copyOf(prices, Math.max(8, size * 2)), ownIds);
+        }
+
+        /**
+         * Appends a product, growing the arrays if they are full. States that were published
+         * before the append never read the new slot, so it is written in place.
+         */
+        Catalog append(int id, String name, int price) {
+            Catalog target = this;
+            if (id == names.length) {
+                target = new Catalog(owner, Arrays.copyOf(names, id * 2), Arrays.copyOf(prices, id * 2), ids);
+            }
+            target.names[id] = name;
+            target.prices[id] = price;
+            target.ids.put(name, id);
+            return target;
+        }
+    }
+
+    /**
+     * An immutable state of the inventory. It is also the read-only snapshot handed out by
+     * {@link #snapshot()}. States are not serialized; the inventory replaces itself with a
+     * {@link SerializedForm} first.
+     */
+    private static final class State implements Inventory {
+        private static final long serialVersionUID = 1L;
+        private final Catalog catalog;
+        private final int size;
+        private final int shift;
+        private final Object root;
+
+        State(Catalog catalog, int size, int shift, Object root) {
+            this.catalog = catalog;
+            this.size = size;
+            this.shift = shift;
+            this.root = root;
+        }
+
+        @Override
+        public int idOf(String name) {
+            Integer id = catalog.ids.get(name);
+            return id != null && id < size ? id : NOT_FOUND;
+        }
+
+        @Override
+        public int register(String name, int price) {
+            throw new UnsupportedOperationException("Inventory snapshots are read-only");
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String nameOf(int id) {
+            return catalog.names[checkId(id)];
+        }
+
+        @Override
+        public int priceOf(int id) {
+            return catalog.prices[checkId(id)];
+        }
+
+        @Override
+        public int quantityOf(int id) {
+            int index = checkId(id);
+            Object node = root;
+            for (int level = shift; level > 0 && node != null; level -= BITS) {
+                node = ((Object[]) node)[(index >>> level) & MASK];
+            }
+            return node != null ? ((int[]) node)[index & MASK] : 0;
+        }
+
+        @Override
+        public int addQuantity(int id, int delta) {
+            throw new UnsupportedOperationException("Inventory snapshots are read-only");
+        }
+
+        @Override
+        public int tryTake(int id, int amount) {
+            throw new UnsupportedOperationException("Inventory snapshots are read-only");
+        }
+
+        @Override
+        public Inventory copy() {
+            return this;
+        }
+
+        @Override
+        public Inventory snapshot() {
+            return this;
+        }
+
+        /**
+         * Creates a state with one quantity changed, sharing all other trie nodes with this one.
+         */
+        State withQuantity(int id, int quantity) {
+            return new State(catalog, size, shift, setQuantity(root, shift, checkId(id), quantity));
+        }
+
+        private static Object setQuantity(Object node, int level, int id, int quantity) {
+            if (level == 0) {
+                int[] leaf = node != null ? ((int[]) node).clone() : new int[WIDTH];
+                leaf[id & MASK] = quantity;
+                return leaf;
+            }
+            Object[] branch = node != null ? ((Object[]) node).clone() : new Object[WIDTH];
+            int slot = (id >>> level) & MASK;
+            branch[slot] = setQuantity(branch[slot], level - BITS, id, quantity);
+            return branch;
+        }
+
+        private int checkId(int id) {
+            if (id < 0 || id >= size) {
+                throw new IndexOutOfBoundsException("Unknown product id: " + id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package vendingmachines;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Represents a product in the vending machine.
+ */
+class Product implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final AtomicIntegerFieldUpdater<Product> QUANTITY =
+            AtomicIntegerFieldUpdater.newUpdater(Product.class, "quantity");
+    private final int id;
+    private final String name;
+    private final int price;
+    private volatile int quantity;
+
+    /**
+     * Constructs a new Product.
+     *
+     * @param id the id of the product within its inventory
+     * @param name the name of the product
+     * @param price the price of the product
+     * @param quantity the initial quantity of the product
+     */
+    public Product(int id, String name, int price, int quantity) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.quantity = quantity;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Atomically increases the quantity.
+     *
+     * @param amount the amount to add
+     * @return the quantity before the increase
+     */
+    public int increaseQuantity(int amount) {
+        return QUANTITY.getAndAdd(this, amount);
+    }
+
+    /**
+     * Atomically takes units if enough are in stock.
+     *
+     * @param amount the number of units to take
+     * @return the quantity before the decrement; a value below amount means nothing was taken
+     */
+    public int tryTake(int amount) {
+        int current;
+        do {
+            current = quantity;
+            if (current < amount) {
+                return current;
+            }
+        } while (!QUANTITY.compareAndSet(this, current, current - amount));
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (Price: " + price + ", Quantity: " + quantity + ")";
+    }
+}
@@ -0,0 +1,63 @@
+package vendingmachines;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A recipe of a {@link RecipeMachine}: the amount of each ingredient one serving uses. The
+ * name of the recipe is also the name of the operation machines report when they prepare it.
+ */
+public final class Recipe implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final int[] amounts;
+
+    /**
+     * Constructs a new Recipe.
+     *
+     * @param name the name of the recipe, such as "brewCoffee"
+     * @param amounts the amount of each ingredient, in the order of the recipe book's ingredients
+     */
+    public Recipe(String name, int... amounts) {
+        for (int amount : amounts) {
+            if (amount < 0) {
+                throw new IllegalArgumentException("Ingredient amounts must not be negative: " + name);
+            }
+        }
+        this.name = name;
+        this.amounts = amounts.clone();
+    }
+
+    /**
+     * Gets the name of the recipe.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the amount of an ingredient one serving uses.
+     *
+     * @param ingredient the index of the ingredient
+     * @return the amount
+     */
+    public int getAmount(int ingredient) {
+        return amounts[ingredient];
+    }
+
+    /**
+     * Gets the number of ingredients of the recipe.
+     *
+     * @return the number of ingredients
+     */
+    public int getIngredientCount() {
+        return amounts.length;
+    }
+
+    @Override
+    public String toString() {
+        return name + Arrays.toString(amounts);
+    }
+}
@@ -0,0 +1,194 @@
+package vendingmachines;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The configuration of a {@link RecipeMachine}: its ingredients and the recipes it can prepare.
+ *
+ * <p>A machine keeps all of its ingredient levels packed into one {@code long}, so that a
+ * recipe can reserve every ingredient it needs with a single compare-and-set. The book
+ * decides the layout: each of the up to 8 ingredients gets an equal share of the 64 bits, at
+ * most 31, which also bounds how much of an ingredient a machine can hold.
+ */
+public final class RecipeBook implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String[] ingredients;
+    private final String[] refillOperations;
+    private final Recipe[] recipes;
+    private final long[] packedRecipes;
+    private final Map<String, Integer> recipeIndexes = new HashMap<>();
+    private final int bits;
+
+    /**
+     * Constructs a new RecipeBook.
+     *
+     * @param ingredients the names of the ingredients, such as "water"
+     * @param recipes the recipes, each with an amount for every ingredient
+     * @throws IllegalArgumentException if there are not 1 to 8 ingredients, or a recipe does not
+     *         fit the ingredients
+     */
+    public RecipeBook(String[] ingredients, Recipe... recipes) {
+        if (ingredients.length < 1 || ingredients.length > 8) {
+            throw new IllegalArgumentException("A recipe book needs 1 to 8 ingredients");
+        }
+        this.ingredients = ingredients.clone();
+        this.bits = Math.min(31, Long.SIZE / ingredients.length);
+        this.refillOperations = new String[ingredients.length];
+        for (int i = 0; i < ingredients.length; i++) {
+            refillOperations[i] = "refill" + Character.toUpperCase(ingredients[i].charAt(0)) + ingredients[i].substring(1);
+        }
+        this.recipes = recipes.clone();
+        this.packedRecipes = new long[recipes.length];
+        for (int r = 0; r < recipes.length; r++) {
+            Recipe recipe = recipes[r];
+            if (recipe.getIngredientCount() != ingredients.length) {
+                throw new IllegalArgumentException("Recipe " + recipe.getName() + " needs an amount for each of " + ingredients.length + " ingredients");
+            }
+            int[] amounts = new int[ingredients.length];
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = recipe.getAmount(i);
+            }
+            packedRecipes[r] = pack(amounts);
+            recipeIndexes.put(recipe.getName(), r);
+        }
+    }
+
+    /**
+     * Gets the number of ingredients.
+     *
+     * @return the number of ingredients
+     */
+    public int getIngredientCount() {
+        return ingredients.length;
+    }
+
+    /**
+     * Gets the name of an ingredient.
+     *
+     * @param ingredient the index of the ingredient
+     * @return the name
+     */
+    public String getIngredient(int ingredient) {
+        return ingredients[ingredient];
+    }
+
+    /**
+     * Gets the name of the operation a refill of an ingredient is reported as to listeners,
+     * such as "refillWater".
+     *
+     * @param ingredient the index of the ingredient
+     * @return the name of the operation
+     */
+    public String getRefillOperation(int ingredient) {
+        return refillOperations[ingredient];
+    }
+
+    /**
+     * Gets the index of an ingredient.
+     *
+     * @param name the name of the ingredient
+     * @return the index, or -1 if the book has no such ingredient
+     */
+    public int indexOfIngredient(String name) {
+        return Arrays.asList(ingredients).indexOf(name);
+    }
+
+    /**
+     * Gets the recipes.
+     *
+     * @return an unmodifiable list of the recipes
+     */
+    public List<Recipe> getRecipes() {
+        return Collections.unmodifiableList(Arrays.asList(recipes));
+    }
+
+    /**
+     * Gets the index of a recipe.
+     *
+     * @param name the name of the recipe
+     * @return the index, or -1 if the book has no such recipe
+     */
+    public int indexOfRecipe(String name) {
+        Integer index = recipeIndexes.get(name);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Gets the largest level an ingredient can have.
+     *
+     * @return the capacity of each ingredient
+     */
+    public int getCapacity() {
+        return (int) ((1L << bits) - 1);
+    }
+
+    Recipe recipe(int index) {
+        return recipes[index];
+    }
+
+    /**
+     * Gets the most of an ingredient that one serving of any recipe needs.
+     */
+    int largestAmount(int ingredient) {
+        int largest = 0;
+        for (Recipe recipe : recipes) {
+            largest = Math.max(largest, recipe.getAmount(ingredient));
+        }
+        return largest;
+    }
+
+    long packedRecipe(int index) {
+        return packedRecipes[index];
+    }
+
+    long pack(int[] levels) {
+        long packed = 0;
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] < 0 || levels[i] > getCapacity()) {
+                throw new IllegalArgumentException("Level of " + ingredients[i] + " must be between 0 and " + getCapacity());
+            }
+            packed |= (long) levels[i] << (i * bits);
+        }
+        return packed;
+    }
+
+    int unpack(long packed, int ingredient) {
+        return (int) ((packed >>> (ingredient * bits)) & getCapacity());
+    }
+
+    /**
+     * Checks if every level of a packed vector is at least the matching level of another.
+     */
+    boolean covers(long levels, long needed) {
+        for (int i = 0; i < ingredients.length; i++) {
+            if (unpack(levels, i) < unpack(needed, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes how many servings of a recipe a packed vector of levels covers, from one
+     * division per ingredient.
+     */
+    int servings(long levels, int recipe) {
+        int servings = Integer.MAX_VALUE;
+        for (int i = 0; i < ingredients.length; i++) {
+            int amount = recipes[recipe].getAmount(i);
+            if (amount > 0) {
+                servings = Math.min(servings, unpack(levels, i) / amount);
+            }
+        }
+        return servings;
+    }
+
+    int shift(int ingredient) {
+        return ingredient * bits;
+    }
+}
@@ -0,0 +1,342 @@
+package vendingmachines;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import exceptions.InsufficientResourcesException;
+import interfaces.Refillable;
+
+/**
+ * A vending machine that prepares servings from ingredients, configured by a {@link RecipeBook}.
+ *
+ * <p>The ingredient levels are packed into a single {@link AtomicLong}. Preparing a recipe
+ * checks and takes all of its ingredients in one compare-and-set, so concurrent servings
+ * can neither oversell an ingredient nor drive a level negative, without any locking.
+ */
+public class RecipeMachine extends VendingMachine {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * An ingredient that lasts for fewer servings than this, of the recipe that needs the most
+     * of it, makes the machine need a refill.
+     */
+    public static final int LOW_SERVINGS = 5;
+
+    private RecipeBook book;
+    private AtomicLong levels;
+
+    /**
+     * Constructs a new RecipeMachine.
+     *
+     * @param productName the name of the initial product
+     * @param productPrice the price of the initial product
+     * @param mode the inventory mode of the machine
+     * @param book the ingredients and recipes of the machine
+     * @param initialLevels the initial level of each ingredient
+     * @throws IllegalArgumentException if a level is negative or above the capacity of the book
+     */
+    public RecipeMachine(String productName, int productPrice, InventoryMode mode, RecipeBook book, int... initialLevels) {
+        super(productName, productPrice, mode);
+        restoreIngredients(book, initialLevels);
+    }
+
+    @Override
+    public RecipeMachine clone() {
+        RecipeMachine copy = (RecipeMachine) super.clone();
+        copy.levels = new AtomicLong(levels.get());
+        return copy;
+    }
+
+    /**
+     * Gets the ingredients and recipes of the machine.
+     *
+     * @return the recipe book
+     */
+    public RecipeBook getRecipeBook() {
+        return book;
+    }
+
+    /**
+     * Gets the level of an ingredient.
+     *
+     * @param ingredient the index of the ingredient
+     * @return the level
+     */
+    public int getLevel(int ingredient) {
+        return book.unpack(levels.get(), checkIngredient(ingredient));
+    }
+
+    /**
+     * Prepares one serving of a recipe without throwing on failure.
+     *
+     * @param recipe the index of the recipe in the recipe book
+     * @return {@link OperationStatus#OK}, or {@link OperationStatus#INSUFFICIENT_RESOURCES} if an ingredient is short
+     */
+    public OperationStatus tryPrepare(int recipe) {
+        long needed = book.packedRecipe(recipe);
+        long current;
+        do {
+            current = levels.get();
+            if (!book.covers(current, needed)) {
+                return OperationStatus.INSUFFICIENT_RESOURCES;
+            }
+        } while (!levels.compareAndSet(current, current - needed));
+        fireOperation(book.recipe(recipe).getName(), 1);
+        return OperationStatus.OK;
+    }
+
+    /**
+     * Prepares as many servings of a recipe as the ingredients allow, up to a count. The
+     * feasible count is computed from the current levels and all ingredients are taken in a
+     * single compare-and-set, so the cost does not grow with the count.
+     *
+     * @param recipe the index of the recipe in the recipe book
+     * @param count the number of servings wanted
+     * @return the number of servings prepared, between 0 and count
+     * @throws IllegalArgumentException if count is negative
+     */
+    public int prepare(int recipe, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Count must not be negative: " + count);
+        }
+        long needed = book.packedRecipe(recipe);
+        long current;
+        int servings;
+        do {
+            current = levels.get();
+            servings = Math.min(count, book.servings(current, recipe));
+            if (servings == 0) {
+                return 0;
+            }
+            // Every level covers its amount times servings, so the subtraction never borrows across ingredients.
+        } while (!levels.compareAndSet(current, current - needed * servings));
+        fireOperation(book.recipe(recipe).getName(), servings);
+        return servings;
+    }
+
+    /**
+     * Gets how many more servings of a recipe the current ingredient levels allow.
+     *
+     * @param recipe the index of the recipe in the recipe book
+     * @return the number of servings, or {@link Integer#MAX_VALUE} if the recipe needs no ingredients
+     */
+    public int getRemainingServings(int recipe) {
+        return book.servings(levels.get(), recipe);
+    }
+
+    /**
+     * Gets how many more servings of a recipe the current ingredient levels allow.
+     *
+     * @param recipeName the name of the recipe
+     * @return the number of servings, or {@link Integer#MAX_VALUE} if the recipe needs no ingredients
+     * @throws IllegalArgumentException if the machine has no such recipe
+     */
+    public int getRemainingServings(String recipeName) {
+        int recipe = book.indexOfRecipe(recipeName);
+        if (recipe < 0) {
+            throw new IllegalArgumentException("Unknown recipe: " + recipeName);
+        }
+        return getRemainingServings(recipe);
+    }
+
+    /**
+     * Prepares one serving of a recipe by name without throwing on failure.
+     *
+     * @param recipeName the name of the recipe
+     * @return {@link OperationStatus#OK}, {@link OperationStatus#NOT_FOUND} if the machine has no
+     *         such recipe, or {@link OperationStatus#INSUFFICIENT_RESOURCES} if an ingredient is short
+     */
+    public OperationStatus tryPrepare(String recipeName) {
+        int recipe = book.indexOfRecipe(recipeName);
+        return recipe < 0 ? OperationStatus.NOT_FOUND : tryPrepare(recipe);
+    }
+
+    /**
+     * Prepares one serving of a recipe by name.
+     *
+     * @param recipeName the name of the recipe
+     * @throws InsufficientResourcesException if an ingredient is short
+     * @throws IllegalArgumentException if the machine has no such recipe
+     */
+    public void prepare(String recipeName) throws InsufficientResourcesException {
+        switch (tryPrepare(recipeName)) {
+            case NOT_FOUND:
+                throw new IllegalArgumentException("Unknown recipe: " + recipeName);
+            case INSUFFICIENT_RESOURCES:
+                throw InsufficientResourcesException.cached(recipeName);
+            default:
+        }
+    }
+
+    /**
+     * Adds to the level of an ingredient. A negative amount takes from it.
+     *
+     * @param ingredient the index of the ingredient
+     * @param amount the amount to add
+     * @throws IllegalArgumentException if the level would drop below 0 or exceed the capacity
+     */
+    public void refill(int ingredient, int amount) {
+        checkIngredient(ingredient);
+        long delta = (long) amount << book.shift(ingredient);
+        long current;
+        do {
+            current = levels.get();
+            long level = (long) book.unpack(current, ingredient) + amount;
+            if (level < 0 || level > book.getCapacity()) {
+                throw new IllegalArgumentException("Level of " + book.getIngredient(ingredient) + " must stay between 0 and "
+                        + book.getCapacity() + ", refill of " + amount + " would make it " + level);
+            }
+        } while (!levels.compareAndSet(current, current + delta));
+        fireOperation(book.getRefillOperation(ingredient), amount);
+    }
+
+    /**
+     * Adds to the levels of all ingredients at once. Either every level changes, or none does
+     * if any of them would leave its range.
+     *
+     * @param amounts the amount to add to each ingredient, in the order of the recipe book
+     * @throws IllegalArgumentException if there is not one amount per ingredient, or a level
+     *         would drop below 0 or exceed the capacity
+     */
+    public void refillAll(int... amounts) {
+        if (amounts.length != book.getIngredientCount()) {
+            throw new IllegalArgumentException("Expected " + book.getIngredientCount() + " refill amounts, got " + amounts.length);
+        }
+        long current;
+        long updated;
+        do {
+            current = levels.get();
+            updated = current;
+            for (int i = 0; i < amounts.length; i++) {
+                long level = (long) book.unpack(current, i) + amounts[i];
+                if (level < 0 || level > book.getCapacity()) {
+                    throw new IllegalArgumentException("Level of " + book.getIngredient(i) + " must stay between 0 and "
+                            + book.getCapacity() + ", refill of " + amounts[i] + " would make it " + level);
+                }
+                updated += (long) amounts[i] << book.shift(i);
+            }
+        } while (!levels.compareAndSet(current, updated));
+        for (int i = 0; i < amounts.length; i++) {
+            fireOperation(book.getRefillOperation(i), amounts[i]);
+        }
+    }
+
+    /**
+     * Re-applies an operation this machine reported to its listeners, such as one read back
+     * from a transaction log.
+     *
+     * @param operation the name of a recipe, or of a refill such as "refillWater"
+     * @param amount the amount the operation was performed with
+     * @return {@link OperationStatus#NOT_FOUND} if the operation is unknown, otherwise the status of the operation
+     */
+    public OperationStatus applyOperation(String operation, int amount) {
+        int recipe = book.indexOfRecipe(operation);
+        if (recipe >= 0) {
+            if (getRemainingServings(recipe) < amount) {
+                return OperationStatus.INSUFFICIENT_RESOURCES;
+            }
+            prepare(recipe, amount);
+            return OperationStatus.OK;
+        }
+        for (int ingredient = 0; ingredient < book.getIngredientCount(); ingredient++) {
+            if (book.getRefillOperation(ingredient).equals(operation)) {
+                refill(ingredient, amount);
+                return OperationStatus.OK;
+            }
+        }
+        return OperationStatus.NOT_FOUND;
+    }
+
+    @Override
+    public boolean needsRefill() {
+        return refillUrgency() > 0;
+    }
+
+    /**
+     * Checks if an ingredient has run out. Products are not counted, so a machine with
+     * ingredients is not empty just because it holds no products.
+     *
+     * @return true if an ingredient has run out
+     */
+    @Override
+    public boolean isEmpty() {
+        long current = levels.get();
+        for (int i = 0; i < book.getIngredientCount(); i++) {
+            if (book.unpack(current, i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets how urgently the machine needs service from its scarcest ingredient. Each level is
+     * measured against {@link #LOW_SERVINGS} servings of the recipe that needs the most of
+     * that ingredient.
+     *
+     * @return 0 if every ingredient lasts for {@link #LOW_SERVINGS} servings,
+     *         {@link interfaces.Refillable#MAX_URGENCY} if one has run out, and in between a
+     *         value that grows as the scarcest ingredient runs lower
+     */
+    @Override
+    public int refillUrgency() {
+        long current = levels.get();
+        int urgency = 0;
+        for (int i = 0; i < book.getIngredientCount(); i++) {
+            int low = Math.max(1, book.largestAmount(i)) * LOW_SERVINGS;
+            urgency = Math.max(urgency, Refillable.urgency(book.unpack(current, i), low));
+        }
+        return urgency;
+    }
+
+    @Override
+    public String displayInventory() {
+        StringBuilder inventory = new StringBuilder("Recipe machine with ingredients ");
+        long current = levels.get();
+        for (int i = 0; i < book.getIngredientCount(); i++) {
+            inventory.append(i > 0 ? ", " : "").append(book.getIngredient(i)).append(": ").append(book.unpack(current, i));
+        }
+        return inventory.toString();
+    }
+
+    /**
+     * Writes the ingredient levels. Products are not listed, so the filter and page are ignored.
+     *
+     * @return 0, as no products are listed
+     */
+    @Override
+    public int renderInventory(Appendable out, InventoryFilter filter, int offset, int limit) throws IOException {
+        out.append(displayInventory());
+        return 0;
+    }
+
+    /**
+     * Sets the recipe book and ingredient levels. Subclasses call this when they restore a
+     * machine that was serialized before it was a recipe machine.
+     *
+     * @param book the ingredients and recipes of the machine
+     * @param levels the level of each ingredient
+     */
+    protected final void restoreIngredients(RecipeBook book, int... levels) {
+        if (levels.length != book.getIngredientCount()) {
+            throw new IllegalArgumentException("Expected " + book.getIngredientCount() + " ingredient levels");
+        }
+        this.book = book;
+        this.levels = new AtomicLong(book.pack(levels));
+    }
+
+    /**
+     * Checks if the recipe book and ingredient levels are set.
+     *
+     * @return true if the ingredients are set
+     */
+    protected final boolean hasIngredients() {
+        return levels != null;
+    }
+
+    private int checkIngredient(int ingredient) {
+        if (ingredient < 0 || ingredient >= book.getIngredientCount()) {
+            throw new IndexOutOfBoundsException("Unknown ingredient: " + ingredient);
+        }
+        return ingredient;
+    }
+}
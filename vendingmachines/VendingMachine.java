@@ -1,20 +1,59 @@
 package vendingmachines;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import exceptions.ProductNotFoundException;
 import exceptions.VendingMachineException;
 import interfaces.Displayable;
+import interfaces.MachineListener;
+import interfaces.Refillable;
 
 /**
  * Represents a general vending machine.
  */
 public class VendingMachine implements Displayable, Cloneable, Serializable {
     private static final long serialVersionUID = 1L;
-    private Map<String, Product> products;
-    private static int machineCount = 0;
-    private int productAmount = 0;
+
+    /**
+     * The product id returned for a product that is not in the machine.
+     */
+    public static final int NO_PRODUCT = Inventory.NOT_FOUND;
+
+    /**
+     * The price returned for a product that is not in the machine. Prices are not
+     * validated, so the sentinel is the one value no real catalog uses.
+     */
+    public static final int NO_PRICE = Integer.MIN_VALUE;
+
+    /**
+     * The largest page of {@link #renderInventory} that is cached between calls.
+     */
+    public static final int MAX_CACHED_PAGE_SIZE = 64;
+
+    /**
+     * Fewer products in stock than this make the machine need a refill.
+     */
+    public static final int LOW_STOCK = 5;
+
+    private InventoryMode mode;
+    private Inventory inventory;
+    private UUID serial = UUID.randomUUID();
+    private static final LongAdder CREATED = new LongAdder();
+    private transient AtomicInteger productAmount = new AtomicInteger();
+    private transient volatile MachineListener[] listeners;
+    private transient DirtySet dirtyProducts = new DirtySet();
+    private transient AtomicBoolean stateDirty = new AtomicBoolean();
+    private transient volatile boolean renderStale = true;
+    private transient RenderedPage renderedPage;
 
     /**
      * Constructs a new VendingMachine.
@@ -23,23 +62,131 @@ public class VendingMachine implements Displayable, Cloneable, Serializable {
      * @param productPrice the price of the initial product
      */
     public VendingMachine(String productName, int productPrice) {
-        machineCount++;
-        products = new HashMap<>();
+        this(productName, productPrice, InventoryMode.STANDARD);
     }
 
+    /**
+     * Constructs a new VendingMachine with the specified inventory mode.
+     *
+     * @param productName the name of the initial product
+     * @param productPrice the price of the initial product
+     * @param mode the inventory mode of the machine
+     */
+    public VendingMachine(String productName, int productPrice, InventoryMode mode) {
+        CREATED.increment();
+        this.mode = mode;
+        inventory = newInventory(mode);
+    }
+
+    /**
+     * Creates a copy of the machine with its own products and a new serial. Listeners are not
+     * copied. In {@link InventoryMode#PERSISTENT} mode the copy takes constant time.
+     *
+     * @return the copy
+     */
     @Override
     public VendingMachine clone() {
         try {
             VendingMachine copy = (VendingMachine) super.clone();
-            copy.products = new HashMap<>(products);
+            copy.inventory = inventory.copy();
+            copy.serial = UUID.randomUUID();
+            copy.productAmount = new AtomicInteger(productAmount.get());
+            copy.listeners = null;
+            copy.dirtyProducts = new DirtySet();
+            copy.stateDirty = new AtomicBoolean();
+            copy.renderStale = true;
+            copy.renderedPage = null;
+            CREATED.increment();
             return copy;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError();
         }
     }
 
+    /**
+     * Gets the number of machines created in this JVM, counting copies and deserialized
+     * machines. Machines are never subtracted; for the machines currently in a fleet use
+     * {@code fleet.FleetAggregates}.
+     *
+     * @return the number of machines created
+     */
     public static final int getMachineCount() {
-        return machineCount;
+        return CREATED.intValue();
+    }
+
+    /**
+     * Registers a listener that is notified after every mutation of the machine.
+     * Listeners are not copied by {@link #clone()} and are not serialized.
+     *
+     * @param listener the listener to add
+     */
+    public synchronized void addListener(MachineListener listener) {
+        MachineListener[] current = listeners;
+        if (current == null) {
+            listeners = new MachineListener[] {listener};
+        } else {
+            MachineListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            listeners = updated;
+        }
+    }
+
+    /**
+     * Removes a previously registered listener.
+     *
+     * @param listener the listener to remove
+     */
+    public synchronized void removeListener(MachineListener listener) {
+        MachineListener[] current = listeners;
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                if (current.length == 1) {
+                    listeners = null;
+                } else {
+                    MachineListener[] updated = new MachineListener[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    listeners = updated;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the inventory mode of the vending machine.
+     *
+     * @return the inventory mode
+     */
+    public InventoryMode getInventoryMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the serial of the vending machine. Every new machine and every copy gets a random
+     * serial, which is kept when the machine is saved and loaded, so it identifies the machine
+     * across sessions where its fleet id does not.
+     *
+     * @return the serial
+     */
+    public UUID getSerial() {
+        return serial;
+    }
+
+    /**
+     * Sets the serial of the vending machine, such as when it is restored from a snapshot.
+     *
+     * @param serial the serial
+     * @throws IllegalArgumentException if the serial is null
+     */
+    public void setSerial(UUID serial) {
+        if (serial == null) {
+            throw new IllegalArgumentException("Serial must not be null");
+        }
+        this.serial = serial;
     }
 
     /**
@@ -50,43 +197,195 @@ public class VendingMachine implements Displayable, Cloneable, Serializable {
      * @param quantity the quantity of the product
      */
     public void addProduct(String name, int price, int quantity) {
-        if (products.containsKey(name)) {
-            products.get(name).increaseQuantity(quantity);
-        } else {
-            products.put(name, new Product(name, price, quantity));
-            productAmount++;
+        int id = inventory.register(name, price);
+        adjustQuantity(id, quantity);
+        MachineListener[] current = listeners;
+        if (current != null) {
+            for (MachineListener listener : current) {
+                listener.productAdded(this, id, name, inventory.priceOf(id), quantity);
+            }
         }
     }
 
     /**
-     * Buys a product from the vending machine.
+     * Buys a product from the vending machine. The exceptions carry no stack trace, since
+     * unknown and sold-out products are expected outcomes.
      *
      * @param name the name of the product
      * @throws ProductNotFoundException if the product is not found
      * @throws VendingMachineException if the product is out of stock
      */
     public void buyProduct(String name) throws ProductNotFoundException, VendingMachineException {
-        Product product = products.get(name);
-        if (product == null) {
-            throw new ProductNotFoundException("Product not found: " + name);
+        switch (tryBuy(name)) {
+            case NOT_FOUND:
+                throw new ProductNotFoundException("Product not found: " + name, false);
+            case OUT_OF_STOCK:
+                throw new VendingMachineException("Product out of stock: " + name, false);
+            default:
         }
-        if (product.getQuantity() <= 0) {
-            throw new VendingMachineException("Product out of stock: " + name);
+    }
+
+    /**
+     * Buys a product from the vending machine without throwing on failure. Failed purchases
+     * do not allocate.
+     *
+     * @param name the name of the product
+     * @return {@link OperationStatus#OK}, {@link OperationStatus#NOT_FOUND} or {@link OperationStatus#OUT_OF_STOCK}
+     */
+    public OperationStatus tryBuy(String name) {
+        int id = inventory.idOf(name);
+        if (id == Inventory.NOT_FOUND) {
+            return OperationStatus.NOT_FOUND;
         }
-        product.decreaseQuantity(1);
-        if (product.getQuantity() == 0) {
-            productAmount--;
+        if (!take(id, 1)) {
+            return OperationStatus.OUT_OF_STOCK;
         }
+        fireProductBought(id, 1);
+        return OperationStatus.OK;
+    }
+
+    /**
+     * Gets the id of a product, for use with the id-based operations such as {@link #buy(int)}.
+     * Ids are stable for the lifetime of the machine.
+     *
+     * @param name the name of the product
+     * @return the product id, or {@link #NO_PRODUCT} if the product is not found
+     */
+    public int productId(String name) {
+        return inventory.idOf(name);
+    }
+
+    /**
+     * Gets the name of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the name of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of this machine
+     */
+    public String productName(int productId) {
+        return inventory.nameOf(checkProductId(productId));
+    }
+
+    /**
+     * Gets the price of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the price of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of this machine
+     */
+    public int productPrice(int productId) {
+        return inventory.priceOf(checkProductId(productId));
+    }
+
+    /**
+     * Gets the quantity in stock of a product by id.
+     *
+     * @param productId the id of the product
+     * @return the quantity of the product
+     * @throws IndexOutOfBoundsException if the id is not a product of this machine
+     */
+    public int productQuantity(int productId) {
+        return inventory.quantityOf(checkProductId(productId));
+    }
+
+    /**
+     * Buys one unit of a product by id. Unlike {@link #buyProduct(String)} this never
+     * allocates, which makes it suitable for hot purchase paths.
+     *
+     * @param productId the id of the product
+     * @return true if the product was bought, false if it is unknown or out of stock
+     */
+    public boolean buy(int productId) {
+        if (productId < 0 || productId >= inventory.size() || !take(productId, 1)) {
+            return false;
+        }
+        fireProductBought(productId, 1);
+        return true;
+    }
+
+    /**
+     * Buys several products at once. The cart is debited all-or-nothing: either every
+     * line is purchased or the machine is left unchanged.
+     *
+     * @param cart the quantity to buy keyed by product name
+     * @return the total price and the status of each line. A line whose price would make
+     *         the total overflow a {@code long} is rejected as an invalid quantity
+     */
+    public CartResult buyProducts(Map<String, Integer> cart) {
+        Map<String, CartResult.LineStatus> lines = new LinkedHashMap<>();
+        int[] ids = new int[cart.size()];
+        int[] counts = new int[cart.size()];
+        boolean valid = true;
+        int lineCount = 0;
+        for (Map.Entry<String, Integer> line : cart.entrySet()) {
+            Integer count = line.getValue();
+            int id = inventory.idOf(line.getKey());
+            CartResult.LineStatus status;
+            if (count == null || count <= 0) {
+                status = CartResult.LineStatus.INVALID_QUANTITY;
+            } else if (id == Inventory.NOT_FOUND) {
+                status = CartResult.LineStatus.NOT_FOUND;
+            } else if (inventory.quantityOf(id) < count) {
+                status = CartResult.LineStatus.OUT_OF_STOCK;
+            } else {
+                status = CartResult.LineStatus.SKIPPED;
+                ids[lineCount] = id;
+                counts[lineCount] = count;
+            }
+            valid &= status == CartResult.LineStatus.SKIPPED;
+            lines.put(line.getKey(), status);
+            lineCount++;
+        }
+        if (!valid) {
+            return new CartResult(false, 0, lines);
+        }
+
+        long totalPrice = 0;
+        for (int i = 0; i < lineCount; i++) {
+            try {
+                totalPrice = Math.addExact(totalPrice, Math.multiplyExact((long) inventory.priceOf(ids[i]), counts[i]));
+            } catch (ArithmeticException e) {
+                lines.put(inventory.nameOf(ids[i]), CartResult.LineStatus.INVALID_QUANTITY);
+                return new CartResult(false, 0, lines);
+            }
+        }
+        for (int i = 0; i < lineCount; i++) {
+            if (!take(ids[i], counts[i])) {
+                for (int j = 0; j < i; j++) {
+                    adjustQuantity(ids[j], counts[j]);
+                }
+                lines.put(inventory.nameOf(ids[i]), CartResult.LineStatus.OUT_OF_STOCK);
+                return new CartResult(false, 0, lines);
+            }
+        }
+        for (Map.Entry<String, CartResult.LineStatus> line : lines.entrySet()) {
+            line.setValue(CartResult.LineStatus.OK);
+        }
+        for (int i = 0; i < lineCount; i++) {
+            fireProductBought(ids[i], counts[i]);
+        }
+        return new CartResult(true, totalPrice, lines);
     }
 
     @Override
     public boolean needsRefill() {
-        return productAmount < 5;
+        return productAmount.get() < LOW_STOCK;
     }
 
     @Override
     public boolean isEmpty() {
-        return productAmount == 0;
+        return productAmount.get() == 0;
+    }
+
+    /**
+     * Gets how urgently the machine needs service from the number of products in stock.
+     *
+     * @return 0 with {@link #LOW_STOCK} or more products in stock, {@link Refillable#MAX_URGENCY}
+     *         with none, and in between a value that grows as products sell out
+     */
+    @Override
+    public int refillUrgency() {
+        return Refillable.urgency(productAmount.get(), LOW_STOCK);
     }
 
     /**
@@ -96,67 +395,420 @@ public class VendingMachine implements Displayable, Cloneable, Serializable {
      * @return the price of the product, or null if not found
      */
     public Integer fetchPrice(String name) {
-        Product product = products.get(name);
-        return product != null ? product.getPrice() : null;
+        int price = priceOf(name);
+        return price != NO_PRICE ? price : null;
+    }
+
+    /**
+     * Gets the price of a product without boxing it.
+     *
+     * @param name the name of the product
+     * @return the price of the product, or {@link #NO_PRICE} if not found
+     */
+    public int priceOf(String name) {
+        int id = inventory.idOf(name);
+        return id != Inventory.NOT_FOUND ? inventory.priceOf(id) : NO_PRICE;
+    }
+
+    /**
+     * Prices many products in one pass, for menus and carts. Nothing is allocated per product,
+     * and in {@link InventoryMode#PERSISTENT} mode all prices come from the same point in time.
+     *
+     * @param names the names of the products
+     * @param prices receives the price of each product, or {@link #NO_PRICE} for products
+     *               that are not found
+     * @return the number of products found
+     * @throws IllegalArgumentException if prices is shorter than names
+     */
+    public int quote(String[] names, int[] prices) {
+        checkQuote(names.length, prices);
+        Inventory current = inventory.view();
+        int found = 0;
+        for (int i = 0; i < names.length; i++) {
+            int id = current.idOf(names[i]);
+            if (id != Inventory.NOT_FOUND) {
+                prices[i] = current.priceOf(id);
+                found++;
+            } else {
+                prices[i] = NO_PRICE;
+            }
+        }
+        return found;
     }
 
+    /**
+     * Prices many products by id in one pass. Nothing is allocated per product.
+     *
+     * @param productIds the ids of the products
+     * @param prices receives the price of each product, or {@link #NO_PRICE} for ids that are
+     *               not products of this machine
+     * @return the number of products found
+     * @throws IllegalArgumentException if prices is shorter than productIds
+     * @see #quote(String[], int[])
+     */
+    public int quote(int[] productIds, int[] prices) {
+        checkQuote(productIds.length, prices);
+        Inventory current = inventory.view();
+        int size = current.size();
+        int found = 0;
+        for (int i = 0; i < productIds.length; i++) {
+            int id = productIds[i];
+            if (id >= 0 && id < size) {
+                prices[i] = current.priceOf(id);
+                found++;
+            } else {
+                prices[i] = NO_PRICE;
+            }
+        }
+        return found;
+    }
+
+    private static void checkQuote(int count, int[] prices) {
+        if (prices.length < count) {
+            throw new IllegalArgumentException("Price array holds " + prices.length + " prices, " + count + " needed");
+        }
+    }
+
+    /**
+     * Gets the products keyed by name, read-only in every mode. In
+     * {@link InventoryMode#STANDARD} and {@link InventoryMode#CONCURRENT} mode this is a view
+     * of the map the machine stores its products in, so it follows later changes. The other
+     * modes do not store a map, so they return a copy of the products as they are now, in
+     * product id order.
+     *
+     * @return the products keyed by name
+     */
     public Map<String, Product> getProducts() {
-        return products;
+        if (inventory instanceof MapInventory) {
+            return Collections.unmodifiableMap(((MapInventory) inventory).getProducts());
+        }
+        Map<String, Product> products = new LinkedHashMap<>();
+        forEachProduct((id, name, price, quantity) -> products.put(name, new Product(id, name, price, quantity)));
+        return Collections.unmodifiableMap(products);
     }
 
     public void setProducts(Map<String, Product> products) {
-        this.products = products;
+        Inventory replacement = newInventory(mode);
+        int inStock = 0;
+        for (Product product : products.values()) {
+            replacement.addQuantity(replacement.register(product.getName(), product.getPrice()), product.getQuantity());
+            if (product.getQuantity() > 0) {
+                inStock++;
+            }
+        }
+        this.inventory = replacement;
+        this.productAmount = new AtomicInteger(inStock);
+        invalidateRender();
+    }
+
+    /**
+     * Gets the number of distinct products registered in the machine.
+     *
+     * @return the number of products, including those that are out of stock
+     */
+    public int getProductCount() {
+        return inventory.size();
+    }
+
+    /**
+     * Takes a snapshot of the products. In {@link InventoryMode#PERSISTENT} mode this takes
+     * constant time and shares the products with the machine; in the other modes the
+     * inventory is copied.
+     *
+     * @return a read-only view of the products as they are now
+     */
+    public InventorySnapshot snapshot() {
+        return new InventorySnapshot(inventory.snapshot());
+    }
+
+    /**
+     * Visits every product in the machine in product id order. In {@link InventoryMode#PERSISTENT}
+     * mode the visit sees the products at a single point in time.
+     *
+     * @param visitor the visitor to call for each product
+     */
+    public void forEachProduct(ProductVisitor visitor) {
+        Inventory current = inventory.view();
+        int size = current.size();
+        for (int id = 0; id < size; id++) {
+            visitor.visit(id, current.nameOf(id), current.priceOf(id), current.quantityOf(id));
+        }
     }
 
     @Override
     public String displayInventory() {
-        StringBuilder inventory = new StringBuilder("VendingMachine with products: ");
-        for (Product product : products.values()) {
-            inventory.append("\n").append(product);
+        StringBuilder inventory = new StringBuilder();
+        try {
+            renderPage(inventory, InventoryFilter.ALL, 0, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new AssertionError(e);
         }
         return inventory.toString();
     }
 
     /**
-     * Represents a product in the vending machine.
+     * {@inheritDoc} Pages of up to {@link #MAX_CACHED_PAGE_SIZE} products are cached, and the
+     * cached page is reused until the machine's state changes.
      */
-    private static class Product {
-        private final String name;
-        private final int price;
-        private int quantity;
+    @Override
+    public int renderInventory(Appendable out, InventoryFilter filter, int offset, int limit) throws IOException {
+        if (limit > MAX_CACHED_PAGE_SIZE) {
+            return renderPage(out, filter, offset, limit);
+        }
+        RenderedPage page;
+        synchronized (this) {
+            page = renderedPage;
+            if (page == null || renderStale || !page.matches(filter, offset, limit)) {
+                renderStale = false;
+                StringBuilder text = new StringBuilder();
+                int matching = renderPage(text, filter, offset, limit);
+                page = new RenderedPage(filter, offset, limit, text.toString(), matching);
+                renderedPage = page;
+            }
+        }
+        out.append(page.text);
+        return page.matching;
+    }
 
+    /**
+     * Removes and returns the ids of the products whose quantity changed since the last
+     * call, or since {@link #markClean()}.
+     *
+     * @return the changed product ids in ascending order
+     */
+    public int[] takeDirtyProducts() {
+        return dirtyProducts.drain();
+    }
+
+    /**
+     * Checks and clears whether the machine-specific state, such as ingredient levels,
+     * changed since the last call, or since {@link #markClean()}.
+     *
+     * @return true if the machine-specific state changed
+     */
+    public boolean takeStateDirty() {
+        return stateDirty.get() && stateDirty.getAndSet(false);
+    }
+
+    /**
+     * Forgets all tracked changes. Call this just before taking a full snapshot, so that
+     * changes made while the snapshot is written are tracked for the next delta.
+     */
+    public void markClean() {
+        stateDirty.set(false);
+        dirtyProducts.clear();
+    }
+
+    /**
+     * Notifies the listeners of a machine-specific operation and marks the machine-specific
+     * state as changed. Subclasses call this after each successful operation that changes
+     * their state.
+     *
+     * @param operation the name of the operation
+     * @param amount the amount the operation was performed with
+     */
+    protected void fireOperation(String operation, int amount) {
+        if (!stateDirty.get()) {
+            stateDirty.set(true);
+        }
+        invalidateRender();
+        MachineListener[] current = listeners;
+        if (current != null) {
+            for (MachineListener listener : current) {
+                listener.operationPerformed(this, operation, amount);
+            }
+        }
+    }
+
+    private void fireProductBought(int id, int quantity) {
+        MachineListener[] current = listeners;
+        if (current != null) {
+            int price = inventory.priceOf(id);
+            for (MachineListener listener : current) {
+                listener.productBought(this, id, price, quantity);
+            }
+        }
+    }
+
+    /**
+     * Atomically takes units of a product and keeps the in-stock counter in step.
+     *
+     * @param id the product id
+     * @param amount the number of units to take
+     * @return true if the units were taken, false if there were not enough in stock
+     */
+    private boolean take(int id, int amount) {
+        int before = inventory.tryTake(id, amount);
+        if (before < amount) {
+            return false;
+        }
+        dirtyProducts.mark(id);
+        invalidateRender();
+        if (before == amount) {
+            productAmount.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Atomically changes the quantity of a product and keeps the in-stock counter in step.
+     *
+     * @param id the product id
+     * @param delta the amount to add, may be negative
+     */
+    private void adjustQuantity(int id, int delta) {
+        int before = inventory.addQuantity(id, delta);
+        dirtyProducts.mark(id);
+        invalidateRender();
+        int after = before + delta;
+        if (before <= 0 && after > 0) {
+            productAmount.incrementAndGet();
+        } else if (before > 0 && after <= 0) {
+            productAmount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the cached inventory page as stale. The flag is only written when it changes, so
+     * purchases do not contend on it.
+     */
+    private void invalidateRender() {
+        if (!renderStale) {
+            renderStale = true;
+        }
+    }
+
+    private int renderPage(Appendable out, InventoryFilter filter, int offset, int limit) throws IOException {
+        out.append("VendingMachine with products: ");
+        Inventory current = inventory.view();
+        int size = current.size();
+        int matching = 0;
+        for (int id = 0; id < size; id++) {
+            int quantity = current.quantityOf(id);
+            if (!filter.matches(quantity)) {
+                continue;
+            }
+            if (matching >= offset && matching - offset < limit) {
+                out.append("\n").append(current.nameOf(id)).append(" (Price: ").append(Integer.toString(current.priceOf(id)))
+                        .append(", Quantity: ").append(Integer.toString(quantity)).append(")");
+            }
+            matching++;
+        }
+        return matching;
+    }
+
+    private int checkProductId(int productId) {
+        if (productId < 0 || productId >= inventory.size()) {
+            throw new IndexOutOfBoundsException("Unknown product id: " + productId);
+        }
+        return productId;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        inventory = (Inventory) fields.get("inventory", null);
+        serial = (UUID) fields.get("serial", null);
+        if (serial == null) {
+            // Saved before machines had serials.
+            serial = UUID.randomUUID();
+        }
+        if (inventory != null) {
+            mode = (InventoryMode) fields.get("mode", null);
+        } else {
+            // Machines saved before the inventory modes held a map of products and an int
+            // counter. The products were not serializable, so only machines without products
+            // could be saved, and both fields are left unread.
+            mode = InventoryMode.STANDARD;
+            inventory = newInventory(mode);
+        }
+        int inStock = 0;
+        for (int id = 0; id < inventory.size(); id++) {
+            if (inventory.quantityOf(id) > 0) {
+                inStock++;
+            }
+        }
+        productAmount = new AtomicInteger(inStock);
+        CREATED.increment();
+        dirtyProducts = new DirtySet();
+        stateDirty = new AtomicBoolean();
+        renderStale = true;
+    }
+
+    private static Inventory newInventory(InventoryMode mode) {
+        switch (mode) {
+            case CONCURRENT:
+                return new MapInventory(true);
+            case INDEXED:
+                return new IndexedInventory();
+            case PERSISTENT:
+                return new PersistentInventory();
+            default:
+                return new MapInventory(false);
+        }
+    }
+
+    /**
+     * Callback for iterating over the products of a vending machine.
+     */
+    public interface ProductVisitor {
         /**
-         * Constructs a new Product.
+         * Called once for each product.
          *
+         * @param id the product id
          * @param name the name of the product
          * @param price the price of the product
-         * @param quantity the initial quantity of the product
+         * @param quantity the quantity in stock
          */
-        public Product(String name, int price, int quantity) {
-            this.name = name;
-            this.price = price;
-            this.quantity = quantity;
-        }
+        void visit(int id, String name, int price, int quantity);
+    }
 
-        public int getPrice() {
-            return price;
-        }
+    /**
+     * A rendered inventory page and the arguments it was rendered with.
+     */
+    private static final class RenderedPage {
+        private final InventoryFilter filter;
+        private final int offset;
+        private final int limit;
+        private final String text;
+        private final int matching;
 
-        public int getQuantity() {
-            return quantity;
+        RenderedPage(InventoryFilter filter, int offset, int limit, String text, int matching) {
+            this.filter = filter;
+            this.offset = offset;
+            this.limit = limit;
+            this.text = text;
+            this.matching = matching;
         }
 
-        public void increaseQuantity(int amount) {
-            quantity += amount;
+        boolean matches(InventoryFilter filter, int offset, int limit) {
+            return this.filter == filter && this.offset == offset && this.limit == limit;
         }
+    }
 
-        public void decreaseQuantity(int amount) {
-            quantity -= amount;
-        }
+    /**
+     * The storage strategy used for a vending machine's products.
+     */
+    public enum InventoryMode {
+        /** Single-threaded inventory backed by a plain hash map. */
+        STANDARD,
+        /** Inventory that is safe for concurrent purchases and additions. */
+        CONCURRENT,
+        /** Single-threaded inventory stored in primitive arrays and addressed by product id. */
+        INDEXED,
+        /**
+         * Inventory that is safe for concurrent use and shares its products between copies and
+         * snapshots, so {@link VendingMachine#clone()} and {@link VendingMachine#snapshot()}
+         * take constant time. Each change copies a few small arrays instead of updating in place.
+         */
+        PERSISTENT;
 
-        @Override
-        public String toString() {
-            return name + " (Price: " + price + ", Quantity: " + quantity + ")";
+        /**
+         * Checks if machines in this mode are safe for concurrent purchases and additions.
+         *
+         * @return true for {@link #CONCURRENT} and {@link #PERSISTENT}
+         */
+        public boolean isThreadSafe() {
+            return this == CONCURRENT || this == PERSISTENT;
         }
     }
 }